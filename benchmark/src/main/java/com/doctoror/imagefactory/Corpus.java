@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Benchmark corpus. Real images are looked up in the directories listed in the
+ * {@value #PROPERTY_CORPUS} system property. The worst cases for the parser are generated.
+ */
+final class Corpus {
+
+    /**
+     * System property with corpus directories separated by {@link File#pathSeparator}
+     */
+    static final String PROPERTY_CORPUS = "imagefactory.corpus";
+
+    /**
+     * Static GIF with megabyte of comment sub-blocks before the only frame
+     */
+    static final String HUGE_COMMENTS = "generated:huge_comments";
+
+    /**
+     * Static GIF with ten thousand graphic control, application and plain text extensions
+     * before the only frame
+     */
+    static final String MANY_EXTENSIONS = "generated:many_extensions";
+
+    /**
+     * Animated GIF with 256 entry global color table and a thousand frames with 256 entry local
+     * color tables
+     */
+    static final String LARGE_COLOR_TABLES = "generated:large_color_tables";
+
+    private static final int SUB_BLOCK_SIZE = 255;
+
+    private Corpus() {
+        // Private constructor, do not instantiate
+    }
+
+    /**
+     * Loads a file from the corpus directories or generates a worst case
+     *
+     * @param name the file name or one of the generated case names
+     * @return the image data
+     */
+    static byte[] load(final String name) throws IOException {
+        if (HUGE_COMMENTS.equals(name)) {
+            return hugeComments();
+        }
+        if (MANY_EXTENSIONS.equals(name)) {
+            return manyExtensions();
+        }
+        if (LARGE_COLOR_TABLES.equals(name)) {
+            return largeColorTables();
+        }
+        final String dirs = System.getProperty(PROPERTY_CORPUS);
+        if (dirs != null) {
+            for (final String dir : dirs.split(File.pathSeparator)) {
+                final File file = new File(dir, name);
+                if (file.isFile()) {
+                    return readFile(file);
+                }
+            }
+        }
+        throw new IOException(name + " not found in " + PROPERTY_CORPUS + "=" + dirs);
+    }
+
+    private static byte[] hugeComments() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeHeader(out, false);
+        for (int i = 0; i < 16; i++) {
+            out.write(0x21);
+            out.write(0xfe);
+            writeSubBlocks(out, 256);
+        }
+        writeImage(out, false);
+        out.write(0x3b);
+        return out.toByteArray();
+    }
+
+    private static byte[] manyExtensions() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeHeader(out, false);
+        for (int i = 0; i < 10000; i++) {
+            switch (i % 3) {
+                case 0:
+                    // graphic control extension
+                    out.write(0x21);
+                    out.write(0xf9);
+                    out.write(4);
+                    out.write(0);
+                    out.write(10);
+                    out.write(0);
+                    out.write(0);
+                    out.write(0);
+                    break;
+
+                case 1:
+                    // application extension which is not NETSCAPE2.0
+                    out.write(0x21);
+                    out.write(0xff);
+                    out.write(11);
+                    for (int j = 0; j < 11; j++) {
+                        out.write('X'); // identifier and authentication code
+                    }
+                    writeSubBlocks(out, 1);
+                    break;
+
+                default:
+                    // plain text extension
+                    out.write(0x21);
+                    out.write(0x01);
+                    writeSubBlocks(out, 1);
+                    break;
+            }
+        }
+        writeImage(out, false);
+        out.write(0x3b);
+        return out.toByteArray();
+    }
+
+    private static byte[] largeColorTables() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeHeader(out, true);
+        for (int i = 0; i < 1000; i++) {
+            writeImage(out, true);
+        }
+        out.write(0x3b);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes GIF89a signature and 1x1 logical screen, with 256 entry global color table if
+     * colorTable is true, or with 2 entries otherwise
+     */
+    private static void writeHeader(final ByteArrayOutputStream out, final boolean colorTable) {
+        out.write('G');
+        out.write('I');
+        out.write('F');
+        out.write('8');
+        out.write('9');
+        out.write('a');
+        out.write(1);
+        out.write(0);
+        out.write(1);
+        out.write(0);
+        out.write(colorTable ? 0x87 : 0x80);
+        out.write(0);
+        out.write(0);
+        writeColorTable(out, colorTable ? 256 : 2);
+    }
+
+    /**
+     * Writes 1x1 image, with 256 entry local color table if colorTable is true
+     */
+    private static void writeImage(final ByteArrayOutputStream out, final boolean colorTable) {
+        out.write(0x2c);
+        for (int i = 0; i < 4; i++) {
+            out.write(0); // left, top
+        }
+        out.write(1);
+        out.write(0);
+        out.write(1);
+        out.write(0);
+        out.write(colorTable ? 0x87 : 0);
+        if (colorTable) {
+            writeColorTable(out, 256);
+        }
+        out.write(2); // LZW minimum code size
+        out.write(2);
+        out.write(0x44);
+        out.write(0x01);
+        out.write(0);
+    }
+
+    private static void writeColorTable(final ByteArrayOutputStream out, final int entries) {
+        for (int i = 0; i < entries * 3; i++) {
+            out.write(i);
+        }
+    }
+
+    /**
+     * Writes count full sub-blocks followed by the block terminator
+     */
+    private static void writeSubBlocks(final ByteArrayOutputStream out, final int count) {
+        for (int i = 0; i < count; i++) {
+            out.write(SUB_BLOCK_SIZE);
+            for (int j = 0; j < SUB_BLOCK_SIZE; j++) {
+                out.write('c');
+            }
+        }
+        out.write(0);
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
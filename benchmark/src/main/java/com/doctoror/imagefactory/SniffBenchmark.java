@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of sniffing, which stops at the second frame, and probing, which walks all blocks,
+ * for byte array, stream and file input. Run with the GC profiler to see the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SniffBenchmark {
+
+    /**
+     * Every GIF in the corpus directories of the jmh task, then the generated worst cases
+     */
+    @Param({
+            "w3c_home.gif",
+            "w3c_home_animation.gif",
+            "loop_once.gif",
+            "LoopOnce.gif",
+            "smallest.gif",
+            "small.gif",
+            "Static_earth.gif",
+            "Rotating_earth_(large).gif",
+            "ru9gag.gif",
+            "ru9gag1.gif",
+            "ru9gag3.gif",
+            "ru9gag4.gif",
+            Corpus.HUGE_COMMENTS,
+            Corpus.MANY_EXTENSIONS,
+            Corpus.LARGE_COLOR_TABLES
+    })
+    public String image;
+
+    private byte[] mData;
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mData = Corpus.load(image);
+        mFile = File.createTempFile("sniff", ".gif");
+        final FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(mData);
+        } finally {
+            out.close();
+        }
+        mRandomAccessFile = new RandomAccessFile(mFile, "r");
+        mChannel = mRandomAccessFile.getChannel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mRandomAccessFile.close();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Benchmark
+    public boolean sniffByteArray() throws IOException {
+        return new GifParser.ArrayParser(mData, 0, mData.length).isAnimated();
+    }
+
+    @Benchmark
+    public int probeByteArray() throws IOException {
+        return new GifParser.ArrayParser(mData, 0, mData.length).countFrames(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Same as isAnimatedGif(BufferedInputStream), including the buffer allocation
+     */
+    @Benchmark
+    public boolean sniffStream() throws IOException {
+        return new GifParser.StreamParser(new BufferedInputStream(
+                new ByteArrayInputStream(mData))).isAnimated();
+    }
+
+    @Benchmark
+    public boolean sniffFile() throws IOException {
+        return new GifParser.ChannelParser(mChannel, 0, -1).isAnimated();
+    }
+
+    @Benchmark
+    public int probeFile() throws IOException {
+        return new GifParser.ChannelParser(mChannel, 0, -1).countFrames(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Classifies GIF files without decoding them, for bulk processing outside of Android. Files are
+ * read with positional {@link java.nio.channels.FileChannel} reads through a small window, so
+ * the image data sub-blocks are skipped without being read. Directories are walked in parallel
+ * on a {@link ForkJoinPool}.
+ * <p>
+ * Uses {@link ForkJoinPool} and {@link java.nio.file.Files}, which are not available on old
+ * Android versions. Android apps should use {@code ImageFactory.probe()} instead.
+ * </p>
+ */
+public final class GifClassifier {
+
+    /**
+     * Files and directories are split between tasks until a task has this many entries
+     */
+    private static final int FILES_PER_TASK = 32;
+
+    /**
+     * Receives the results of {@link #classifyAll(File, Callback)}. Called from the pool
+     * threads, so the implementation must be thread safe.
+     */
+    public interface Callback {
+
+        /**
+         * Called when a file was classified
+         *
+         * @param file the file
+         * @param info the information, or null if the file is not a GIF
+         */
+        void onClassified(File file, ImageInfo info);
+
+        /**
+         * Called when a file could not be read
+         *
+         * @param file the file
+         * @param e    the cause
+         */
+        void onFailed(File file, IOException e);
+    }
+
+    private final ForkJoinPool mPool;
+    private final boolean mCountAllFrames;
+
+    /**
+     * Creates classifier which uses all available processors and stops reading a file at the
+     * second frame
+     */
+    public GifClassifier() {
+        this(Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * @param parallelism    the number of threads
+     * @param countAllFrames if true, every file is read up to the end to count all frames and
+     *                       the total duration, and the {@link GifIndex} is built on the way.
+     *                       If false, reading stops at the second frame,
+     *                       which is enough to tell animated GIF from static, then the frame
+     *                       count is at most 2 and the duration is the sum of the delays of
+     *                       the frames read, which are at most the first two.
+     */
+    public GifClassifier(final int parallelism, final boolean countAllFrames) {
+        mPool = new ForkJoinPool(parallelism);
+        mCountAllFrames = countAllFrames;
+    }
+
+    /**
+     * Classifies a single file on the calling thread
+     *
+     * @param file the file to classify
+     * @return the information, or null if the file is not a GIF
+     * @throws IOException on read error
+     */
+    public ImageInfo classify(final File file) throws IOException {
+        final FileInputStream stream = new FileInputStream(file);
+        try {
+            final GifParser parser = new GifParser.ChannelParser(stream.getChannel(), 0, -1);
+            final GifIndex index;
+            if (mCountAllFrames) {
+                index = parser.readIndex();
+                if (index == null) {
+                    return null;
+                }
+            } else {
+                if (!parser.readHeader()) {
+                    return null;
+                }
+                parser.readFrames(2);
+                index = null;
+            }
+            return new ImageInfo(ImageFormat.GIF,
+                    parser.getWidth(),
+                    parser.getHeight(),
+                    parser.getFrameCount(),
+                    parser.getLoopCount(),
+                    parser.getDuration(),
+                    index);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Builds the frame index of a single file on the calling thread
+     *
+     * @param file the file to index
+     * @return the index, or null if the file is not a GIF
+     * @throws IOException on read error
+     */
+    public static GifIndex index(final File file) throws IOException {
+        final FileInputStream stream = new FileInputStream(file);
+        try {
+            return new GifParser.ChannelParser(stream.getChannel(), 0, -1).readIndex();
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Classifies the file, or all files in the directory and its subdirectories. Symbolic
+     * links to directories are not followed. Blocks until all files are classified.
+     *
+     * @param fileOrDirectory the file or directory to classify
+     * @param callback        receives the result for every file
+     */
+    public void classifyAll(final File fileOrDirectory, final Callback callback) {
+        mPool.invoke(new ClassifyTask(new File[]{fileOrDirectory}, 0, 1, callback));
+    }
+
+    /**
+     * Classifies the files and all files in the directories and their subdirectories. Blocks
+     * until all files are classified.
+     *
+     * @param files    the files or directories to classify
+     * @param callback receives the result for every file
+     */
+    public void classifyAll(final Collection<File> files, final Callback callback) {
+        final File[] array = files.toArray(new File[files.size()]);
+        mPool.invoke(new ClassifyTask(array, 0, array.length, callback));
+    }
+
+    /**
+     * Stops the threads. The classifier can not be used after this call.
+     */
+    public void shutdown() {
+        mPool.shutdown();
+    }
+
+    /**
+     * Splits the range of entries until it is small enough, then classifies files and forks a
+     * task for the content of every directory
+     */
+    private final class ClassifyTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File[] mFiles;
+        private final int mFrom;
+        private final int mTo;
+        private final Callback mCallback;
+
+        ClassifyTask(final File[] files, final int from, final int to, final Callback callback) {
+            mFiles = files;
+            mFrom = from;
+            mTo = to;
+            mCallback = callback;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > FILES_PER_TASK) {
+                final int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new ClassifyTask(mFiles, mFrom, middle, mCallback),
+                        new ClassifyTask(mFiles, middle, mTo, mCallback));
+                return;
+            }
+            List<ClassifyTask> subtasks = null;
+            for (int i = mFrom; i < mTo; i++) {
+                final File file = mFiles[i];
+                if (file.isDirectory()) {
+                    if (Files.isSymbolicLink(file.toPath())) {
+                        continue;
+                    }
+                    final File[] children = file.listFiles();
+                    if (children != null && children.length != 0) {
+                        final ClassifyTask task = new ClassifyTask(children, 0, children.length,
+                                mCallback);
+                        task.fork();
+                        if (subtasks == null) {
+                            subtasks = new ArrayList<ClassifyTask>();
+                        }
+                        subtasks.add(task);
+                    }
+                } else {
+                    classifyFile(file);
+                }
+            }
+            if (subtasks != null) {
+                for (final ClassifyTask task : subtasks) {
+                    task.join();
+                }
+            }
+        }
+
+        private void classifyFile(final File file) {
+            final ImageInfo info;
+            try {
+                info = classify(file);
+            } catch (IOException e) {
+                mCallback.onFailed(file, e);
+                return;
+            }
+            mCallback.onClassified(file, info);
+        }
+    }
+}
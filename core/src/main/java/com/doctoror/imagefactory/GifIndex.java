@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+/**
+ * Frame table of an animated GIF, built by walking the block structure without decoding the
+ * LZW image data. Every frame is described by primitive arrays, so an index of a thousand
+ * frames takes about 25 KiB. Frames can be located in the data, and the animation timeline
+ * computed, without decoding anything.
+ */
+public final class GifIndex {
+
+    /**
+     * Disposal method is not specified, the decoder does not dispose
+     */
+    public static final int DISPOSAL_UNSPECIFIED = 0;
+
+    /**
+     * The frame is left in place
+     */
+    public static final int DISPOSAL_NONE = 1;
+
+    /**
+     * The frame rectangle is restored to the background color
+     */
+    public static final int DISPOSAL_RESTORE_BACKGROUND = 2;
+
+    /**
+     * The frame rectangle is restored to what it was before the frame was drawn
+     */
+    public static final int DISPOSAL_RESTORE_PREVIOUS = 3;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mLoopCount;
+    private final int mFrameCount;
+    private final int mDuration;
+
+    /**
+     * Offset of the image separator of every frame
+     */
+    private final long[] mOffsets;
+
+    /**
+     * Length from the image separator to the end of the image data of every frame
+     */
+    private final int[] mLengths;
+
+    /**
+     * Delay of every frame in milliseconds
+     */
+    private final int[] mDelays;
+
+    private final byte[] mDisposals;
+
+    /**
+     * Two ints for every frame, left in high and top in low 16 bits, then width and height
+     */
+    private final int[] mRects;
+
+    private GifIndex(final Builder builder, final int width, final int height,
+            final int loopCount) {
+        mWidth = width;
+        mHeight = height;
+        mLoopCount = loopCount;
+        mFrameCount = builder.mCount;
+        mOffsets = copyOf(builder.mOffsets, mFrameCount);
+        mLengths = copyOf(builder.mLengths, mFrameCount);
+        mDelays = copyOf(builder.mDelays, mFrameCount);
+        mDisposals = copyOf(builder.mDisposals, mFrameCount);
+        mRects = copyOf(builder.mRects, mFrameCount * 2);
+        int duration = 0;
+        for (int i = 0; i < mFrameCount; i++) {
+            duration += mDelays[i];
+        }
+        mDuration = duration;
+    }
+
+    /**
+     * @return logical screen width
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return logical screen height
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return NETSCAPE2.0 loop count, 0 means infinite. 1 if there is no loop extension
+     */
+    public int getLoopCount() {
+        return mLoopCount;
+    }
+
+    /**
+     * @return number of frames
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return sum of the frame delays in milliseconds
+     */
+    public int getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * @param frame the frame index
+     * @return offset of the image separator of the frame from the beginning of the image data
+     */
+    public long getFrameOffset(final int frame) {
+        return mOffsets[frame];
+    }
+
+    /**
+     * @param frame the frame index
+     * @return offset from the beginning of the image data right after the image data of the
+     * frame, which is the length of the data needed to decode the frame
+     */
+    public long getFrameEnd(final int frame) {
+        return mOffsets[frame] + mLengths[frame];
+    }
+
+    /**
+     * @param frame the frame index
+     * @return delay of the frame in milliseconds as declared by the Graphic Control Extension
+     */
+    public int getFrameDelay(final int frame) {
+        return mDelays[frame];
+    }
+
+    /**
+     * @param frame the frame index
+     * @return one of the DISPOSAL_ constants, or a reserved value as declared
+     */
+    public int getFrameDisposal(final int frame) {
+        return mDisposals[frame];
+    }
+
+    /**
+     * @param frame the frame index
+     * @return left edge of the frame rectangle
+     */
+    public int getFrameLeft(final int frame) {
+        return mRects[frame * 2] >>> 16;
+    }
+
+    /**
+     * @param frame the frame index
+     * @return top edge of the frame rectangle
+     */
+    public int getFrameTop(final int frame) {
+        return mRects[frame * 2] & 0xffff;
+    }
+
+    /**
+     * @param frame the frame index
+     * @return width of the frame rectangle
+     */
+    public int getFrameWidth(final int frame) {
+        return mRects[frame * 2 + 1] >>> 16;
+    }
+
+    /**
+     * @param frame the frame index
+     * @return height of the frame rectangle
+     */
+    public int getFrameHeight(final int frame) {
+        return mRects[frame * 2 + 1] & 0xffff;
+    }
+
+    /**
+     * Finds the frame displayed at time since the start of the animation, taking the loop count
+     * into account. After the last loop the last frame stays displayed.
+     *
+     * @param timeMillis time since the start of the animation
+     * @return the frame index, or -1 if there are no frames
+     */
+    public int getFrameAt(final long timeMillis) {
+        if (mFrameCount == 0) {
+            return -1;
+        }
+        if (mDuration <= 0 || timeMillis < 0) {
+            return 0;
+        }
+        final long loop = timeMillis / mDuration;
+        if (mLoopCount != 0 && loop >= mLoopCount) {
+            return mFrameCount - 1;
+        }
+        long time = timeMillis % mDuration;
+        for (int i = 0; i < mFrameCount; i++) {
+            time -= mDelays[i];
+            if (time < 0) {
+                return i;
+            }
+        }
+        return mFrameCount - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "GifIndex{" +
+                "width=" + mWidth +
+                ", height=" + mHeight +
+                ", frameCount=" + mFrameCount +
+                ", loopCount=" + mLoopCount +
+                ", duration=" + mDuration +
+                '}';
+    }
+
+    private static long[] copyOf(final long[] array, final int length) {
+        final long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static int[] copyOf(final int[] array, final int length) {
+        final int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static byte[] copyOf(final byte[] array, final int length) {
+        final byte[] copy = new byte[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Collects the frames while {@link GifParser} walks the blocks
+     */
+    static final class Builder {
+
+        private long[] mOffsets = new long[16];
+        private int[] mLengths = new int[16];
+        private int[] mDelays = new int[16];
+        private byte[] mDisposals = new byte[16];
+        private int[] mRects = new int[32];
+        private int mCount;
+
+        void addFrame(final long offset,
+                final int length,
+                final int delay,
+                final int disposal,
+                final int left,
+                final int top,
+                final int width,
+                final int height) {
+            if (mCount == mOffsets.length) {
+                final int capacity = mCount * 2;
+                mOffsets = grow(mOffsets, capacity);
+                mLengths = grow(mLengths, capacity);
+                mDelays = grow(mDelays, capacity);
+                mDisposals = grow(mDisposals, capacity);
+                mRects = grow(mRects, capacity * 2);
+            }
+            mOffsets[mCount] = offset;
+            mLengths[mCount] = length;
+            mDelays[mCount] = delay;
+            mDisposals[mCount] = (byte) disposal;
+            mRects[mCount * 2] = left << 16 | top;
+            mRects[mCount * 2 + 1] = width << 16 | height;
+            mCount++;
+        }
+
+        GifIndex build(final int width, final int height, final int loopCount) {
+            return new GifIndex(this, width, height, loopCount);
+        }
+
+        private static long[] grow(final long[] array, final int capacity) {
+            final long[] grown = new long[capacity];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        private static int[] grow(final int[] array, final int capacity) {
+            final int[] grown = new int[capacity];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        private static byte[] grow(final byte[] array, final int capacity) {
+            final byte[] grown = new byte[capacity];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Walks GIF header and extension blocks. The subclasses read the data by index where possible,
+ * so sniffing a byte array or a {@link ByteBuffer} does not allocate any intermediate buffers.
+ * <p>
+ * Data that ends inside a block fails with a truncated {@link MalformedImageException}. Data
+ * that ends where the next block or the trailer is expected is accepted as the end of the GIF.
+ * The number of bytes and blocks walked is limited, so crafted data fails fast as well.
+ */
+abstract class GifParser {
+
+    /**
+     * Default for {@link #sMaxScanBytes}
+     */
+    static final long DEFAULT_MAX_SCAN_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Default for {@link #sMaxScanBlocks}
+     */
+    static final int DEFAULT_MAX_SCAN_BLOCKS = 4 * 1024 * 1024;
+
+    private static final byte[] NETSCAPE = {
+            'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0'
+    };
+
+    /**
+     * Maximum number of bytes a parser walks, read by parsers created afterwards
+     */
+    static volatile long sMaxScanBytes = DEFAULT_MAX_SCAN_BYTES;
+
+    /**
+     * Maximum number of blocks and sub-blocks a parser walks, read by parsers created afterwards
+     */
+    static volatile int sMaxScanBlocks = DEFAULT_MAX_SCAN_BLOCKS;
+
+    private final long mMaxBytes = sMaxScanBytes;
+    private final int mMaxBlocks = sMaxScanBlocks;
+    private int mBlockCount;
+
+    private boolean mGif;
+    private int mWidth;
+    private int mHeight;
+    private int mFrameCount;
+    private int mLoopCount = 1;
+    private int mDuration;
+
+    /**
+     * Collects the frames when the index is built by {@link #readIndex()}
+     */
+    private GifIndex.Builder mIndexBuilder;
+
+    /**
+     * Delay and disposal of the last Graphic Control Extension, applied to the next frame
+     */
+    private int mFrameDelay;
+    private int mFrameDisposal;
+
+    /**
+     * False once a frame with a transparent color or a frame not covering the logical screen
+     * was read
+     */
+    private boolean mOpaque = true;
+
+    /**
+     * Reads next byte
+     *
+     * @return next byte as unsigned int or -1 if the end of data is reached
+     */
+    abstract int read() throws IOException;
+
+    /**
+     * Skips count bytes, or up to the end of data if there are fewer left
+     */
+    abstract void skip(int count) throws IOException;
+
+    /**
+     * @return number of bytes read or skipped since the beginning of the image data
+     */
+    abstract long getPosition();
+
+    /**
+     * Detects animated GIF. Only a second image descriptor makes the GIF animated, a Graphic
+     * Control Extension or an application extension alone does not.
+     *
+     * @return true, if the content is an animated gif. False if not a gif or not animated
+     */
+    final boolean isAnimated() throws IOException {
+        return countFrames(2) > 1;
+    }
+
+    /**
+     * Counts image descriptors, skipping the image data sub-blocks. Logical screen size, loop
+     * count and total duration of the counted frames are collected along the way.
+     *
+     * @param limit stop counting when this number of frames is reached
+     * @return number of frames found, up to limit. 0 if not a gif
+     */
+    final int countFrames(final int limit) throws IOException {
+        return readHeader() ? readFrames(limit) : 0;
+    }
+
+    /**
+     * Reads GIF signature, logical screen descriptor and global color table
+     *
+     * @return true if the signature and version are valid
+     */
+    final boolean readHeader() throws IOException {
+        if (read() != 'G' || read() != 'I' || read() != 'F') {
+            return false;
+        }
+
+        final int v1 = read();
+        final int v2 = read();
+        final int v3 = read();
+
+        if (v1 != '8' || (v2 != '7' && v2 != '9') || v3 != 'a') {
+            return false;
+        }
+        mGif = true;
+
+        mWidth = readShort(); // logical screen width
+        mHeight = readShort(); // logical screen height
+
+        final int flags = readByte();
+
+        skipBytes(1); // background color index
+        skipBytes(1); // aspect ratio byte
+
+        skipColorTable(flags);
+        return true;
+    }
+
+    /**
+     * Counts image descriptors following the header read by {@link #readHeader()}
+     *
+     * @param limit stop counting when this number of frames is reached
+     * @return number of frames found, up to limit
+     */
+    final int readFrames(final int limit) throws IOException {
+        while (mFrameCount < limit) {
+            countBlock();
+            // The end of data is accepted in place of the trailer
+            switch (read()) {
+                case 0x2c:
+                    // an image block
+                    mFrameCount++;
+                    if (mFrameCount < limit) {
+                        if (mIndexBuilder != null) {
+                            indexImage();
+                        } else {
+                            skipImage();
+                        }
+                    }
+                    break;
+
+                case 0x21:
+                    // extension
+                    switch (readByte()) {
+                        case 0xf9:
+                            readGraphicControlExtension();
+                            break;
+
+                        case 0xff:
+                            readApplicationExtension();
+                            break;
+
+                        case 0xfe:// comment extension
+                        case 0x01:// plain text extension
+                        default: // uninteresting extension
+                            skipBlocks();
+                            break;
+                    }
+                    break;
+
+                case 0x3b: // terminator
+                default:
+                    return mFrameCount;
+            }
+        }
+        return mFrameCount;
+    }
+
+    /**
+     * Reads all frames and builds the frame index
+     *
+     * @return the index, or null if not a gif
+     */
+    final GifIndex readIndex() throws IOException {
+        if (!readHeader()) {
+            return null;
+        }
+        mIndexBuilder = new GifIndex.Builder();
+        try {
+            readFrames(Integer.MAX_VALUE);
+            return mIndexBuilder.build(mWidth, mHeight, mLoopCount);
+        } finally {
+            mIndexBuilder = null;
+        }
+    }
+
+    /**
+     * Reads frames following the header read by {@link #readHeader()} up to and including the
+     * image data of the frame at index. Nothing after that frame is read.
+     *
+     * @param index the frame index
+     * @return true if the frame was found, then {@link #getPosition()} is the end of the frame
+     */
+    final boolean skipToFrameEnd(final int index) throws IOException {
+        if (readFrames(index + 1) <= index) {
+            return false;
+        }
+        skipImage();
+        return true;
+    }
+
+    /**
+     * @return true if {@link #readHeader()} found a valid GIF header
+     */
+    final boolean isGif() {
+        return mGif;
+    }
+
+    /**
+     * @return logical screen width, valid after {@link #countFrames(int)} found a gif
+     */
+    final int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return logical screen height, valid after {@link #countFrames(int)} found a gif
+     */
+    final int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return number of frames found by the last {@link #countFrames(int)} call
+     */
+    final int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return NETSCAPE2.0 loop count, 0 means infinite. 1 if there is no loop extension
+     */
+    final int getLoopCount() {
+        return mLoopCount;
+    }
+
+    /**
+     * @return sum of Graphic Control Extension delays in milliseconds, as declared
+     */
+    final int getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * @return true if every frame read so far covers the logical screen and has no transparent
+     * color. Image blocks are read fully only for frames before the counting limit.
+     */
+    final boolean isOpaque() {
+        return mOpaque;
+    }
+
+    private void readGraphicControlExtension() throws IOException {
+        final int blockSize = readByte();
+        if (blockSize == 4) {
+            final int flags = readByte(); // packed fields
+            mFrameDisposal = flags >> 2 & 7;
+            if ((flags & 1) != 0) {
+                mOpaque = false; // transparent color flag
+            }
+            mFrameDelay = readShort() * 10; // delay in 1/100 of a second
+            mDuration += mFrameDelay;
+            skipBytes(1); // transparent color index
+            skipBlocks();
+        } else if (blockSize > 0) {
+            skipBytes(blockSize);
+            skipBlocks();
+        }
+    }
+
+    private void readApplicationExtension() throws IOException {
+        final int blockSize = readByte();
+        if (blockSize == 0) {
+            return;
+        }
+        final boolean netscape;
+        if (blockSize == NETSCAPE.length) {
+            netscape = readMatches(NETSCAPE);
+        } else {
+            netscape = false;
+            skipBytes(blockSize);
+        }
+        int subBlockSize;
+        while ((subBlockSize = readByte()) > 0) {
+            countBlock();
+            if (netscape && subBlockSize >= 3 && readByte() == 1) {
+                mLoopCount = readShort();
+                skipBytes(subBlockSize - 3);
+            } else {
+                skipBytes(subBlockSize - (netscape && subBlockSize >= 3 ? 1 : 0));
+            }
+        }
+    }
+
+    /**
+     * Reads expected.length bytes and compares them with expected
+     */
+    private boolean readMatches(final byte[] expected) throws IOException {
+        boolean matches = true;
+        for (final byte b : expected) {
+            if (readByte() != b) {
+                matches = false;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Reads next byte inside a block
+     *
+     * @return next byte as unsigned int
+     * @throws MalformedImageException if the end of data is reached
+     */
+    private int readByte() throws IOException {
+        final int b = read();
+        if (b == -1) {
+            throw truncated();
+        }
+        return b;
+    }
+
+    /**
+     * Reads little endian unsigned 16-bit value
+     */
+    private int readShort() throws IOException {
+        return readByte() | (readByte() << 8);
+    }
+
+    /**
+     * Skips count bytes inside a block
+     *
+     * @throws MalformedImageException if the end of data is reached
+     */
+    private void skipBytes(final int count) throws IOException {
+        final long end = getPosition() + count;
+        skip(count);
+        if (getPosition() < end) {
+            throw truncated();
+        }
+    }
+
+    /**
+     * Counts a block or sub-block against the scan limits
+     *
+     * @throws MalformedImageException if a limit is exceeded
+     */
+    private void countBlock() throws MalformedImageException {
+        if (++mBlockCount > mMaxBlocks) {
+            throw new MalformedImageException(
+                    "More than " + mMaxBlocks + " blocks", getPosition(), false);
+        }
+        if (getPosition() > mMaxBytes) {
+            throw new MalformedImageException(
+                    "More than " + mMaxBytes + " bytes", getPosition(), false);
+        }
+    }
+
+    private MalformedImageException truncated() {
+        return new MalformedImageException("Unexpected end of data", getPosition(), true);
+    }
+
+    /**
+     * Skips the rest of an image block after its separator
+     */
+    private void skipImage() throws IOException {
+        checkImageRect(readShort(), readShort(), readShort(), readShort());
+        skipColorTable(readByte());
+        skipBytes(1); // LZW minimum code size
+        skipBlocks();
+    }
+
+    /**
+     * Clears the opaque flag if the frame leaves part of the logical screen uncovered
+     */
+    private void checkImageRect(final int left,
+            final int top,
+            final int width,
+            final int height) {
+        if (left != 0 || top != 0 || width < mWidth || height < mHeight) {
+            mOpaque = false;
+        }
+    }
+
+    /**
+     * Reads the image descriptor after its separator and skips the rest of the image block,
+     * then adds the frame to the index
+     */
+    private void indexImage() throws IOException {
+        final long start = getPosition() - 1;
+        final int left = readShort();
+        final int top = readShort();
+        final int width = readShort();
+        final int height = readShort();
+        checkImageRect(left, top, width, height);
+        skipColorTable(readByte());
+        skipBytes(1); // LZW minimum code size
+        skipBlocks();
+        mIndexBuilder.addFrame(start, (int) (getPosition() - start), mFrameDelay,
+                mFrameDisposal, left, top, width, height);
+        mFrameDelay = 0;
+        mFrameDisposal = 0;
+    }
+
+    /**
+     * Skips global or local color table if the packed fields flag says it is present
+     */
+    private void skipColorTable(final int flags) throws IOException {
+        if ((flags & 0x80) != 0) {
+            // First three bits = (BPP - 1)
+            skipBytes((1 << ((flags & 7) + 1)) * 3);
+        }
+    }
+
+    /**
+     * Skips variable length blocks up to and including next zero length block.
+     */
+    private void skipBlocks() throws IOException {
+        int blockSize;
+        do {
+            blockSize = readByte();
+            if (blockSize > 0) {
+                countBlock();
+                skipBytes(blockSize);
+            }
+        } while (blockSize > 0);
+    }
+
+    /**
+     * Reads byte array range by index
+     */
+    static final class ArrayParser extends GifParser {
+
+        private final byte[] mData;
+        private final int mStart;
+        private final int mLimit;
+        private int mPosition;
+
+        ArrayParser(final byte[] data, final int offset, final int length) {
+            mData = data;
+            mStart = offset;
+            mPosition = offset;
+            mLimit = offset + length;
+        }
+
+        @Override
+        int read() {
+            return mPosition < mLimit ? mData[mPosition++] & 0xff : -1;
+        }
+
+        @Override
+        void skip(final int count) {
+            mPosition = Math.min(mLimit, mPosition + count);
+        }
+
+        @Override
+        long getPosition() {
+            return mPosition - mStart;
+        }
+    }
+
+    /**
+     * Reads ByteBuffer content between position and limit by absolute index, so the buffer
+     * position is not modified
+     */
+    static final class BufferParser extends GifParser {
+
+        private final ByteBuffer mBuffer;
+        private final int mStart;
+        private final int mLimit;
+        private int mPosition;
+
+        BufferParser(final ByteBuffer buffer) {
+            mBuffer = buffer;
+            mStart = buffer.position();
+            mPosition = mStart;
+            mLimit = buffer.limit();
+        }
+
+        @Override
+        int read() {
+            return mPosition < mLimit ? mBuffer.get(mPosition++) & 0xff : -1;
+        }
+
+        @Override
+        void skip(final int count) {
+            mPosition = Math.min(mLimit, mPosition + count);
+        }
+
+        @Override
+        long getPosition() {
+            return mPosition - mStart;
+        }
+    }
+
+    /**
+     * Reads a region of a file with positional reads through a small window, so the channel
+     * position and the underlying file descriptor offset are not modified. Skipped bytes are not
+     * read at all.
+     */
+    static final class ChannelParser extends GifParser {
+
+        private static final int WINDOW_SIZE = 4096;
+
+        private final FileChannel mChannel;
+        private final long mStart;
+        private final long mLimit;
+        private final ByteBuffer mWindow = ByteBuffer.allocate(WINDOW_SIZE);
+
+        private long mWindowStart;
+        private long mPosition;
+
+        /**
+         * @param channel the channel to read
+         * @param offset  absolute position where the image data begins
+         * @param length  the number of bytes to read, or -1 to read up to the end of file
+         */
+        ChannelParser(final FileChannel channel, final long offset, final long length)
+                throws IOException {
+            mChannel = channel;
+            mStart = offset;
+            mPosition = offset;
+            mLimit = length < 0 ? channel.size() : offset + length;
+            mWindow.limit(0);
+        }
+
+        @Override
+        int read() throws IOException {
+            if (mPosition >= mLimit) {
+                return -1;
+            }
+            if (mPosition < mWindowStart || mPosition >= mWindowStart + mWindow.limit()) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            return mWindow.get((int) (mPosition++ - mWindowStart)) & 0xff;
+        }
+
+        @Override
+        void skip(final int count) {
+            mPosition = Math.min(mLimit, mPosition + count);
+        }
+
+        @Override
+        long getPosition() {
+            return mPosition - mStart;
+        }
+
+        private boolean fill() throws IOException {
+            mWindow.clear();
+            mWindow.limit((int) Math.min(WINDOW_SIZE, mLimit - mPosition));
+            mWindowStart = mPosition;
+            while (mWindow.hasRemaining()) {
+                if (mChannel.read(mWindow, mPosition + mWindow.position()) == -1) {
+                    break;
+                }
+            }
+            mWindow.flip();
+            return mWindow.hasRemaining();
+        }
+    }
+
+    /**
+     * Reads InputStream
+     */
+    static final class StreamParser extends GifParser {
+
+        private final InputStream mStream;
+        private long mPosition;
+
+        StreamParser(final InputStream stream) {
+            mStream = stream;
+        }
+
+        @Override
+        int read() throws IOException {
+            final int b = mStream.read();
+            if (b != -1) {
+                mPosition++;
+            }
+            return b;
+        }
+
+        @Override
+        void skip(final int count) throws IOException {
+            try {
+                int n = 0;
+                while (n < count) {
+                    final long skipped = mStream.skip(count - n);
+                    if (skipped > 0) {
+                        n += skipped;
+                        mPosition += skipped;
+                    } else if (mStream.read() != -1) {
+                        // skip() is allowed to skip nothing before the end is reached
+                        n++;
+                        mPosition++;
+                    } else {
+                        // The end of data, checked by the caller
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                final IOException formatError = new IOException("Format error " + e);
+                formatError.initCause(e);
+                throw formatError;
+            }
+        }
+
+        @Override
+        long getPosition() {
+            return mPosition;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+/**
+ * Image container format detected by {@code ImageFactory.probe()} and {@link GifClassifier}
+ */
+public enum ImageFormat {
+
+    GIF("image/gif"),
+    PNG("image/png"),
+    JPEG("image/jpeg"),
+    WEBP("image/webp"),
+    BMP("image/bmp"),
+    UNKNOWN(null);
+    private final String mMimeType;
+
+    ImageFormat(final String mimeType) {
+        mMimeType = mimeType;
+    }
+
+    /**
+     * @return MIME type of this format, or null for {@link #UNKNOWN}
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * Returns format for MIME type as reported by
+     * {@code android.graphics.BitmapFactory.Options#outMimeType}
+     *
+     * @param mimeType the MIME type
+     * @return format for MIME type or {@link #UNKNOWN}
+     */
+    static ImageFormat fromMimeType(final String mimeType) {
+        if (mimeType != null) {
+            if ("image/x-ms-bmp".equals(mimeType)) {
+                return BMP;
+            }
+            for (final ImageFormat format : values()) {
+                if (mimeType.equals(format.mMimeType)) {
+                    return format;
+                }
+            }
+        }
+        return UNKNOWN;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+/**
+ * Immutable image information read from image headers by {@code ImageFactory.probe()} and
+ * {@link GifClassifier}
+ */
+public final class ImageInfo {
+
+    /**
+     * Bytes per pixel of {@code Bitmap.Config.ARGB_8888}
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+    private final ImageFormat mFormat;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameCount;
+    private final int mLoopCount;
+    private final int mDuration;
+
+    private final GifIndex mGifIndex;
+
+    ImageInfo(final ImageFormat format,
+            final int width,
+            final int height,
+            final int frameCount,
+            final int loopCount,
+            final int duration) {
+        this(format, width, height, frameCount, loopCount, duration, null);
+    }
+
+    ImageInfo(final ImageFormat format,
+            final int width,
+            final int height,
+            final int frameCount,
+            final int loopCount,
+            final int duration,
+            final GifIndex gifIndex) {
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mFrameCount = frameCount;
+        mLoopCount = loopCount;
+        mDuration = duration;
+        mGifIndex = gifIndex;
+    }
+
+    /**
+     * @return detected image format
+     */
+    public ImageFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return image width, or logical screen width for GIF
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return image height, or logical screen height for GIF
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return number of frames, 1 for static images
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return true if the image has more than one frame
+     */
+    public boolean isAnimated() {
+        return mFrameCount > 1;
+    }
+
+    /**
+     * @return number of times the animation is played, 0 means infinite
+     */
+    public int getLoopCount() {
+        return mLoopCount;
+    }
+
+    /**
+     * @return duration of a single animation loop in milliseconds as declared by the frame
+     * delays, 0 for static images
+     */
+    public int getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * @return the frame index if it was built by the scan that returned this info, like
+     * {@link GifClassifier} counting all frames, or null
+     */
+    public GifIndex getGifIndex() {
+        return mGifIndex;
+    }
+
+    /**
+     * Returns estimated number of bytes the decoded Drawable will allocate, assuming
+     * {@code Bitmap.Config.ARGB_8888}. Animated GIF needs one additional byte
+     * per pixel for the native frame raster.
+     *
+     * @return estimated decoded byte size
+     */
+    public long getByteCount() {
+        final long pixels = (long) mWidth * mHeight;
+        return isAnimated() ? pixels * (BYTES_PER_PIXEL + 1) : pixels * BYTES_PER_PIXEL;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final ImageInfo imageInfo = (ImageInfo) o;
+        return mWidth == imageInfo.mWidth
+                && mHeight == imageInfo.mHeight
+                && mFrameCount == imageInfo.mFrameCount
+                && mLoopCount == imageInfo.mLoopCount
+                && mDuration == imageInfo.mDuration
+                && mFormat == imageInfo.mFormat;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mFormat.hashCode();
+        result = 31 * result + mWidth;
+        result = 31 * result + mHeight;
+        result = 31 * result + mFrameCount;
+        result = 31 * result + mLoopCount;
+        result = 31 * result + mDuration;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageInfo{" +
+                "format=" + mFormat +
+                ", width=" + mWidth +
+                ", height=" + mHeight +
+                ", frameCount=" + mFrameCount +
+                ", loopCount=" + mLoopCount +
+                ", duration=" + mDuration +
+                '}';
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import java.io.IOException;
+
+/**
+ * Thrown when image data ends inside a block or when walking it exceeds the scan limits
+ */
+public class MalformedImageException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long mOffset;
+    private final boolean mTruncated;
+
+    /**
+     * @param message   the detail message
+     * @param offset    the offset into the image data where the error was found
+     * @param truncated true if the data ended inside a block
+     */
+    public MalformedImageException(final String message,
+            final long offset,
+            final boolean truncated) {
+        super(message + " at offset " + offset);
+        mOffset = offset;
+        mTruncated = truncated;
+    }
+
+    /**
+     * @return the offset into the image data where the error was found
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Returns whether the data ended inside a block. Incomplete downloads fail this way, and a
+     * decoder may still be able to show the frames before the offset.
+     *
+     * @return true if the data is truncated, false if the scan limits were exceeded
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+}
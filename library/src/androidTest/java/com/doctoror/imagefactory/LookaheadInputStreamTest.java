@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * In the library package, since {@link LookaheadInputStream} is package-private
+ */
+public final class LookaheadInputStreamTest extends TestCase {
+
+    public void testLimit() throws Throwable {
+        final LookaheadInputStream is = new LookaheadInputStream(
+                new ByteArrayInputStream(data(16)), 8);
+        final byte[] buffer = new byte[16];
+        assertEquals(8, is.read(buffer, 0, 16));
+        assertEquals(-1, is.read());
+        assertTrue(is.isLimitReached());
+
+        is.rewind();
+        assertEquals(0, is.read());
+    }
+
+    public void testRewindAfterStopRecording() throws Throwable {
+        final byte[] data = data(16);
+        final LookaheadInputStream is = new LookaheadInputStream(
+                new ByteArrayInputStream(data), 8);
+        assertEquals(4, is.skip(4));
+        is.rewind();
+        is.stopRecording();
+
+        // The recorded bytes can still be replayed again
+        assertEquals(0, is.read());
+        is.rewind();
+        final byte[] buffer = new byte[16];
+        assertEquals(4, is.read(buffer, 0, 16));
+
+        // Then the wrapped stream is read past the limit, which can not be rewound
+        assertEquals(12, is.read(buffer, 4, 12));
+        assertEquals(-1, is.read());
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], buffer[i]);
+        }
+        try {
+            is.rewind();
+            fail("rewind() after reading past the recorded bytes must throw");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] data(final int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+}
@@ -16,19 +16,65 @@
 
 package com.doctoror.imagefactory.test;
 
+import com.doctoror.imagefactory.BitmapPool;
+import com.doctoror.imagefactory.ClockedGifDrawable;
+import com.doctoror.imagefactory.DecodeCallback;
+import com.doctoror.imagefactory.DecodeEvent;
+import com.doctoror.imagefactory.DecodeMode;
+import com.doctoror.imagefactory.DecodeOptions;
+import com.doctoror.imagefactory.DecodePriority;
+import com.doctoror.imagefactory.DecodeRequest;
+import com.doctoror.imagefactory.DecodeResult;
+import com.doctoror.imagefactory.DecodeStats;
+import com.doctoror.imagefactory.DrawableCache;
+import com.doctoror.imagefactory.DrawableDecoder;
+import com.doctoror.imagefactory.FormatDetector;
+import com.doctoror.imagefactory.GifClock;
+import com.doctoror.imagefactory.GifIndex;
+import com.doctoror.imagefactory.GifMemoryBudget;
 import com.doctoror.imagefactory.ImageFactory;
+import com.doctoror.imagefactory.ImageFormat;
+import com.doctoror.imagefactory.ImageInfo;
+import com.doctoror.imagefactory.ImageSource;
+import com.doctoror.imagefactory.LazyDrawable;
+import com.doctoror.imagefactory.MalformedImageException;
+import com.doctoror.imagefactory.ProbeIndex;
+import com.doctoror.imagefactory.ScalePolicy;
+import com.doctoror.imagefactory.SharedGifDrawable;
 
 import android.content.Context;
 import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.support.annotation.NonNull;
 import android.test.InstrumentationTestCase;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import pl.droidsonroids.gif.GifDrawable;
 
@@ -93,6 +139,17 @@ public final class ImageFactoryTest extends InstrumentationTestCase {
         assertTrue(((GifDrawable) result).getLoopCount() == 1);
     }
 
+    public void testLoopOnceAnimatedGifAsAsset() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final Drawable result = ImageFactory.decodeAssetOrThrow(context.getResources(),
+                context.getAssets(), "loop_once.gif", null);
+        assertTrue(result instanceof GifDrawable);
+        assertTrue(((GifDrawable) result).getLoopCount() == 1);
+
+        assertTrue(ImageFactory.decodeAsset(context.getResources(), context.getAssets(),
+                "w3c_home.gif") instanceof BitmapDrawable);
+    }
+
     public void testLoopOnceAnimatedGifAsByteArray() throws Throwable {
         final Context context = getInstrumentation().getContext();
         final InputStream is1 = context.getAssets()
@@ -152,6 +209,956 @@ public final class ImageFactoryTest extends InstrumentationTestCase {
         assertTrue(((GifDrawable) result).getLoopCount() == 0);
     }
 
+    public void testStaticGifAsByteArrayRange() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final InputStream is1 = context.getAssets()
+                .open("w3c_home.gif", AssetManager.ACCESS_RANDOM);
+        final byte[] data;
+        try {
+            data = toByteArray(is1);
+        } finally {
+            is1.close();
+        }
+
+        final byte[] padded = new byte[data.length + 2];
+        System.arraycopy(data, 0, padded, 1, data.length);
+        assertFalse(ImageFactory.isAnimatedGif(padded, 1, data.length));
+        assertFalse(ImageFactory.isAnimatedGif(padded, 0, padded.length));
+    }
+
+    public void testLoopedAnimatedGifAsDirectByteBuffer() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final InputStream is1 = context.getAssets()
+                .open("w3c_home_animation.gif", AssetManager.ACCESS_RANDOM);
+        final byte[] data;
+        try {
+            data = toByteArray(is1);
+        } finally {
+            is1.close();
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 1);
+        buffer.put((byte) 0);
+        buffer.put(data);
+        buffer.position(1);
+
+        assertTrue(ImageFactory.isAnimatedGif(buffer));
+        assertEquals(1, buffer.position());
+
+        final Drawable result = ImageFactory.decodeByteBuffer(context.getResources(), buffer);
+        assertTrue(result instanceof GifDrawable);
+        assertTrue(((GifDrawable) result).getLoopCount() == 0);
+    }
+
+    public void testDecodeFile() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final File dir = getInstrumentation().getTargetContext().getCacheDir();
+        final File animated = new File(dir, "animated.gif");
+        final File still = new File(dir, "still.gif");
+        writeFile(animated, null, readAsset(context, "w3c_home_animation.gif"));
+        writeFile(still, null, readAsset(context, "w3c_home.gif"));
+        try {
+            final Drawable gif = ImageFactory.decodeFileOrThrow(context.getResources(),
+                    animated.getPath(), null);
+            assertTrue(gif instanceof GifDrawable);
+            assertTrue(((GifDrawable) gif).getNumberOfFrames() > 1);
+            ((GifDrawable) gif).recycle();
+            assertEquals(0, countOpenDescriptors(animated));
+
+            assertTrue(ImageFactory.decodeFileOrThrow(context.getResources(),
+                    still.getPath(), null) instanceof BitmapDrawable);
+            assertEquals(0, countOpenDescriptors(still));
+
+            assertNull(ImageFactory.decodeFile(context.getResources(),
+                    new File(dir, "missing.gif").getPath()));
+        } finally {
+            animated.delete();
+            still.delete();
+        }
+    }
+
+    public void testDecodeFileDescriptorWithOffset() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final File file = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "offset.gif");
+        final byte[] prefix = new byte[16];
+        writeFile(file, prefix, readAsset(context, "w3c_home_animation.gif"));
+        try {
+            final FileInputStream is = new FileInputStream(file);
+            try {
+                assertEquals(prefix.length, is.skip(prefix.length));
+                // GifDrawable reads a descriptor from offset 0, so this goes through a stream
+                final Drawable result = ImageFactory.decodeFileDescriptorOrThrow(
+                        context.getResources(), is.getFD(), null, null);
+                assertTrue(result instanceof GifDrawable);
+                assertTrue(((GifDrawable) result).getNumberOfFrames() > 1);
+                // The descriptor is owned by the caller and stays open
+                assertTrue(is.getFD().valid());
+            } finally {
+                is.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testSingleFrameGifWithExtensionsIsStatic() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final byte[] data = singleFrameGif();
+        assertFalse(ImageFactory.isAnimatedGif(data, 0, data.length));
+        assertEquals(1, ImageFactory.getGifFrameCount(data, 0, data.length));
+        assertTrue(ImageFactory
+                .decodeByteArray(context.getResources(), data) instanceof BitmapDrawable);
+    }
+
+    public void testStreamExceedingLookaheadLimit() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        // Comment extensions before the only frame take more than the lookahead limit
+        final byte[] gif = singleFrameGif();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(gif, 0, 19);
+        for (int i = 0; i < 64; i++) {
+            out.write(0x21);
+            out.write(0xfe);
+            out.write(255);
+            out.write(new byte[255], 0, 255);
+            out.write(0);
+        }
+        out.write(gif, 19, gif.length - 19);
+        final byte[] data = out.toByteArray();
+
+        final int limit = ImageFactory.getStreamLookaheadLimit();
+        final DecodeStats stats = new DecodeStats();
+        ImageFactory.setStreamLookaheadLimit(1024);
+        ImageFactory.setDecodeListener(stats);
+        try {
+            // Whether it is animated is not known within the limit, so it goes to GifDrawable
+            assertTrue(ImageFactory.decodeStreamOrThrow(context.getResources(),
+                    new ByteArrayInputStream(data), null, null) instanceof GifDrawable);
+        } finally {
+            ImageFactory.setDecodeListener(null);
+            ImageFactory.setStreamLookaheadLimit(limit);
+        }
+        assertEquals(1, stats.getCount(DecodeEvent.Path.GIF));
+        assertTrue(stats.getSniffBytes().getMax() <= 1024);
+        assertTrue(data.length > 16 * 1024);
+    }
+
+    public void testLoopedAnimatedGifFrameCount() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final InputStream is = context.getAssets()
+                .open("w3c_home_animation.gif", AssetManager.ACCESS_RANDOM);
+        final byte[] data;
+        try {
+            data = toByteArray(is);
+        } finally {
+            is.close();
+        }
+
+        final Drawable result = ImageFactory.decodeByteArray(context.getResources(), data);
+        assertTrue(result instanceof GifDrawable);
+        assertEquals(((GifDrawable) result).getNumberOfFrames(),
+                ImageFactory.getGifFrameCount(data, 0, data.length));
+    }
+
+    public void testProbe() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final AssetManager assets = context.getAssets();
+
+        final ImageInfo animated = ImageFactory.probeOrThrow(assets, "loop_once.gif");
+        assertEquals(ImageFormat.GIF, animated.getFormat());
+        assertTrue(animated.isAnimated());
+        assertEquals(1, animated.getLoopCount());
+
+        final ImageInfo looped = ImageFactory.probeOrThrow(assets, "w3c_home_animation.gif");
+        assertEquals(72, looped.getWidth());
+        assertEquals(48, looped.getHeight());
+        assertEquals(2, looped.getFrameCount());
+        assertEquals(0, looped.getLoopCount());
+
+        final InputStream is = assets.open("w3c_home.gif", AssetManager.ACCESS_RANDOM);
+        final ImageInfo info;
+        try {
+            info = ImageFactory.probeOrThrow(is);
+        } finally {
+            is.close();
+        }
+        assertEquals(ImageFormat.GIF, info.getFormat());
+        assertFalse(info.isAnimated());
+        assertEquals(72L * 48L * 4L, info.getByteCount());
+    }
+
+    public void testTargetSize() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final AssetManager assets = context.getAssets();
+
+        final DecodeOptions options = new DecodeOptions(36, 36, ScalePolicy.FIT);
+        final Drawable result = ImageFactory.decodeAssetOrThrow(context.getResources(), assets,
+                "w3c_home.gif", options);
+        assertTrue(result instanceof BitmapDrawable);
+        assertEquals(2, options.inSampleSize);
+        assertEquals(36, ((BitmapDrawable) result).getBitmap().getWidth());
+
+        final DecodeOptions fill = new DecodeOptions(36, 36, ScalePolicy.FILL);
+        final Drawable animated = ImageFactory.decodeAssetOrThrow(context.getResources(), assets,
+                "w3c_home_animation.gif", fill);
+        assertTrue(animated instanceof GifDrawable);
+        assertEquals(1, fill.inSampleSize);
+    }
+
+    public void testDrawableCache() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final AssetManager assets = context.getAssets();
+        final DrawableCache cache = new DrawableCache(16 * 1024 * 1024);
+        ImageFactory.setDrawableCache(cache);
+        try {
+            final Drawable first = ImageFactory.decodeAssetOrThrow(context.getResources(),
+                    assets, "w3c_home.gif", null);
+            final Drawable second = ImageFactory.decodeAssetOrThrow(context.getResources(),
+                    assets, "w3c_home.gif", null);
+            assertNotSame(first, second);
+            assertSame(((BitmapDrawable) first).getBitmap(),
+                    ((BitmapDrawable) second).getBitmap());
+            assertEquals(1, cache.hitCount());
+            assertEquals(1, cache.missCount());
+            assertEquals(DrawableCache.sizeOf(first), cache.size());
+
+            final Drawable gif1 = ImageFactory.decodeAssetOrThrow(context.getResources(),
+                    assets, "w3c_home_animation.gif", null);
+            final Drawable gif2 = ImageFactory.decodeAssetOrThrow(context.getResources(),
+                    assets, "w3c_home_animation.gif", null);
+            assertTrue(gif1 instanceof SharedGifDrawable);
+            assertSame(((SharedGifDrawable) gif1).getGifDrawable(),
+                    ((SharedGifDrawable) gif2).getGifDrawable());
+
+            cache.resize(1);
+            assertEquals(0, cache.size());
+            assertEquals(2, cache.evictionCount());
+        } finally {
+            ImageFactory.setDrawableCache(null);
+        }
+    }
+
+    public void testBitmapPool() throws Throwable {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // GIF can not be decoded into an existing Bitmap before KitKat
+            return;
+        }
+        final Context context = getInstrumentation().getContext();
+        final AssetManager assets = context.getAssets();
+        final BitmapPool pool = new BitmapPool(16 * 1024 * 1024);
+        ImageFactory.setBitmapPool(pool);
+        try {
+            final Drawable first = ImageFactory.decodeAssetOrThrow(context.getResources(),
+                    assets, "w3c_home.gif", null);
+            final Bitmap bitmap = ((BitmapDrawable) first).getBitmap();
+            assertTrue(bitmap.isMutable());
+            assertTrue(ImageFactory.release(first));
+            assertTrue(pool.size() > 0);
+
+            final Drawable second = ImageFactory.decodeAssetOrThrow(context.getResources(),
+                    assets, "w3c_home.gif", null);
+            assertSame(bitmap, ((BitmapDrawable) second).getBitmap());
+            assertEquals(1, pool.hitCount());
+            assertEquals(1, pool.missCount());
+            assertEquals(0, pool.size());
+        } finally {
+            ImageFactory.setBitmapPool(null);
+        }
+    }
+
+    public void testDecodeAsync() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final AssetManager assets = context.getAssets();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Drawable> result = new AtomicReference<Drawable>();
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+
+        final int threadCount = ImageFactory.getDecodeThreadCount();
+        ImageFactory.setDecodeThreadCount(1);
+        try {
+            final DecodeRequest first = ImageFactory.decodeAsync(context.getResources(),
+                    ImageSource.fromAsset(assets, "w3c_home_animation.gif"), null,
+                    new DecodeCallback() {
+
+                        @Override
+                        public void onDecoded(final Drawable drawable) {
+                            thread.set(Thread.currentThread());
+                            result.set(drawable);
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onDecodeFailed(final Exception e) {
+                            latch.countDown();
+                        }
+                    });
+
+            // Queued behind the first request on the single thread
+            final DecodeRequest cancelled = ImageFactory.decodeAsync(context.getResources(),
+                    ImageSource.fromAsset(assets, "w3c_home.gif"), null, DecodePriority.LOW,
+                    new DecodeCallback() {
+
+                        @Override
+                        public void onDecoded(final Drawable drawable) {
+                            fail("Cancelled request delivered result");
+                        }
+
+                        @Override
+                        public void onDecodeFailed(final Exception e) {
+                            fail("Cancelled request delivered error");
+                        }
+                    });
+            assertTrue(cancelled.cancel());
+
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertTrue(first.isDone());
+            assertTrue(result.get() instanceof GifDrawable);
+            assertSame(Looper.getMainLooper().getThread(), thread.get());
+            assertTrue(cancelled.isCancelled());
+            assertFalse(cancelled.cancel());
+        } finally {
+            ImageFactory.setDecodeThreadCount(threadCount);
+        }
+    }
+
+    public void testSharedDecode() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final Resources res = context.getResources();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger decodeCount = new AtomicInteger();
+        final DrawableDecoder decoder = new DrawableDecoder() {
+            @Override
+            public boolean canDecode(final byte[] header, final int length) {
+                return true;
+            }
+
+            @Override
+            public Drawable decode(final Resources res,
+                    final byte[] header,
+                    final int headerLength,
+                    final InputStream rest,
+                    final BitmapFactory.Options options) throws IOException {
+                decodeCount.incrementAndGet();
+                started.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                return new BitmapDrawable(res,
+                        Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+            }
+        };
+        final byte[] data = {'B', 'L', 'K', 0};
+        FormatDetector.register(new byte[]{'B', 'L', 'K'}, decoder);
+        try {
+            final AtomicReference<Drawable> first = new AtomicReference<Drawable>();
+            final AtomicReference<Drawable> second = new AtomicReference<Drawable>();
+            final Thread firstThread = new Thread() {
+                @Override
+                public void run() {
+                    first.set(ImageFactory.decodeByteArray(res, data));
+                }
+            };
+            final Thread secondThread = new Thread() {
+                @Override
+                public void run() {
+                    second.set(ImageFactory.decodeByteArray(res, data));
+                }
+            };
+            firstThread.start();
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            secondThread.start();
+            // Waits for the decode in progress instead of decoding
+            while (secondThread.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+
+            final DecodeRequest cancelled = ImageFactory.decodeAsync(res,
+                    ImageSource.fromByteArray(data), null, new DecodeCallback() {
+
+                        @Override
+                        public void onDecoded(final Drawable drawable) {
+                            fail("Cancelled request delivered result");
+                        }
+
+                        @Override
+                        public void onDecodeFailed(final Exception e) {
+                            fail("Cancelled request delivered error");
+                        }
+                    });
+            Thread.sleep(100);
+            assertTrue(cancelled.cancel());
+
+            proceed.countDown();
+            firstThread.join(10000);
+            secondThread.join(10000);
+            // Lets a delivery of the cancelled request run, if one was posted
+            getInstrumentation().waitForIdleSync();
+
+            assertEquals(1, decodeCount.get());
+            assertTrue(first.get() instanceof BitmapDrawable);
+            assertTrue(second.get() instanceof BitmapDrawable);
+            assertNotSame(first.get(), second.get());
+            assertSame(((BitmapDrawable) first.get()).getBitmap(),
+                    ((BitmapDrawable) second.get()).getBitmap());
+            assertTrue(cancelled.isCancelled());
+        } finally {
+            proceed.countDown();
+            assertTrue(FormatDetector.unregister(decoder));
+        }
+    }
+
+    public void testProbeIndex() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final byte[] data;
+        final InputStream is = context.getAssets().open("w3c_home_animation.gif");
+        try {
+            data = toByteArray(is);
+        } finally {
+            is.close();
+        }
+
+        final File file = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "probe.idx");
+        file.delete();
+        final ProbeIndex index = new ProbeIndex(file, 16);
+        ImageFactory.setProbeIndex(index);
+        try {
+            final ImageInfo info = ImageFactory.probeOrThrow(data);
+            assertEquals(1, index.missCount());
+            index.flush();
+
+            // A new instance reads what the previous one wrote
+            final ProbeIndex reopened = new ProbeIndex(file, 16);
+            ImageFactory.setProbeIndex(reopened);
+            assertEquals(info, ImageFactory.probeOrThrow(data));
+            assertEquals(1, reopened.hitCount());
+
+            assertTrue(ImageFactory.decodeByteArrayOrThrow(context.getResources(), data, null)
+                    instanceof GifDrawable);
+            assertEquals(2, reopened.hitCount());
+
+            // Data that fails to decode is not recorded
+            final byte[] unknown = new byte[]{1, 2, 3, 4};
+            final int misses = reopened.missCount();
+            assertNull(ImageFactory.decodeByteArray(context.getResources(), unknown, null));
+            reopened.flush();
+            assertNull(ImageFactory.decodeByteArray(context.getResources(), unknown, null));
+            assertEquals(misses + 2, reopened.missCount());
+        } finally {
+            ImageFactory.setProbeIndex(null);
+            file.delete();
+        }
+    }
+
+    public void testDecodeAll() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final AssetManager assets = context.getAssets();
+        final List<ImageSource> sources = Arrays.asList(
+                ImageSource.fromAsset(assets, "w3c_home_animation.gif"),
+                ImageSource.fromByteArray(new byte[]{1, 2, 3, 4}),
+                ImageSource.fromStream(assets.open("w3c_home.gif")),
+                ImageSource.fromByteArray(singleFrameGif()));
+
+        final List<DecodeResult> results = ImageFactory.decodeAll(context.getResources(),
+                sources, null);
+        assertEquals(sources.size(), results.size());
+        for (int i = 0; i < sources.size(); i++) {
+            assertSame(sources.get(i), results.get(i).getSource());
+        }
+        assertTrue(results.get(0).getDrawable() instanceof GifDrawable);
+        assertFalse(results.get(1).isSuccessful());
+        assertNotNull(results.get(1).getError());
+        assertTrue(results.get(2).getDrawable() instanceof BitmapDrawable);
+        assertTrue(results.get(3).getDrawable() instanceof BitmapDrawable);
+    }
+
+    public void testStillFrame() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final AssetManager assets = context.getAssets();
+
+        final DecodeOptions first = new DecodeOptions();
+        first.inDecodeMode = DecodeMode.STILL_FRAME;
+        assertTrue(ImageFactory.decodeAssetOrThrow(context.getResources(), assets,
+                "w3c_home_animation.gif", first) instanceof BitmapDrawable);
+
+        final DecodeOptions second = new DecodeOptions(36, 36, ScalePolicy.FIT);
+        second.inDecodeMode = DecodeMode.STILL_FRAME;
+        second.inFrameIndex = 1;
+        final Drawable frame = ImageFactory.decodeAssetOrThrow(context.getResources(), assets,
+                "w3c_home_animation.gif", second);
+        assertTrue(frame instanceof BitmapDrawable);
+        assertEquals(2, second.inSampleSize);
+        assertEquals(36, ((BitmapDrawable) frame).getBitmap().getWidth());
+
+        final InputStream is = assets.open("w3c_home_animation.gif");
+        try {
+            assertTrue(ImageFactory.decodeStreamOrThrow(context.getResources(), is, null,
+                    second) instanceof BitmapDrawable);
+        } finally {
+            is.close();
+        }
+
+        second.inFrameIndex = 1000;
+        try {
+            ImageFactory.decodeAssetOrThrow(context.getResources(), assets,
+                    "w3c_home_animation.gif", second);
+            fail("IOException expected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testFormatDetector() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final byte[] gif = singleFrameGif();
+        assertEquals(ImageFormat.GIF, FormatDetector.detectFormat(gif, gif.length));
+        assertEquals(ImageFormat.UNKNOWN, FormatDetector.detectFormat(new byte[]{1, 2}, 2));
+
+        final AtomicReference<byte[]> decodedHeader = new AtomicReference<byte[]>();
+        final DrawableDecoder decoder = new DrawableDecoder() {
+            @Override
+            public boolean canDecode(final byte[] header, final int length) {
+                return length == 8 && header[4] == '9';
+            }
+
+            @Override
+            public Drawable decode(final Resources res,
+                    final byte[] header,
+                    final int headerLength,
+                    final InputStream rest,
+                    final BitmapFactory.Options options) throws IOException {
+                final byte[] data = new byte[headerLength + 1];
+                System.arraycopy(header, 0, data, 0, headerLength);
+                assertEquals(-1, rest.read(data, headerLength, 1));
+                decodedHeader.set(data);
+                return new ColorDrawable();
+            }
+        };
+        FormatDetector.register(new byte[]{'G', 'I', 'F'}, decoder);
+        try {
+            final byte[] custom = {'G', 'I', 'F', '8', '9', 'a', 1, 0};
+            assertTrue(ImageFactory.decodeByteArrayOrThrow(context.getResources(), custom, null)
+                    instanceof ColorDrawable);
+            assertEquals(8, decodedHeader.get().length - 1);
+
+            // Not accepted by canDecode, goes to the built-in decoder
+            assertTrue(ImageFactory.decodeByteArrayOrThrow(context.getResources(), gif, null)
+                    instanceof BitmapDrawable);
+        } finally {
+            assertTrue(FormatDetector.unregister(decoder));
+        }
+    }
+
+    public void testDecodeListener() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final AssetManager assets = context.getAssets();
+        final DecodeStats stats = new DecodeStats();
+        ImageFactory.setDecodeListener(stats);
+        try {
+            assertTrue(ImageFactory.decodeAssetOrThrow(context.getResources(), assets,
+                    "w3c_home_animation.gif", null) instanceof GifDrawable);
+            assertTrue(ImageFactory.decodeAssetOrThrow(context.getResources(), assets,
+                    "w3c_home.gif", null) instanceof BitmapDrawable);
+            assertNull(ImageFactory.decodeByteArray(context.getResources(),
+                    new byte[]{1, 2, 3, 4}, null));
+        } finally {
+            ImageFactory.setDecodeListener(null);
+        }
+
+        assertEquals(3, stats.getDecodeCount());
+        assertEquals(1, stats.getFailureCount());
+        assertEquals(1, stats.getCount(DecodeEvent.Path.GIF));
+        assertEquals(2, stats.getAllocationBytes().getCount());
+        assertTrue(stats.getAllocationBytes().getMax() >= 72L * 48L * 4L);
+        assertTrue(stats.getSniffBytes().getMax() > 0);
+        assertTrue(stats.getDecodeNanos().getPercentile(50) > 0);
+    }
+
+    public void testGifIndex() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final AssetManager assets = context.getAssets();
+        final ImageSource source = ImageSource.fromAsset(assets, "w3c_home_animation.gif");
+
+        final GifIndex index = ImageFactory.indexGifOrThrow(source);
+        assertNotNull(index);
+        assertEquals(2, index.getFrameCount());
+        assertEquals(0, index.getLoopCount());
+        assertEquals(1000, index.getDuration());
+        assertEquals(500, index.getFrameDelay(1));
+        assertEquals(GifIndex.DISPOSAL_NONE, index.getFrameDisposal(1));
+        assertEquals(4, index.getFrameTop(1));
+        assertEquals(37, index.getFrameHeight(1));
+        assertTrue(index.getFrameOffset(1) > index.getFrameEnd(0));
+        assertEquals(1, index.getFrameAt(600));
+        assertSame(index, ImageFactory.indexGifOrThrow(source));
+
+        final DecodeOptions options = new DecodeOptions();
+        options.inDecodeMode = DecodeMode.STILL_FRAME;
+        options.inFrameIndex = 1;
+        assertTrue(ImageFactory.decodeAssetOrThrow(context.getResources(), assets,
+                "w3c_home_animation.gif", options) instanceof BitmapDrawable);
+
+        assertNull(ImageFactory.indexGifOrThrow(ImageSource.fromByteArray(new byte[]{1, 2})));
+    }
+
+    public void testGifMemoryBudget() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final Resources res = context.getResources();
+        final AssetManager assets = context.getAssets();
+        try {
+            // 72x48 needs 17280 bytes, 36x24 needs 4320
+            final GifMemoryBudget still = new GifMemoryBudget(1000,
+                    GifMemoryBudget.Policy.STILL_FRAME);
+            ImageFactory.setGifMemoryBudget(still);
+            final Drawable stillFrame = ImageFactory.decodeAssetOrThrow(res, assets,
+                    "w3c_home_animation.gif", null);
+            assertTrue(stillFrame instanceof BitmapDrawable);
+            assertTrue(still.isLimited(stillFrame));
+            assertEquals(1, still.stillFrameCount());
+            assertEquals(0, still.size());
+
+            final GifMemoryBudget downsample = new GifMemoryBudget(5000,
+                    GifMemoryBudget.Policy.DOWNSAMPLE);
+            ImageFactory.setGifMemoryBudget(downsample);
+            final Drawable downsampled = ImageFactory.decodeAssetOrThrow(res, assets,
+                    "w3c_home_animation.gif", null);
+            assertTrue(downsampled instanceof GifDrawable);
+            assertTrue(downsample.isLimited(downsampled));
+            assertEquals(1, downsample.gifCount());
+            assertTrue(ImageFactory.release(downsampled));
+            assertEquals(0, downsample.size());
+
+            final GifMemoryBudget evict = new GifMemoryBudget(30000,
+                    GifMemoryBudget.Policy.EVICT_LEAST_RECENTLY_DRAWN);
+            ImageFactory.setGifMemoryBudget(evict);
+            final GifDrawable first = (GifDrawable) ImageFactory.decodeAssetOrThrow(res, assets,
+                    "w3c_home_animation.gif", null);
+            final GifDrawable second = (GifDrawable) ImageFactory.decodeAssetOrThrow(res, assets,
+                    "w3c_home_animation.gif", null);
+            assertTrue(first.isRecycled());
+            assertFalse(second.isRecycled());
+            assertFalse(evict.isLimited(second));
+            assertEquals(1, evict.evictionCount());
+            assertEquals(1, evict.gifCount());
+            assertTrue(evict.size() <= evict.maxSize());
+            second.recycle();
+            assertEquals(0, evict.size());
+        } finally {
+            ImageFactory.setGifMemoryBudget(null);
+        }
+    }
+
+    public void testAutoConfig() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final Resources res = context.getResources();
+
+        final Bitmap source = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        assertTrue(source.compress(Bitmap.CompressFormat.JPEG, 90, jpeg));
+        source.eraseColor(0x80ff0000);
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        assertTrue(source.compress(Bitmap.CompressFormat.PNG, 100, png));
+        source.recycle();
+
+        final DecodeOptions options = new DecodeOptions();
+        options.inAutoConfig = true;
+        final Drawable opaque = ImageFactory.decodeByteArrayOrThrow(res, jpeg.toByteArray(),
+                options);
+        assertEquals(Bitmap.Config.RGB_565, options.outAutoConfig);
+        assertEquals(Bitmap.Config.RGB_565, ((BitmapDrawable) opaque).getBitmap().getConfig());
+        assertEquals(Bitmap.Config.ARGB_8888, options.inPreferredConfig);
+
+        ImageFactory.decodeByteArrayOrThrow(res, png.toByteArray(), options);
+        assertEquals(Bitmap.Config.ARGB_8888, options.outAutoConfig);
+
+        ImageFactory.decodeByteArrayOrThrow(res, singleFrameGif(), options);
+        assertEquals(Bitmap.Config.ARGB_8888, options.outAutoConfig);
+
+        ImageFactory.decodeAssetOrThrow(res, context.getAssets(), "w3c_home.gif", options);
+        assertEquals(Bitmap.Config.RGB_565, options.outAutoConfig);
+
+        options.inPreferredConfig = Bitmap.Config.ARGB_4444;
+        ImageFactory.decodeByteArrayOrThrow(res, jpeg.toByteArray(), options);
+        assertNull(options.outAutoConfig);
+    }
+
+    public void testLazyDrawable() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final LazyDrawable drawable = ImageFactory.lazyOrThrow(context.getResources(),
+                ImageSource.fromAsset(context.getAssets(), "w3c_home_animation.gif"), null);
+        assertNotNull(drawable);
+        assertEquals(72, drawable.getIntrinsicWidth());
+        assertEquals(48, drawable.getIntrinsicHeight());
+        assertNull(drawable.getDecodedDrawable());
+
+        drawable.setReleaseDelay(0);
+        final AtomicReference<Drawable> decoded = new AtomicReference<Drawable>();
+        final Runnable poll = new Runnable() {
+            @Override
+            public void run() {
+                decoded.set(drawable.getDecodedDrawable());
+            }
+        };
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                drawable.setBounds(0, 0, 36, 24);
+                drawable.draw(new Canvas());
+            }
+        });
+        for (int i = 0; i < 500 && decoded.get() == null; i++) {
+            Thread.sleep(10);
+            getInstrumentation().runOnMainSync(poll);
+        }
+        assertTrue(decoded.get() instanceof GifDrawable);
+        final GifDrawable gif = (GifDrawable) decoded.get();
+        assertEquals(36, gif.getBounds().width());
+        assertEquals(72, drawable.getIntrinsicWidth());
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                drawable.setVisible(false, false);
+            }
+        });
+        getInstrumentation().runOnMainSync(poll);
+        assertNull(decoded.get());
+        assertTrue(gif.isRecycled());
+
+        assertNull(ImageFactory.lazy(context.getResources(),
+                ImageSource.fromByteArray(new byte[]{1, 2, 3}), null));
+    }
+
+    public void testSharedClock() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final DecodeOptions options = new DecodeOptions();
+        options.inSharedClock = true;
+        final int count = GifClock.getAnimationCount();
+        final Drawable drawable = ImageFactory.decodeAssetOrThrow(context.getResources(),
+                context.getAssets(), "w3c_home_animation.gif", options);
+        assertTrue(drawable instanceof ClockedGifDrawable);
+        final ClockedGifDrawable clocked = (ClockedGifDrawable) drawable;
+        assertEquals(count + 1, GifClock.getAnimationCount());
+        assertEquals(72, clocked.getIntrinsicWidth());
+        assertTrue(clocked.isRunning());
+        assertFalse(clocked.getGifDrawable().isRunning());
+        clocked.stop();
+        assertFalse(clocked.isRunning());
+
+        assertTrue(ImageFactory.release(clocked));
+        assertTrue(clocked.getGifDrawable().isRecycled());
+        assertEquals(count, GifClock.getAnimationCount());
+
+        // Static images are not wrapped
+        assertTrue(ImageFactory.decodeByteArrayOrThrow(context.getResources(), singleFrameGif(),
+                options) instanceof BitmapDrawable);
+
+        // A cached clocked GIF is not shared with requests animating on their own
+        ImageFactory.setDrawableCache(new DrawableCache(16 * 1024 * 1024));
+        try {
+            final ClockedGifDrawable cached = (ClockedGifDrawable) ImageFactory
+                    .decodeAssetOrThrow(context.getResources(), context.getAssets(),
+                            "w3c_home_animation.gif", options);
+            final Drawable own = ImageFactory.decodeAssetOrThrow(context.getResources(),
+                    context.getAssets(), "w3c_home_animation.gif", null);
+            assertTrue(own instanceof GifDrawable);
+            assertNotSame(cached.getGifDrawable(), own);
+            assertTrue(((GifDrawable) own).isRunning());
+        } finally {
+            ImageFactory.setDrawableCache(null);
+        }
+
+        GifClock.setMaxFps(30);
+        assertEquals(30, GifClock.getMaxFps());
+        GifClock.setMaxFps(0);
+    }
+
+    public void testMalformedGif() throws Throwable {
+        final Context context = getInstrumentation().getContext();
+        final List<byte[]> corpus = Arrays.asList(singleFrameGif(),
+                readAsset(context, "w3c_home.gif"),
+                readAsset(context, "w3c_home_animation.gif"),
+                readAsset(context, "loop_once.gif"));
+
+        // Every truncation either ends at a block boundary or fails inside the data
+        for (final byte[] data : corpus) {
+            for (int length = 0; length < data.length; length++) {
+                try {
+                    ImageFactory.getGifFrameCount(data, 0, length);
+                } catch (MalformedImageException e) {
+                    assertTrue(e.isTruncated());
+                    assertEquals(length, e.getOffset());
+                }
+            }
+        }
+
+        try {
+            final byte[] data = corpus.get(2);
+            ImageFactory.isAnimatedGif(new BufferedInputStream(
+                    new ByteArrayInputStream(data, 0, 100)));
+            fail("MalformedImageException expected");
+        } catch (MalformedImageException e) {
+            assertTrue(e.isTruncated());
+            assertEquals(100, e.getOffset());
+        }
+
+        // Random mutations terminate with a result or MalformedImageException
+        final Random random = new Random(24);
+        for (int i = 0; i < 2000; i++) {
+            final byte[] data = corpus.get(random.nextInt(corpus.size())).clone();
+            for (int j = 1 + random.nextInt(8); j > 0; j--) {
+                data[random.nextInt(data.length)] = (byte) random.nextInt(256);
+            }
+            try {
+                ImageFactory.getGifFrameCount(data, 0, data.length);
+            } catch (MalformedImageException e) {
+                assertTrue(e.getOffset() >= 0 && e.getOffset() <= data.length);
+            }
+        }
+
+        // Comment extension of 1-byte sub-blocks
+        final ByteArrayOutputStream bomb = new ByteArrayOutputStream();
+        bomb.write(singleFrameGif(), 0, 13);
+        bomb.write(0x21);
+        bomb.write(0xfe);
+        for (int i = 0; i < 10000; i++) {
+            bomb.write(1);
+            bomb.write(0);
+        }
+        bomb.write(0);
+        final byte[] data = bomb.toByteArray();
+        ImageFactory.setGifScanLimits(ImageFactory.DEFAULT_GIF_SCAN_MAX_BYTES, 1000);
+        try {
+            ImageFactory.getGifFrameCount(data, 0, data.length);
+            fail("MalformedImageException expected");
+        } catch (MalformedImageException e) {
+            assertFalse(e.isTruncated());
+            assertTrue(e.getOffset() < data.length);
+        } finally {
+            ImageFactory.setGifScanLimits(ImageFactory.DEFAULT_GIF_SCAN_MAX_BYTES,
+                    ImageFactory.DEFAULT_GIF_SCAN_MAX_BLOCKS);
+        }
+        assertEquals(0, ImageFactory.getGifFrameCount(data, 0, data.length));
+    }
+
+    public void testCancellationSignal() throws Throwable {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // CancellationSignal was added in Jelly Bean
+            return;
+        }
+        final Context context = getInstrumentation().getContext();
+        final byte[] animated = readAsset(context, "w3c_home_animation.gif");
+        final byte[] still = readAsset(context, "w3c_home.gif");
+
+        final CancellationSignal cancelled = new CancellationSignal();
+        cancelled.cancel();
+        try {
+            ImageFactory.decodeStreamOrThrow(context.getResources(),
+                    new ByteArrayInputStream(animated), null, null, cancelled);
+            fail("OperationCanceledException expected");
+        } catch (OperationCanceledException e) {
+            // Expected
+        }
+
+        // Cancelled while the stream is read
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        for (final byte[] data : Arrays.asList(animated, still)) {
+            final CancellationSignal signal = new CancellationSignal();
+            final InputStream is = new FilterInputStream(new ByteArrayInputStream(data)) {
+                @Override
+                public int read(@NonNull final byte[] buffer, final int offset, final int count)
+                        throws IOException {
+                    signal.cancel();
+                    return super.read(buffer, offset, Math.min(count, 16));
+                }
+            };
+            try {
+                ImageFactory.decodeStreamOrThrow(context.getResources(), is, null, options,
+                        signal);
+                fail("OperationCanceledException expected");
+            } catch (OperationCanceledException e) {
+                // Expected
+            }
+            assertFalse(options.mCancel);
+        }
+
+        final CancellationSignal signal = new CancellationSignal();
+        final Drawable drawable = ImageFactory.decodeStreamOrThrow(context.getResources(),
+                new ByteArrayInputStream(animated), null, options, signal);
+        assertTrue(drawable instanceof GifDrawable);
+        // Cancelling after the decode does not affect the result
+        signal.cancel();
+        assertFalse(((GifDrawable) drawable).isRecycled());
+        assertEquals(2, ((GifDrawable) drawable).getNumberOfFrames());
+        assertTrue(ImageFactory.release(drawable));
+    }
+
+    /**
+     * 1x1 GIF with transparent color Graphic Control Extension and NETSCAPE2.0 block
+     */
+    private static byte[] singleFrameGif() {
+        return new byte[]{
+                'G', 'I', 'F', '8', '9', 'a',
+                1, 0, 1, 0, (byte) 0x80, 0, 0,
+                0, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                0x21, (byte) 0xf9, 4, 1, 0, 0, 0, 0,
+                0x21, (byte) 0xff, 11,
+                'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0',
+                3, 1, 0, 0, 0,
+                0x2c, 0, 0, 0, 0, 1, 0, 1, 0, 0,
+                2, 2, 0x44, 0x01, 0,
+                0x3b
+        };
+    }
+
+    private static void writeFile(final File file,
+            final byte[] prefix,
+            final byte[] data) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            if (prefix != null) {
+                out.write(prefix);
+            }
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Counts the descriptors of this process open for the file
+     */
+    private static int countOpenDescriptors(final File file) throws IOException {
+        final String path = file.getCanonicalPath();
+        final File[] descriptors = new File("/proc/self/fd").listFiles();
+        int count = 0;
+        if (descriptors != null) {
+            for (final File descriptor : descriptors) {
+                try {
+                    if (path.equals(descriptor.getCanonicalPath())) {
+                        count++;
+                    }
+                } catch (IOException e) {
+                    // Sockets and pipes do not resolve to a path
+                }
+            }
+        }
+        return count;
+    }
+
+    private byte[] readAsset(final Context context, final String name) throws IOException {
+        final InputStream is = context.getAssets().open(name, AssetManager.ACCESS_RANDOM);
+        try {
+            return toByteArray(is);
+        } finally {
+            is.close();
+        }
+    }
+
     private byte[] toByteArray(final InputStream is) throws IOException {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream(
                 is.available() > 0 ? is.available() : 10240);
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.content.res.Resources;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Decodes a batch of sources in three stages. Headers of all sources are sniffed on the I/O
+ * threads first. Then, starting with static and small images, the data of each image is read
+ * into memory on the I/O threads and decoded on the decode threads, so that reading the next
+ * images overlaps with decoding the previous ones. The estimated decoded size of images that are
+ * read or decoded at the same time is bounded.
+ */
+final class BatchDecoder {
+
+    @Nullable
+    private final Resources mResources;
+
+    /**
+     * The sources as passed, for the results
+     */
+    @NonNull
+    private final ImageSource[] mOriginalSources;
+
+    /**
+     * The sources to decode, replaced with loaded sources
+     */
+    @NonNull
+    private final ImageSource[] mSources;
+
+    @NonNull
+    private final DecodeOptions[] mOptions;
+
+    @NonNull
+    private final ImageInfo[] mInfos;
+
+    @NonNull
+    private final long[] mEstimates;
+
+    @NonNull
+    private final Drawable[] mDrawables;
+
+    @NonNull
+    private final Throwable[] mErrors;
+
+    private final long mMaxBytesInFlight;
+
+    /**
+     * Guarded by this
+     */
+    private long mBytesInFlight;
+
+    /**
+     * Number of scheduled items not finished yet. Guarded by this.
+     */
+    private int mPending;
+
+    BatchDecoder(@Nullable final Resources res,
+            @NonNull final Collection<ImageSource> sources,
+            @Nullable final BitmapFactory.Options options,
+            final long maxBytesInFlight) {
+        mResources = res;
+        mOriginalSources = sources.toArray(new ImageSource[sources.size()]);
+        mSources = mOriginalSources.clone();
+        final int count = mSources.length;
+        mOptions = new DecodeOptions[count];
+        for (int i = 0; i < count; i++) {
+            if (mSources[i] == null) {
+                throw new NullPointerException("sources must not contain null");
+            }
+            // Each item writes its own sample size
+            mOptions[i] = DecodeOptions.copyOf(options);
+        }
+        mInfos = new ImageInfo[count];
+        mEstimates = new long[count];
+        mDrawables = new Drawable[count];
+        mErrors = new Throwable[count];
+        mMaxBytesInFlight = maxBytesInFlight;
+    }
+
+    /**
+     * Runs all stages and blocks until all items are done
+     *
+     * @return results in the order of the sources
+     */
+    @NonNull
+    List<DecodeResult> decodeAll() {
+        try {
+            sniff();
+            final Integer[] order = order();
+            for (final int index : order) {
+                acquire(mEstimates[index]);
+                DecodeExecutor.executeIo(new LoadTask(index));
+            }
+            awaitPending();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (this) {
+                for (int i = 0; i < mSources.length; i++) {
+                    if (mDrawables[i] == null && mErrors[i] == null) {
+                        mErrors[i] = new InterruptedIOException("Interrupted");
+                    }
+                }
+            }
+        }
+
+        final List<DecodeResult> results = new ArrayList<DecodeResult>(mSources.length);
+        synchronized (this) {
+            for (int i = 0; i < mSources.length; i++) {
+                results.add(new DecodeResult(mOriginalSources[i], mDrawables[i], mErrors[i]));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Probes all sources on the I/O threads. Streams can be read once, so they are loaded first.
+     */
+    private void sniff() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(mSources.length);
+        for (int i = 0; i < mSources.length; i++) {
+            final int index = i;
+            DecodeExecutor.executeIo(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        ImageSource source = mSources[index];
+                        if (source instanceof ImageSource.StreamSource) {
+                            source = source.load();
+                            mSources[index] = source;
+                        }
+                        final ImageInfo info = ImageFactory.probe(source);
+                        mInfos[index] = info;
+                        mEstimates[index] = estimate(info, mOptions[index]);
+                    } catch (Throwable e) {
+                        mErrors[index] = e;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+    }
+
+    /**
+     * @return indices of the successfully sniffed items, static before animated, then by the
+     * estimated decoded size
+     */
+    @NonNull
+    private Integer[] order() {
+        final List<Integer> indices = new ArrayList<Integer>(mSources.length);
+        for (int i = 0; i < mSources.length; i++) {
+            if (mInfos[i] != null) {
+                indices.add(i);
+            }
+        }
+        final Integer[] order = indices.toArray(new Integer[indices.size()]);
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(final Integer lhs, final Integer rhs) {
+                final boolean lhsAnimated = mInfos[lhs].isAnimated();
+                if (lhsAnimated != mInfos[rhs].isAnimated()) {
+                    return lhsAnimated ? 1 : -1;
+                }
+                final long lhsEstimate = mEstimates[lhs];
+                final long rhsEstimate = mEstimates[rhs];
+                return lhsEstimate < rhsEstimate ? -1 : (lhsEstimate == rhsEstimate ? 0 : 1);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Waits until the estimated size fits in the budget. An item larger than the budget starts
+     * when nothing else is in flight.
+     */
+    private synchronized void acquire(final long estimate) throws InterruptedException {
+        while (mBytesInFlight > 0 && mBytesInFlight + estimate > mMaxBytesInFlight) {
+            wait();
+        }
+        mBytesInFlight += estimate;
+        mPending++;
+    }
+
+    private synchronized void finish(final int index,
+            @Nullable final Drawable drawable,
+            @Nullable final Throwable error) {
+        mDrawables[index] = drawable;
+        mErrors[index] = error;
+        mBytesInFlight -= mEstimates[index];
+        mPending--;
+        notifyAll();
+    }
+
+    private synchronized void awaitPending() throws InterruptedException {
+        while (mPending > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Estimates the decoded size, in bytes
+     */
+    private static long estimate(@NonNull final ImageInfo info,
+            @NonNull final DecodeOptions options) {
+        int sampleSize = options.hasTargetSize()
+                ? options.computeSampleSize(info.getWidth(), info.getHeight())
+                : options.inSampleSize;
+        // Decoders round the sample size down to a power of two
+        sampleSize = Integer.highestOneBit(Math.max(1, sampleSize));
+        return info.getByteCount() / ((long) sampleSize * sampleSize);
+    }
+
+    /**
+     * Reads a static image into memory on an I/O thread, then queues the decode. Animated GIFs
+     * are decoded from the source since GifDrawable reads frames on demand.
+     */
+    private final class LoadTask implements Runnable {
+
+        private final int mIndex;
+
+        LoadTask(final int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            Throwable error = null;
+            boolean queued = false;
+            try {
+                if (!mInfos[mIndex].isAnimated()) {
+                    mSources[mIndex] = mSources[mIndex].load();
+                }
+                DecodeExecutor.execute(new DecodeTask(mIndex));
+                queued = true;
+            } catch (Throwable e) {
+                // Including OutOfMemoryError while reading the file into memory
+                error = e;
+            } finally {
+                // Otherwise the decode task finishes the item
+                if (!queued) {
+                    finish(mIndex, null, error);
+                }
+            }
+        }
+    }
+
+    private final class DecodeTask extends PrioritizedTask {
+
+        private final int mIndex;
+
+        DecodeTask(final int index) {
+            super(DecodePriority.NORMAL);
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            Drawable drawable = null;
+            Throwable error = null;
+            try {
+                drawable = ImageFactory.decode(mResources, mSources[mIndex], null,
+                        mOptions[mIndex]);
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                finish(mIndex, drawable, error);
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of mutable Bitmaps for {@link android.graphics.BitmapFactory.Options#inBitmap}, bounded
+ * by the number of bytes the pooled Bitmaps occupy. Bitmaps are bucketed by allocation size.
+ * Since KitKat a Bitmap is reused for any image that fits in its allocation, before that the
+ * dimensions and config must match exactly. Evicted Bitmaps are recycled.
+ * <p>
+ * Set the pool with {@link ImageFactory#setBitmapPool(BitmapPool)} and return Bitmaps to it with
+ * {@link ImageFactory#release(android.graphics.drawable.Drawable)}.
+ * Requires API level 11, on earlier versions the pool is always empty.
+ * This class is thread safe.
+ */
+public final class BitmapPool {
+
+    /**
+     * A Bitmap larger than this number of times the requested size is not reused, so that small
+     * images do not hold large allocations
+     */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private static final boolean SUPPORTED
+            = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+
+    private static final boolean REUSE_ANY_SIZE
+            = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    /**
+     * Pooled Bitmaps by allocation size
+     */
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets
+            = new TreeMap<Integer, ArrayList<Bitmap>>();
+
+    /**
+     * Pooled Bitmaps in the order they were added, the eldest is evicted first
+     */
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+    private long mMaxSize;
+    private long mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize the maximum total size of pooled Bitmaps, in bytes
+     * @throws IllegalArgumentException if maxSize is not positive
+     */
+    public BitmapPool(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Removes and returns a Bitmap that can be used to decode an image of the given size
+     *
+     * @param width  decoded image width
+     * @param height decoded image height
+     * @param config decoded image config, null means {@link Bitmap.Config#ARGB_8888}
+     * @return a Bitmap from the pool or null if none fits
+     */
+    @Nullable
+    public synchronized Bitmap get(final int width, final int height,
+            @Nullable final Bitmap.Config config) {
+        final Bitmap.Config target = config != null ? config : Bitmap.Config.ARGB_8888;
+        final int size = width * height * bytesPerPixel(target);
+        final Bitmap bitmap = size > 0 ? removeLocked(width, height, target, size) : null;
+        if (bitmap != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds the Bitmap to the pool. Immutable, recycled or too large Bitmaps are not pooled.
+     * The caller must not use the Bitmap after it was put.
+     *
+     * @param bitmap the Bitmap to pool
+     * @return true if the Bitmap was pooled
+     */
+    public synchronized boolean put(@NonNull final Bitmap bitmap) {
+        if (!SUPPORTED || !bitmap.isMutable() || bitmap.isRecycled()
+                || bitmap.getConfig() == null) {
+            return false;
+        }
+        final int size = sizeOf(bitmap);
+        if (size > mMaxSize) {
+            return false;
+        }
+        if (mOrder.contains(bitmap)) {
+            return true;
+        }
+        ArrayList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>(4);
+            mBuckets.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mOrder.addLast(bitmap);
+        mSize += size;
+        mPutCount++;
+        trimToSizeLocked(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Recycles all pooled Bitmaps
+     */
+    public synchronized void evictAll() {
+        trimToSizeLocked(-1);
+    }
+
+    /**
+     * Recycles the eldest pooled Bitmaps until the total size is at most the given size
+     *
+     * @param maxSize the size to trim to, in bytes
+     */
+    public synchronized void trimToSize(final long maxSize) {
+        trimToSizeLocked(maxSize);
+    }
+
+    /**
+     * Changes the maximum size and evicts Bitmaps that no longer fit
+     *
+     * @param maxSize the new maximum size, in bytes
+     * @throws IllegalArgumentException if maxSize is not positive
+     */
+    public synchronized void resize(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        trimToSizeLocked(maxSize);
+    }
+
+    /**
+     * @return the total size of pooled Bitmaps, in bytes
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * @return the maximum total size of pooled Bitmaps, in bytes
+     */
+    public synchronized long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the number of times {@link #get(int, int, Bitmap.Config)} returned a Bitmap
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of times {@link #get(int, int, Bitmap.Config)} returned null
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of Bitmaps added by {@link #put(Bitmap)}
+     */
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    /**
+     * @return the number of Bitmaps recycled to stay within the maximum size
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return hits divided by requests, 0 if there were no requests
+     */
+    public synchronized float hitRate() {
+        final int requests = mHitCount + mMissCount;
+        return requests != 0 ? (float) mHitCount / requests : 0f;
+    }
+
+    @Nullable
+    private Bitmap removeLocked(final int width, final int height,
+            @NonNull final Bitmap.Config config, final int size) {
+        if (REUSE_ANY_SIZE) {
+            for (final Map.Entry<Integer, ArrayList<Bitmap>> entry
+                    : mBuckets.tailMap(size).entrySet()) {
+                if (entry.getKey() > size * MAX_SIZE_MULTIPLE) {
+                    break;
+                }
+                // Empty buckets are removed, so the first bucket always has a Bitmap
+                final ArrayList<Bitmap> bucket = entry.getValue();
+                return removeLocked(entry.getKey(), bucket, bucket.size() - 1);
+            }
+            return null;
+        }
+        final ArrayList<Bitmap> bucket = mBuckets.get(size);
+        if (bucket != null) {
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                final Bitmap bitmap = bucket.get(i);
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                        && bitmap.getConfig() == config) {
+                    return removeLocked(size, bucket, i);
+                }
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    private Bitmap removeLocked(final int size, @NonNull final ArrayList<Bitmap> bucket,
+            final int index) {
+        final Bitmap bitmap = bucket.remove(index);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(size);
+        }
+        mOrder.remove(bitmap);
+        mSize -= size;
+        return bitmap;
+    }
+
+    private void trimToSizeLocked(final long maxSize) {
+        final Iterator<Bitmap> iterator = mOrder.iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Bitmap eldest = iterator.next();
+            iterator.remove();
+            final int size = sizeOf(eldest);
+            final ArrayList<Bitmap> bucket = mBuckets.get(size);
+            bucket.remove(eldest);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(size);
+            }
+            mSize -= size;
+            mEvictionCount++;
+            eldest.recycle();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int sizeOf(@NonNull final Bitmap bitmap) {
+        return REUSE_ANY_SIZE
+                ? bitmap.getAllocationByteCount()
+                : bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int bytesPerPixel(@NonNull final Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+
+            case ARGB_8888:
+            default:
+                return 4;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{" +
+                "maxSize=" + mMaxSize +
+                ", size=" + mSize +
+                ", hits=" + mHitCount +
+                ", misses=" + mMissCount +
+                ", hitRate=" + (int) (hitRate() * 100) + '%' +
+                ", evictions=" + mEvictionCount +
+                '}';
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * Decoder of a format supported by the platform and android-gif-drawable. {@link ImageFactory}
+ * does not call {@link #decode(Resources, byte[], int, InputStream, BitmapFactory.Options)}
+ * but decodes the built-in formats itself, reading files and buffers directly instead of
+ * through a stream. APNG and animated WebP are decoded as a still image of the first frame
+ * unless a specialized decoder is registered.
+ */
+final class BuiltInDecoder implements DrawableDecoder {
+
+    @NonNull
+    private final ImageFormat mFormat;
+
+    BuiltInDecoder(@NonNull final ImageFormat format) {
+        mFormat = format;
+    }
+
+    @NonNull
+    ImageFormat getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public boolean canDecode(@NonNull final byte[] header, final int length) {
+        return true;
+    }
+
+    @NonNull
+    @Override
+    public Drawable decode(@Nullable final Resources res,
+            @NonNull final byte[] header,
+            final int headerLength,
+            @NonNull final InputStream rest,
+            @Nullable final BitmapFactory.Options options) throws IOException {
+        final InputStream is = new SequenceInputStream(
+                new ByteArrayInputStream(header, 0, headerLength), rest);
+        if (mFormat == ImageFormat.GIF) {
+            final int sampleSize = options != null ? options.inSampleSize : 1;
+            return ImageInput.newGifBuilder(sampleSize)
+                    .from(new BufferedInputStream(is)).build();
+        }
+        final Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
+        if (bitmap == null) {
+            throw new IOException("BitmapFactory returned null");
+        }
+        return new BitmapDrawable(res, bitmap);
+    }
+
+    @Override
+    public String toString() {
+        return "BuiltInDecoder{" + mFormat + '}';
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Identifies a decoded Drawable by its source and the options that affect the decoded result
+ */
+final class CacheKey {
+
+    @NonNull
+    private final Object mSourceKey;
+
+    private final int mSampleSize;
+    private final int mTargetWidth;
+    private final int mTargetHeight;
+
+    /**
+     * Index of the still frame, -1 for animated
+     */
+    private final int mFrameIndex;
+
+    @Nullable
+    private final ScalePolicy mScalePolicy;
+
+    @Nullable
+    private final Bitmap.Config mConfig;
+
+    private final boolean mAutoConfig;
+
+    /**
+     * A GIF driven by the {@link GifClock} is stopped, so it is never shared with requests that
+     * animate on their own
+     */
+    private final boolean mSharedClock;
+
+    private final int mDensity;
+    private final int mTargetDensity;
+    private final int mScreenDensity;
+    private final boolean mScaled;
+    private final boolean mDither;
+    private final boolean mPremultiplied;
+    private final boolean mPreferQualityOverSpeed;
+
+    private CacheKey(@NonNull final Object sourceKey,
+            @Nullable final BitmapFactory.Options options) {
+        mSourceKey = sourceKey;
+        if (options != null) {
+            mSampleSize = options.inSampleSize;
+            mConfig = options.inPreferredConfig;
+            mDensity = options.inDensity;
+            mTargetDensity = options.inTargetDensity;
+            mScreenDensity = options.inScreenDensity;
+            mScaled = options.inScaled;
+            mDither = options.inDither;
+            // Defaults of new BitmapFactory.Options where the field does not exist
+            mPremultiplied = Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT
+                    || isPremultiplied(options);
+            mPreferQualityOverSpeed = Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1
+                    && isPreferQualityOverSpeed(options);
+            if (options instanceof DecodeOptions) {
+                final DecodeOptions decodeOptions = (DecodeOptions) options;
+                mTargetWidth = decodeOptions.inTargetWidth;
+                mTargetHeight = decodeOptions.inTargetHeight;
+                mScalePolicy = decodeOptions.inScalePolicy;
+                mFrameIndex = decodeOptions.isStillFrame() ? decodeOptions.inFrameIndex : -1;
+                mAutoConfig = decodeOptions.isAutoConfig();
+                mSharedClock = decodeOptions.inSharedClock;
+            } else {
+                mTargetWidth = 0;
+                mTargetHeight = 0;
+                mScalePolicy = null;
+                mFrameIndex = -1;
+                mAutoConfig = false;
+                mSharedClock = false;
+            }
+        } else {
+            mSampleSize = 0;
+            mTargetWidth = 0;
+            mTargetHeight = 0;
+            mScalePolicy = null;
+            mFrameIndex = -1;
+            mConfig = null;
+            mAutoConfig = false;
+            mSharedClock = false;
+            // Defaults of new BitmapFactory.Options
+            mDensity = 0;
+            mTargetDensity = 0;
+            mScreenDensity = 0;
+            mScaled = true;
+            mDither = false;
+            mPremultiplied = true;
+            mPreferQualityOverSpeed = false;
+        }
+    }
+
+    /**
+     * Returns key for the source and options, or null if the result can not be shared
+     *
+     * @param source     the image source
+     * @param outPadding optional outPadding, which subscribers and cache hits would not get
+     * @param options    optional decode options
+     * @param cache      true to key by content for the {@link DrawableCache}, false to key by
+     *                   source identity for joining decodes in progress only
+     * @return the key or null if the source has no stable identity, outPadding is requested or
+     * the options ask for bounds only or a mutable or reused Bitmap
+     */
+    @Nullable
+    static CacheKey create(@NonNull final ImageSource source,
+            @Nullable final Rect outPadding,
+            @Nullable final BitmapFactory.Options options,
+            final boolean cache) {
+        if (outPadding != null || (options != null && (options.inJustDecodeBounds
+                || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && isMutableOrReused(options))))) {
+            return null;
+        }
+        final Object sourceKey = cache ? source.getCacheKey() : source.getIdentityKey();
+        if (sourceKey == null) {
+            return null;
+        }
+        return new CacheKey(sourceKey, options);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean isPremultiplied(@NonNull final BitmapFactory.Options options) {
+        return options.inPremultiplied;
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    private static boolean isPreferQualityOverSpeed(@NonNull final BitmapFactory.Options options) {
+        return options.inPreferQualityOverSpeed;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean isMutableOrReused(@NonNull final BitmapFactory.Options options) {
+        return options.inMutable || options.inBitmap != null;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final CacheKey cacheKey = (CacheKey) o;
+        if (mTargetWidth > 0 || mTargetHeight > 0) {
+            // inSampleSize is an output in this case
+            if (mTargetWidth != cacheKey.mTargetWidth
+                    || mTargetHeight != cacheKey.mTargetHeight
+                    || mScalePolicy != cacheKey.mScalePolicy) {
+                return false;
+            }
+        } else if (mSampleSize != cacheKey.mSampleSize
+                || cacheKey.mTargetWidth > 0 || cacheKey.mTargetHeight > 0) {
+            return false;
+        }
+        return mFrameIndex == cacheKey.mFrameIndex
+                && mConfig == cacheKey.mConfig
+                && mAutoConfig == cacheKey.mAutoConfig
+                && mSharedClock == cacheKey.mSharedClock
+                && mDensity == cacheKey.mDensity
+                && mTargetDensity == cacheKey.mTargetDensity
+                && mScreenDensity == cacheKey.mScreenDensity
+                && mScaled == cacheKey.mScaled
+                && mDither == cacheKey.mDither
+                && mPremultiplied == cacheKey.mPremultiplied
+                && mPreferQualityOverSpeed == cacheKey.mPreferQualityOverSpeed
+                && mSourceKey.equals(cacheKey.mSourceKey);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mSourceKey.hashCode();
+        result = 31 * result + mTargetWidth;
+        result = 31 * result + mTargetHeight;
+        result = 31 * result + mFrameIndex;
+        result = 31 * result + (mConfig != null ? mConfig.hashCode() : 0);
+        result = 31 * result + mTargetDensity;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheKey{" +
+                "source=" + mSourceKey +
+                ", sampleSize=" + mSampleSize +
+                ", targetWidth=" + mTargetWidth +
+                ", targetHeight=" + mTargetHeight +
+                ", scalePolicy=" + mScalePolicy +
+                ", frameIndex=" + mFrameIndex +
+                ", config=" + mConfig +
+                ", autoConfig=" + mAutoConfig +
+                ", sharedClock=" + mSharedClock +
+                ", density=" + mDensity +
+                ", targetDensity=" + mTargetDensity +
+                ", screenDensity=" + mScreenDensity +
+                ", scaled=" + mScaled +
+                ", dither=" + mDither +
+                ", premultiplied=" + mPremultiplied +
+                ", preferQualityOverSpeed=" + mPreferQualityOverSpeed +
+                '}';
+    }
+}
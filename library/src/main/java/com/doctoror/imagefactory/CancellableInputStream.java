@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Stream whose reads throw {@link InterruptedIOException} once the {@link CancellationSignal} is
+ * cancelled, so that a decode reading from it stops at the next read. The native decoders treat
+ * it as a read error.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+final class CancellableInputStream extends FilterInputStream {
+
+    @NonNull
+    private final CancellationSignal mSignal;
+
+    /**
+     * Set when the decode is complete. A {@link pl.droidsonroids.gif.GifDrawable} may keep
+     * reading the stream after it is returned and must not fail then.
+     */
+    private volatile boolean mDetached;
+
+    CancellableInputStream(@NonNull final InputStream in,
+            @NonNull final CancellationSignal signal) {
+        super(in);
+        mSignal = signal;
+    }
+
+    /**
+     * Stops checking the signal
+     */
+    void detach() {
+        mDetached = true;
+    }
+
+    /**
+     * @throws InterruptedIOException if the signal is cancelled and the stream is not detached
+     */
+    void throwIfCancelled() throws InterruptedIOException {
+        if (!mDetached && mSignal.isCanceled()) {
+            throw new InterruptedIOException("Decode cancelled");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        throwIfCancelled();
+        return super.read();
+    }
+
+    @Override
+    public int read(@NonNull final byte[] buffer, final int offset, final int count)
+            throws IOException {
+        throwIfCancelled();
+        return super.read(buffer, offset, count);
+    }
+
+    @Override
+    public long skip(final long count) throws IOException {
+        throwIfCancelled();
+        return super.skip(count);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Rect;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import pl.droidsonroids.gif.GifDrawable;
+
+/**
+ * Draws an animated GIF whose frames are advanced by the shared {@link GifClock} instead of the
+ * {@link GifDrawable}'s own scheduling. Wraps either a {@link GifDrawable} or a
+ * {@link SharedGifDrawable}.
+ * <p>
+ * Returned by {@link ImageFactory} when {@link DecodeOptions#inSharedClock} is set. Release it
+ * with {@link ImageFactory#release(Drawable)} to stop the clock from driving it.
+ */
+public final class ClockedGifDrawable extends Drawable implements Drawable.Callback, Animatable {
+
+    @NonNull
+    private final Drawable mDrawable;
+
+    @NonNull
+    private final GifDrawable mGif;
+
+    ClockedGifDrawable(@NonNull final Drawable drawable, @NonNull final GifDrawable gif) {
+        mDrawable = drawable;
+        mGif = gif;
+        // The clock advances the frames from now on
+        gif.stop();
+        drawable.setCallback(this);
+        GifClock.register(this, gif);
+    }
+
+    /**
+     * Returns the {@link GifDrawable} driven by the clock. It may be used for reading GIF
+     * properties, but it should not be drawn or started directly.
+     *
+     * @return the GifDrawable
+     */
+    @NonNull
+    public GifDrawable getGifDrawable() {
+        return mGif;
+    }
+
+    /**
+     * @return the wrapped {@link GifDrawable} or {@link SharedGifDrawable}
+     */
+    @NonNull
+    Drawable getWrappedDrawable() {
+        return mDrawable;
+    }
+
+    /**
+     * Stops the clock from driving this Drawable
+     */
+    void unregister() {
+        GifClock.unregister(this, mGif);
+        mDrawable.setCallback(null);
+    }
+
+    @Override
+    public void draw(@NonNull final Canvas canvas) {
+        mDrawable.draw(canvas);
+        // Drawn, so the clock may have to resume
+        GifClock.ensureTicking();
+    }
+
+    @Override
+    protected void onBoundsChange(final Rect bounds) {
+        mDrawable.setBounds(bounds);
+    }
+
+    @Override
+    public void setAlpha(final int alpha) {
+        mDrawable.setAlpha(alpha);
+    }
+
+    @Override
+    public int getAlpha() {
+        return mDrawable.getAlpha();
+    }
+
+    @Override
+    public void setColorFilter(@Nullable final ColorFilter colorFilter) {
+        mDrawable.setColorFilter(colorFilter);
+    }
+
+    @Override
+    public int getOpacity() {
+        return mDrawable.getOpacity();
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mDrawable.getIntrinsicWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mDrawable.getIntrinsicHeight();
+    }
+
+    /**
+     * Visibility is not forwarded, since a visible GifDrawable starts its own scheduling.
+     * The clock reads the visibility of this Drawable instead.
+     */
+    @Override
+    public boolean setVisible(final boolean visible, final boolean restart) {
+        final boolean changed = super.setVisible(visible, restart);
+        if (changed && visible) {
+            GifClock.ensureTicking();
+        }
+        return changed;
+    }
+
+    @Override
+    public void start() {
+        GifClock.setRunning(mGif, true);
+    }
+
+    @Override
+    public void stop() {
+        GifClock.setRunning(mGif, false);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return GifClock.isRunning(mGif);
+    }
+
+    @Override
+    public void invalidateDrawable(@NonNull final Drawable who) {
+        invalidateSelf();
+    }
+
+    @Override
+    public void scheduleDrawable(@NonNull final Drawable who,
+            @NonNull final Runnable what,
+            final long when) {
+        scheduleSelf(what, when);
+    }
+
+    @Override
+    public void unscheduleDrawable(@NonNull final Drawable who, @NonNull final Runnable what) {
+        unscheduleSelf(what);
+    }
+}
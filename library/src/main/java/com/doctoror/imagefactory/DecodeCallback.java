@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+
+/**
+ * Receives the result of
+ * {@link ImageFactory#decodeAsync(android.content.res.Resources, ImageSource,
+ * android.graphics.BitmapFactory.Options, DecodeCallback)} on the main thread.
+ * Neither method is called if the request was cancelled.
+ */
+public interface DecodeCallback {
+
+    /**
+     * Called when the image was decoded
+     *
+     * @param drawable the decoded {@link Drawable}
+     */
+    void onDecoded(@NonNull Drawable drawable);
+
+    /**
+     * Called when the image could not be decoded
+     *
+     * @param e the cause
+     */
+    void onDecodeFailed(@NonNull Exception e);
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Describes a finished decode, delivered to the {@link DecodeListener}. Timings are measured
+ * with {@link System#nanoTime()}.
+ */
+public final class DecodeEvent {
+
+    /**
+     * Kind of the {@link ImageSource}
+     */
+    public enum SourceType {
+        BYTE_ARRAY,
+        BYTE_BUFFER,
+        STREAM,
+        FILE,
+        FILE_DESCRIPTOR,
+        RESOURCE,
+        ASSET
+    }
+
+    /**
+     * The way the Drawable was produced
+     */
+    public enum Path {
+
+        /**
+         * Returned from the {@link DrawableCache}, nothing was read
+         */
+        CACHE,
+
+        /**
+         * Decoded as {@link pl.droidsonroids.gif.GifDrawable}
+         */
+        GIF,
+
+        /**
+         * Decoded with {@link android.graphics.BitmapFactory}
+         */
+        BITMAP,
+
+        /**
+         * Decoded with {@link android.graphics.BitmapFactory}, reusing a Bitmap from the
+         * {@link BitmapPool} if it had one that fits
+         */
+        BITMAP_REUSED,
+
+        /**
+         * A single frame of an animated GIF decoded for {@link DecodeMode#STILL_FRAME}
+         */
+        STILL_FRAME,
+
+        /**
+         * Decoded by a {@link DrawableDecoder} registered with {@link FormatDetector}
+         */
+        CUSTOM_DECODER
+    }
+
+    @NonNull
+    private final SourceType mSourceType;
+
+    private final long mStartNanos;
+    private long mOpenedNanos;
+    private long mSniffedNanos;
+    private long mFinishedNanos;
+
+    @Nullable
+    private Path mPath;
+
+    @NonNull
+    private ImageFormat mFormat = ImageFormat.UNKNOWN;
+
+    private boolean mAnimated;
+    private long mSniffBytes;
+    private long mAllocationBytes;
+
+    @Nullable
+    private Throwable mError;
+
+    DecodeEvent(@NonNull final SourceType sourceType) {
+        mSourceType = sourceType;
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the kind of the decoded source
+     */
+    @NonNull
+    public SourceType getSourceType() {
+        return mSourceType;
+    }
+
+    /**
+     * @return the way the Drawable was produced, or null if the decode failed before it was
+     * chosen
+     */
+    @Nullable
+    public Path getPath() {
+        return mPath;
+    }
+
+    /**
+     * @return the detected format, {@link ImageFormat#UNKNOWN} if not detected
+     */
+    @NonNull
+    public ImageFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return true if the image was detected as animated GIF
+     */
+    public boolean isAnimated() {
+        return mAnimated;
+    }
+
+    /**
+     * @return number of bytes of the image data the sniffer went through. 0 if the format was
+     * known from the {@link ProbeIndex} or the Drawable was cached.
+     */
+    public long getSniffBytes() {
+        return mSniffBytes;
+    }
+
+    /**
+     * @return nanoseconds spent opening the source, like opening a file or an asset
+     */
+    public long getOpenNanos() {
+        return mOpenedNanos != 0 ? mOpenedNanos - mStartNanos : 0;
+    }
+
+    /**
+     * @return nanoseconds spent detecting the format and reading the size before decoding
+     */
+    public long getSniffNanos() {
+        return mSniffedNanos != 0 && mOpenedNanos != 0 ? mSniffedNanos - mOpenedNanos : 0;
+    }
+
+    /**
+     * @return nanoseconds spent in the decoder, {@link android.graphics.BitmapFactory},
+     * {@link pl.droidsonroids.gif.GifDrawable} construction or a registered decoder
+     */
+    public long getDecodeNanos() {
+        return mSniffedNanos != 0 ? mFinishedNanos - mSniffedNanos : 0;
+    }
+
+    /**
+     * @return nanoseconds from the start of the request to the result, including cache lookup
+     */
+    public long getTotalNanos() {
+        return mFinishedNanos - mStartNanos;
+    }
+
+    /**
+     * @return number of bytes allocated for the decoded pixels, as
+     * {@link DrawableCache#sizeOf(Drawable)}. 0 for cache hits and failures.
+     */
+    public long getAllocationBytes() {
+        return mAllocationBytes;
+    }
+
+    /**
+     * @return the failure cause, or null if the decode succeeded
+     */
+    @Nullable
+    public Throwable getError() {
+        return mError;
+    }
+
+    /**
+     * @return true if the decode succeeded
+     */
+    public boolean isSuccessful() {
+        return mError == null;
+    }
+
+    void opened() {
+        mOpenedNanos = System.nanoTime();
+    }
+
+    void setSniffBytes(final long sniffBytes) {
+        mSniffBytes = Math.max(mSniffBytes, sniffBytes);
+    }
+
+    /**
+     * Marks the end of sniffing and the chosen path
+     */
+    void sniffed(@NonNull final Path path,
+            @NonNull final ImageFormat format,
+            final boolean animated) {
+        mSniffedNanos = System.nanoTime();
+        mPath = path;
+        mFormat = format;
+        mAnimated = animated;
+    }
+
+    void cacheHit() {
+        mPath = Path.CACHE;
+        mFinishedNanos = System.nanoTime();
+    }
+
+    void finished(@NonNull final Drawable drawable) {
+        mFinishedNanos = System.nanoTime();
+        mAllocationBytes = DrawableCache.sizeOf(drawable);
+    }
+
+    void failed(@NonNull final Throwable error) {
+        mFinishedNanos = System.nanoTime();
+        mError = error;
+    }
+
+    @Override
+    public String toString() {
+        return "DecodeEvent{" +
+                "sourceType=" + mSourceType +
+                ", path=" + mPath +
+                ", format=" + mFormat +
+                ", animated=" + mAnimated +
+                ", sniffBytes=" + mSniffBytes +
+                ", openNanos=" + getOpenNanos() +
+                ", sniffNanos=" + getSniffNanos() +
+                ", decodeNanos=" + getDecodeNanos() +
+                ", totalNanos=" + getTotalNanos() +
+                ", allocationBytes=" + mAllocationBytes +
+                ", error=" + mError +
+                '}';
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs asynchronous decode requests on a bounded pool of background threads, taking queued
+ * requests in priority order, and delivers results on the main thread. Batch decodes read data
+ * on a separate pool of I/O threads.
+ */
+final class DecodeExecutor {
+
+    private DecodeExecutor() {
+        // Private constructor, do not instantiate
+    }
+
+    /**
+     * One decode thread per CPU core
+     */
+    static final int DEFAULT_THREAD_COUNT = Math.max(1,
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Threads reading data for batch decodes. Reads block on storage rather than CPU, so this
+     * does not depend on the number of cores.
+     */
+    private static final int IO_THREAD_COUNT = 4;
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private static int sThreadCount = DEFAULT_THREAD_COUNT;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private static ThreadPoolExecutor sIoExecutor;
+
+    static synchronized void setThreadCount(final int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1");
+        }
+        if (sExecutor != null) {
+            // The maximum size must never be less than the core size
+            if (threadCount > sThreadCount) {
+                sExecutor.setMaximumPoolSize(threadCount);
+                sExecutor.setCorePoolSize(threadCount);
+            } else {
+                sExecutor.setCorePoolSize(threadCount);
+                sExecutor.setMaximumPoolSize(threadCount);
+            }
+        }
+        sThreadCount = threadCount;
+    }
+
+    static synchronized int getThreadCount() {
+        return sThreadCount;
+    }
+
+    /**
+     * Queues the task in priority order
+     */
+    static void execute(@NonNull final PrioritizedTask task) {
+        getExecutor().execute(task);
+    }
+
+    /**
+     * Removes the task if it has not started yet
+     *
+     * @return true if the task was removed from the queue
+     */
+    static boolean remove(@NonNull final PrioritizedTask task) {
+        return getExecutor().remove(task);
+    }
+
+    /**
+     * Queues the task for the I/O threads, in the order of calls
+     */
+    static void executeIo(@NonNull final Runnable task) {
+        getIoExecutor().execute(task);
+    }
+
+    static void postToMainThread(@NonNull final Runnable runnable) {
+        MAIN_HANDLER.post(runnable);
+    }
+
+    static void postToMainThreadDelayed(@NonNull final Runnable runnable, final long delayMillis) {
+        MAIN_HANDLER.postDelayed(runnable, delayMillis);
+    }
+
+    static void removeFromMainThread(@NonNull final Runnable runnable) {
+        MAIN_HANDLER.removeCallbacks(runnable);
+    }
+
+    @NonNull
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(sThreadCount, sThreadCount,
+                    0L, TimeUnit.MILLISECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new DecodeThreadFactory("ImageFactory"));
+        }
+        return sExecutor;
+    }
+
+    @NonNull
+    private static synchronized ThreadPoolExecutor getIoExecutor() {
+        if (sIoExecutor == null) {
+            sIoExecutor = new ThreadPoolExecutor(IO_THREAD_COUNT, IO_THREAD_COUNT,
+                    0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new DecodeThreadFactory("ImageFactory IO"));
+        }
+        return sIoExecutor;
+    }
+
+    private static final class DecodeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @NonNull
+        private final String mName;
+
+        DecodeThreadFactory(@NonNull final String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull final Runnable r) {
+            return new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + " #" + mCount.getAndIncrement());
+        }
+    }
+}
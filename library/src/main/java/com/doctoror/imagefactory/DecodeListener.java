@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives an event for every decode, set with
+ * {@link ImageFactory#setDecodeListener(DecodeListener)}. When no listener is set, nothing is
+ * measured. Decodes that joined the same decode already in progress are not reported, the decode
+ * they joined is.
+ *
+ * @see DecodeStats
+ */
+public interface DecodeListener {
+
+    /**
+     * Called on the decoding thread when a decode succeeded or failed. Must be thread safe and
+     * fast, since it delays the result.
+     *
+     * @param event the finished decode
+     */
+    void onDecodeFinished(@NonNull DecodeEvent event);
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+/**
+ * Defines how an animated image is decoded
+ */
+public enum DecodeMode {
+
+    /**
+     * Animated images are decoded to an animated Drawable
+     */
+    ANIMATED,
+
+    /**
+     * Only the frame at {@link DecodeOptions#inFrameIndex} is decoded to a
+     * {@link android.graphics.drawable.BitmapDrawable}. The data following the frame is not
+     * read.
+     */
+    STILL_FRAME
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * {@link BitmapFactory.Options} with additional options understood by {@link ImageFactory}.
+ * Can be passed to every decode method which accepts {@link BitmapFactory.Options}.
+ */
+public class DecodeOptions extends BitmapFactory.Options {
+
+    /**
+     * If set to a value &gt; 0 together with or without {@link #inTargetHeight}, the
+     * {@link #inSampleSize} is computed from the image header so that the decoded image is not
+     * smaller than needed to display it at this width in pixels according to
+     * {@link #inScalePolicy}. Applies to both static images and animated GIFs. The computed
+     * value overwrites {@link #inSampleSize}.
+     */
+    public int inTargetWidth;
+
+    /**
+     * Target height in pixels
+     *
+     * @see #inTargetWidth
+     */
+    public int inTargetHeight;
+
+    /**
+     * How the image is fitted into the target size. {@link ScalePolicy#FIT} by default.
+     */
+    @NonNull
+    public ScalePolicy inScalePolicy = ScalePolicy.FIT;
+
+    /**
+     * How animated images are decoded. {@link DecodeMode#ANIMATED} by default.
+     */
+    @NonNull
+    public DecodeMode inDecodeMode = DecodeMode.ANIMATED;
+
+    /**
+     * Index of the frame to decode when {@link #inDecodeMode} is
+     * {@link DecodeMode#STILL_FRAME}. The first frame is decoded by default. Decoding fails if
+     * the image has no frame at this index.
+     */
+    public int inFrameIndex;
+
+    /**
+     * If set, a static image whose header proves it has no alpha is decoded as
+     * {@link Bitmap.Config#RGB_565}, which takes half the memory of
+     * {@link Bitmap.Config#ARGB_8888}. That is JPEG, PNG and WebP without alpha, and GIF without
+     * a transparent color whose frame covers the logical screen. Other images are decoded as
+     * {@link Bitmap.Config#ARGB_8888}. Applies only when {@link #inPreferredConfig} is
+     * {@link Bitmap.Config#ARGB_8888} or null. The picked config is written to
+     * {@link #outAutoConfig}.
+     */
+    public boolean inAutoConfig;
+
+    /**
+     * The config picked for a static image when {@link #inAutoConfig} is set, or null if the
+     * config was not picked automatically
+     */
+    @Nullable
+    public Bitmap.Config outAutoConfig;
+
+    /**
+     * If set, animated GIFs are returned as {@link ClockedGifDrawable}, whose frames are
+     * advanced by the {@link GifClock} shared by all such Drawables instead of each GIF
+     * scheduling its own frames.
+     */
+    public boolean inSharedClock;
+
+    public DecodeOptions() {
+    }
+
+    /**
+     * Creates options with target size
+     *
+     * @param targetWidth  target width in pixels
+     * @param targetHeight target height in pixels
+     * @param scalePolicy  how the image is fitted into the target size
+     */
+    public DecodeOptions(final int targetWidth,
+            final int targetHeight,
+            @NonNull final ScalePolicy scalePolicy) {
+        inTargetWidth = targetWidth;
+        inTargetHeight = targetHeight;
+        inScalePolicy = scalePolicy;
+    }
+
+    /**
+     * @return true if target width or height is set
+     */
+    public boolean hasTargetSize() {
+        return inTargetWidth > 0 || inTargetHeight > 0;
+    }
+
+    /**
+     * @return true if only a single frame of an animated image is decoded
+     */
+    public boolean isStillFrame() {
+        return inDecodeMode == DecodeMode.STILL_FRAME;
+    }
+
+    /**
+     * Copies the input fields of the options, so that each of concurrent decodes writes the
+     * output fields to its own instance. The temp storage and the Bitmap to reuse are not
+     * copied since they can not be shared.
+     *
+     * @param options the options to copy, may be null
+     * @return new options
+     */
+    @NonNull
+    static DecodeOptions copyOf(@Nullable final BitmapFactory.Options options) {
+        final DecodeOptions copy = new DecodeOptions();
+        if (options != null) {
+            copy.inJustDecodeBounds = options.inJustDecodeBounds;
+            copy.inSampleSize = options.inSampleSize;
+            copy.inPreferredConfig = options.inPreferredConfig;
+            copy.inDither = options.inDither;
+            copy.inScaled = options.inScaled;
+            copy.inDensity = options.inDensity;
+            copy.inTargetDensity = options.inTargetDensity;
+            copy.inScreenDensity = options.inScreenDensity;
+            copy.inPurgeable = options.inPurgeable;
+            copy.inInputShareable = options.inInputShareable;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1) {
+                copyPreferQualityOverSpeed(options, copy);
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                copyMutable(options, copy);
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                copyPremultiplied(options, copy);
+            }
+            if (options instanceof DecodeOptions) {
+                final DecodeOptions decodeOptions = (DecodeOptions) options;
+                copy.inTargetWidth = decodeOptions.inTargetWidth;
+                copy.inTargetHeight = decodeOptions.inTargetHeight;
+                copy.inScalePolicy = decodeOptions.inScalePolicy;
+                copy.inDecodeMode = decodeOptions.inDecodeMode;
+                copy.inFrameIndex = decodeOptions.inFrameIndex;
+                copy.inAutoConfig = decodeOptions.inAutoConfig;
+                copy.inSharedClock = decodeOptions.inSharedClock;
+            }
+        }
+        return copy;
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    private static void copyPreferQualityOverSpeed(@NonNull final BitmapFactory.Options from,
+            @NonNull final BitmapFactory.Options to) {
+        to.inPreferQualityOverSpeed = from.inPreferQualityOverSpeed;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void copyMutable(@NonNull final BitmapFactory.Options from,
+            @NonNull final BitmapFactory.Options to) {
+        to.inMutable = from.inMutable;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void copyPremultiplied(@NonNull final BitmapFactory.Options from,
+            @NonNull final BitmapFactory.Options to) {
+        to.inPremultiplied = from.inPremultiplied;
+    }
+
+    /**
+     * @return true if the config of a static image should be picked by its alpha
+     */
+    boolean isAutoConfig() {
+        return inAutoConfig
+                && (inPreferredConfig == null || inPreferredConfig == Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Computes sample size for an image of the given size
+     */
+    int computeSampleSize(final int width, final int height) {
+        return inScalePolicy.computeSampleSize(width, height, inTargetWidth, inTargetHeight);
+    }
+}
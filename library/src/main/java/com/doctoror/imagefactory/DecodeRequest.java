@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.content.res.Resources;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle of an asynchronous decode started by
+ * {@link ImageFactory#decodeAsync(Resources, ImageSource, BitmapFactory.Options, DecodePriority,
+ * DecodeCallback)}. A request that is cancelled while queued never starts decoding. A request
+ * cancelled later does not deliver its result. If the same source is already being decoded with
+ * the same options, the request waits for that result instead of decoding again, and cancelling
+ * it does not affect the other request. The methods may be called from any thread.
+ */
+public final class DecodeRequest {
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_QUEUED);
+
+    @Nullable
+    private final Resources mResources;
+
+    @NonNull
+    private final ImageSource mSource;
+
+    @Nullable
+    private final BitmapFactory.Options mOptions;
+
+    /**
+     * Cleared when cancelled so that the callback and what it references are not retained
+     */
+    @Nullable
+    private volatile DecodeCallback mCallback;
+
+    private final Task mTask;
+
+    DecodeRequest(@Nullable final Resources res,
+            @NonNull final ImageSource source,
+            @Nullable final BitmapFactory.Options options,
+            @NonNull final DecodePriority priority,
+            @NonNull final DecodeCallback callback) {
+        mResources = res;
+        mSource = source;
+        mOptions = options;
+        mCallback = callback;
+        mTask = new Task(priority);
+    }
+
+    void enqueue() {
+        DecodeExecutor.execute(mTask);
+    }
+
+    /**
+     * @return the priority the request was made with
+     */
+    @NonNull
+    public DecodePriority getPriority() {
+        return mTask.getPriority();
+    }
+
+    /**
+     * Cancels the request. The callback is not called after this method returns, if called on
+     * the main thread.
+     *
+     * @return true if the request was cancelled, false if it was already done or cancelled
+     */
+    public boolean cancel() {
+        while (true) {
+            final int state = mState.get();
+            if (state == STATE_DONE || state == STATE_CANCELLED) {
+                return false;
+            }
+            if (mState.compareAndSet(state, STATE_CANCELLED)) {
+                mCallback = null;
+                if (state == STATE_QUEUED) {
+                    DecodeExecutor.remove(mTask);
+                } else {
+                    // Leaves the decode in progress it may have subscribed to
+                    PendingDecode.unsubscribe(mTask);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if {@link #cancel()} succeeded
+     */
+    public boolean isCancelled() {
+        return mState.get() == STATE_CANCELLED;
+    }
+
+    /**
+     * @return true if the result was delivered to the callback
+     */
+    public boolean isDone() {
+        return mState.get() == STATE_DONE;
+    }
+
+    private void run() {
+        if (!mState.compareAndSet(STATE_QUEUED, STATE_RUNNING)) {
+            return;
+        }
+        final Drawable result;
+        try {
+            result = ImageFactory.decode(mResources, mSource, null, mOptions, mTask);
+        } catch (Throwable e) {
+            // Errors like OutOfMemoryError are delivered too, or the request never completes
+            DecodeExecutor.postToMainThread(new Delivery(null, toException(e)));
+            return;
+        }
+        if (result != null) {
+            DecodeExecutor.postToMainThread(
+                    new Delivery(ImageFactory.withSharedClock(result, mOptions), null));
+        }
+        // Otherwise subscribed to the same decode in progress, delivered by onDecodeComplete()
+    }
+
+    @NonNull
+    private static Exception toException(@Nullable final Throwable error) {
+        if (error instanceof Exception) {
+            return (Exception) error;
+        }
+        final IOException e = new IOException("Shared decode failed");
+        e.initCause(error);
+        return e;
+    }
+
+    private final class Delivery implements Runnable {
+
+        @Nullable
+        private final Drawable mResult;
+
+        @Nullable
+        private final Exception mError;
+
+        Delivery(@Nullable final Drawable result, @Nullable final Exception error) {
+            mResult = result;
+            mError = error;
+        }
+
+        @Override
+        public void run() {
+            final DecodeCallback callback = mCallback;
+            if (callback == null || !mState.compareAndSet(STATE_RUNNING, STATE_DONE)) {
+                // Cancelled after decoding had started
+                ImageFactory.release(mResult);
+                return;
+            }
+            mCallback = null;
+            if (mResult != null) {
+                callback.onDecoded(mResult);
+            } else {
+                callback.onDecodeFailed(mError);
+            }
+        }
+    }
+
+    /**
+     * Queued in {@link DecodeExecutor}. Also receives the result of the same decode requested
+     * earlier, if one was in progress.
+     */
+    private final class Task extends PrioritizedTask implements PendingDecode.Listener {
+
+        Task(@NonNull final DecodePriority priority) {
+            super(priority);
+        }
+
+        @Override
+        public void run() {
+            DecodeRequest.this.run();
+        }
+
+        @Override
+        public void onDecodeComplete(@Nullable final Drawable.ConstantState state,
+                @Nullable final BitmapFactory.Options options,
+                @Nullable final Throwable error) {
+            if (isCancelled()) {
+                return;
+            }
+            if (state != null) {
+                PendingDecode.copyOutFields(options, mOptions);
+                DecodeExecutor.postToMainThread(new Delivery(ImageFactory.withSharedClock(
+                        state.newDrawable(mResources).mutate(), mOptions), null));
+            } else {
+                DecodeExecutor.postToMainThread(new Delivery(null, toException(error)));
+            }
+        }
+    }
+}
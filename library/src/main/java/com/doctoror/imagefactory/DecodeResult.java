@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Result of one item of
+ * {@link ImageFactory#decodeAll(android.content.res.Resources, java.util.Collection,
+ * android.graphics.BitmapFactory.Options)}. Holds either the decoded Drawable or the error.
+ */
+public final class DecodeResult {
+
+    @NonNull
+    private final ImageSource mSource;
+
+    @Nullable
+    private final Drawable mDrawable;
+
+    @Nullable
+    private final Throwable mError;
+
+    DecodeResult(@NonNull final ImageSource source,
+            @Nullable final Drawable drawable,
+            @Nullable final Throwable error) {
+        mSource = source;
+        mDrawable = drawable;
+        mError = error;
+    }
+
+    /**
+     * @return the source this result is for
+     */
+    @NonNull
+    public ImageSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return the decoded Drawable, or null if decoding failed
+     */
+    @Nullable
+    public Drawable getDrawable() {
+        return mDrawable;
+    }
+
+    /**
+     * @return the cause if decoding failed, or null if succeeded
+     */
+    @Nullable
+    public Throwable getError() {
+        return mError;
+    }
+
+    /**
+     * @return true if the Drawable was decoded
+     */
+    public boolean isSuccessful() {
+        return mDrawable != null;
+    }
+
+    @Override
+    public String toString() {
+        return "DecodeResult{" +
+                "drawable=" + mDrawable +
+                ", error=" + mError +
+                '}';
+    }
+}
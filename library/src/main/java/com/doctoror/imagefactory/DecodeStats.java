@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+import android.support.annotation.NonNull;
+
+/**
+ * {@link DecodeListener} which aggregates the events into counters and histograms, for
+ * reporting decode performance from the field.
+ * <pre>
+ * final DecodeStats stats = new DecodeStats();
+ * ImageFactory.setDecodeListener(stats);
+ * ...
+ * Log.i(TAG, "p90 decode ms: " + stats.getDecodeNanos().getPercentile(90) / 1000000);
+ * </pre>
+ */
+public final class DecodeStats implements DecodeListener {
+
+    private final int[] mPathCounts = new int[DecodeEvent.Path.values().length];
+
+    private int mDecodeCount;
+    private int mFailureCount;
+
+    private final Histogram mOpenNanos = new Histogram();
+    private final Histogram mSniffNanos = new Histogram();
+    private final Histogram mDecodeNanos = new Histogram();
+    private final Histogram mTotalNanos = new Histogram();
+    private final Histogram mSniffBytes = new Histogram();
+    private final Histogram mAllocationBytes = new Histogram();
+
+    @Override
+    public synchronized void onDecodeFinished(@NonNull final DecodeEvent event) {
+        mDecodeCount++;
+        mTotalNanos.record(event.getTotalNanos());
+        final DecodeEvent.Path path = event.getPath();
+        if (!event.isSuccessful()) {
+            mFailureCount++;
+        } else if (path != null) {
+            mPathCounts[path.ordinal()]++;
+        }
+        if (path != DecodeEvent.Path.CACHE) {
+            mOpenNanos.record(event.getOpenNanos());
+            mSniffNanos.record(event.getSniffNanos());
+            mDecodeNanos.record(event.getDecodeNanos());
+            mSniffBytes.record(event.getSniffBytes());
+            if (event.isSuccessful()) {
+                mAllocationBytes.record(event.getAllocationBytes());
+            }
+        }
+    }
+
+    /**
+     * @return number of decodes, including cache hits and failures
+     */
+    public synchronized int getDecodeCount() {
+        return mDecodeCount;
+    }
+
+    /**
+     * @return number of failed decodes
+     */
+    public synchronized int getFailureCount() {
+        return mFailureCount;
+    }
+
+    /**
+     * @param path the path
+     * @return number of successful decodes that took the path
+     */
+    public synchronized int getCount(@NonNull final DecodeEvent.Path path) {
+        return mPathCounts[path.ordinal()];
+    }
+
+    /**
+     * @return snapshot of {@link DecodeEvent#getOpenNanos()} of the decodes that were not
+     * cache hits
+     */
+    @NonNull
+    public synchronized Histogram getOpenNanos() {
+        return new Histogram(mOpenNanos);
+    }
+
+    /**
+     * @return snapshot of {@link DecodeEvent#getSniffNanos()} of the decodes that were not
+     * cache hits
+     */
+    @NonNull
+    public synchronized Histogram getSniffNanos() {
+        return new Histogram(mSniffNanos);
+    }
+
+    /**
+     * @return snapshot of {@link DecodeEvent#getDecodeNanos()} of the decodes that were not
+     * cache hits
+     */
+    @NonNull
+    public synchronized Histogram getDecodeNanos() {
+        return new Histogram(mDecodeNanos);
+    }
+
+    /**
+     * @return snapshot of {@link DecodeEvent#getTotalNanos()} of all decodes
+     */
+    @NonNull
+    public synchronized Histogram getTotalNanos() {
+        return new Histogram(mTotalNanos);
+    }
+
+    /**
+     * @return snapshot of {@link DecodeEvent#getSniffBytes()} of the decodes that were not
+     * cache hits
+     */
+    @NonNull
+    public synchronized Histogram getSniffBytes() {
+        return new Histogram(mSniffBytes);
+    }
+
+    /**
+     * @return snapshot of {@link DecodeEvent#getAllocationBytes()} of the successful decodes
+     * that were not cache hits
+     */
+    @NonNull
+    public synchronized Histogram getAllocationBytes() {
+        return new Histogram(mAllocationBytes);
+    }
+
+    /**
+     * Clears all counters and histograms
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < mPathCounts.length; i++) {
+            mPathCounts[i] = 0;
+        }
+        mDecodeCount = 0;
+        mFailureCount = 0;
+        mOpenNanos.clear();
+        mSniffNanos.clear();
+        mDecodeNanos.clear();
+        mTotalNanos.clear();
+        mSniffBytes.clear();
+        mAllocationBytes.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("DecodeStats{decodes=").append(mDecodeCount)
+                .append(", failures=").append(mFailureCount);
+        for (final DecodeEvent.Path path : DecodeEvent.Path.values()) {
+            sb.append(", ").append(path).append('=').append(mPathCounts[path.ordinal()]);
+        }
+        return sb.append(", openNanos=").append(mOpenNanos)
+                .append(", sniffNanos=").append(mSniffNanos)
+                .append(", decodeNanos=").append(mDecodeNanos)
+                .append(", totalNanos=").append(mTotalNanos)
+                .append(", sniffBytes=").append(mSniffBytes)
+                .append(", allocationBytes=").append(mAllocationBytes)
+                .append('}').toString();
+    }
+
+    /**
+     * Histogram of non-negative values with buckets growing exponentially, each power of two
+     * split into 8 linear sub-buckets. Values below 8 are exact, larger values are reported with
+     * at most 12.5% error. Recording does not allocate.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        /**
+         * Exact buckets for values below {@link #SUB_BUCKETS}, then sub-buckets for every power
+         * of two up to 2^62
+         */
+        private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final long[] mCounts;
+
+        private long mCount;
+        private long mSum;
+        private long mMax;
+
+        Histogram() {
+            mCounts = new long[BUCKETS];
+        }
+
+        Histogram(@NonNull final Histogram source) {
+            mCounts = source.mCounts.clone();
+            mCount = source.mCount;
+            mSum = source.mSum;
+            mMax = source.mMax;
+        }
+
+        void record(final long value) {
+            final long v = Math.max(0, value);
+            mCounts[bucketOf(v)]++;
+            mCount++;
+            mSum += v;
+            if (v > mMax) {
+                mMax = v;
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = 0;
+            }
+            mCount = 0;
+            mSum = 0;
+            mMax = 0;
+        }
+
+        /**
+         * @return number of recorded values
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the largest recorded value, 0 if empty
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return mean of the recorded values, 0 if empty
+         */
+        public long getMean() {
+            return mCount != 0 ? mSum / mCount : 0;
+        }
+
+        /**
+         * Returns the value below or at which the percentage of the recorded values fall. The
+         * upper bound of the bucket is returned, but not more than the max.
+         *
+         * @param percentile the percentile in range 0..100
+         * @return the value at percentile, 0 if empty
+         */
+        public long getPercentile(final double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(
+                    Math.min(100, Math.max(0, percentile)) / 100 * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(mMax, upperBoundOf(i));
+                }
+            }
+            return mMax;
+        }
+
+        static int bucketOf(final long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            final int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBoundOf(final int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            final int sub = bucket % SUB_BUCKETS;
+            final int shift = exponent - SUB_BUCKET_BITS;
+            return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + mCount +
+                    ", mean=" + getMean() +
+                    ", p50=" + getPercentile(50) +
+                    ", p90=" + getPercentile(90) +
+                    ", p99=" + getPercentile(99) +
+                    ", max=" + mMax +
+                    '}';
+        }
+    }
+}
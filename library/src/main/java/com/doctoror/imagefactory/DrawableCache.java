@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pl.droidsonroids.gif.GifDrawable;
+
+/**
+ * Least recently used cache of decoded Drawables, bounded by the number of bytes the decoded
+ * pixels occupy. A {@link BitmapDrawable} weighs the byte count of its Bitmap, a
+ * {@link GifDrawable} weighs its allocation byte count, so a single large animated GIF evicts
+ * as many entries as its buffers need.
+ * <p>
+ * Entries are kept as {@link Drawable.ConstantState} and every hit returns a new Drawable, so
+ * callers never share bounds, alpha or callback. Animated GIFs are returned as
+ * {@link SharedGifDrawable}, which draws the one cached {@link GifDrawable}.
+ * <p>
+ * Set the cache with {@link ImageFactory#setDrawableCache(DrawableCache)}.
+ * This class is thread safe.
+ */
+public final class DrawableCache {
+
+    private final LinkedHashMap<Object, Entry> mMap;
+
+    private long mMaxSize;
+    private long mSize;
+
+    private int mPutCount;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize the maximum total size of entries, in bytes
+     * @throws IllegalArgumentException if maxSize is not positive
+     */
+    public DrawableCache(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mMap = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns a new Drawable for the cached entry, or null if there is no entry for the key
+     *
+     * @param key the key
+     * @param res Resources to use when creating the Drawable
+     * @return new Drawable or null if not cached
+     */
+    @Nullable
+    public Drawable get(@NonNull final Object key, @Nullable final Resources res) {
+        final Entry entry;
+        synchronized (this) {
+            entry = mMap.get(key);
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+            if (entry.state instanceof SharedGifDrawable.SharedGifState
+                    && ((SharedGifDrawable.SharedGifState) entry.state).mGif.isRecycled()) {
+                // Recycled by the GifMemoryBudget
+                mMap.remove(key);
+                mSize -= entry.size;
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+        }
+        // mutate() so the new Drawable does not share paint with the cached state
+        return entry.state.newDrawable(res).mutate();
+    }
+
+    /**
+     * Caches the Drawable and returns the Drawable the caller should use instead of the passed
+     * one. A {@link GifDrawable} becomes owned by the cache and must not be used directly, a
+     * {@link SharedGifDrawable} is returned for it. If the Drawable can not be cached, it is
+     * returned as is.
+     *
+     * @param key      the key
+     * @param drawable the decoded Drawable
+     * @param res      Resources to use when creating the Drawable
+     * @return the Drawable to use
+     */
+    @NonNull
+    public Drawable put(@NonNull final Object key,
+            @NonNull final Drawable drawable,
+            @Nullable final Resources res) {
+        final long size = sizeOf(drawable);
+        if (size <= 0 || size > maxSize()) {
+            return drawable;
+        }
+
+        final Drawable.ConstantState state;
+        final Drawable result;
+        if (drawable instanceof GifDrawable) {
+            state = new SharedGifDrawable.SharedGifState((GifDrawable) drawable);
+            result = state.newDrawable(res);
+        } else {
+            state = drawable.getConstantState();
+            if (state == null) {
+                return drawable;
+            }
+            // mutate() detaches the returned Drawable from the cached state
+            result = drawable.mutate();
+        }
+
+        synchronized (this) {
+            mPutCount++;
+            final Entry previous = mMap.put(key, new Entry(state, size));
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+            mSize += size;
+            trimToSizeLocked(mMaxSize);
+        }
+        return result;
+    }
+
+    /**
+     * Removes the entry for the key
+     *
+     * @param key the key
+     * @return true if there was an entry
+     */
+    public synchronized boolean remove(@NonNull final Object key) {
+        final Entry previous = mMap.remove(key);
+        if (previous != null) {
+            mSize -= previous.size;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes all entries
+     */
+    public synchronized void evictAll() {
+        trimToSizeLocked(-1);
+    }
+
+    /**
+     * Removes the least recently used entries until the total size is at most the given size
+     *
+     * @param maxSize the size to trim to, in bytes
+     */
+    public synchronized void trimToSize(final long maxSize) {
+        trimToSizeLocked(maxSize);
+    }
+
+    /**
+     * Changes the maximum size and evicts entries that no longer fit
+     *
+     * @param maxSize the new maximum size, in bytes
+     * @throws IllegalArgumentException if maxSize is not positive
+     */
+    public synchronized void resize(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        trimToSizeLocked(maxSize);
+    }
+
+    /**
+     * @return the total size of cached entries, in bytes
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * @return the maximum total size of cached entries, in bytes
+     */
+    public synchronized long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public synchronized int entryCount() {
+        return mMap.size();
+    }
+
+    /**
+     * @return the number of times {@link #get(Object, Resources)} returned a Drawable
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of times {@link #get(Object, Resources)} returned null
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of entries added by {@link #put(Object, Drawable, Resources)}
+     */
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    /**
+     * @return the number of entries evicted to stay within the maximum size
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Returns the number of bytes the Drawable pixels occupy
+     *
+     * @param drawable the Drawable to measure
+     * @return size in bytes, or 0 if unknown
+     */
+    public static long sizeOf(@NonNull final Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            return bitmap != null ? (long) bitmap.getRowBytes() * bitmap.getHeight() : 0;
+        }
+        if (drawable instanceof GifDrawable) {
+            return ((GifDrawable) drawable).getAllocationByteCount();
+        }
+        if (drawable instanceof SharedGifDrawable) {
+            return ((SharedGifDrawable) drawable).getGifDrawable().getAllocationByteCount();
+        }
+        return 0;
+    }
+
+    private void trimToSizeLocked(final long maxSize) {
+        final Iterator<Map.Entry<Object, Entry>> iterator = mMap.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            mSize -= eldest.size;
+            mEvictionCount++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "DrawableCache{" +
+                "maxSize=" + mMaxSize +
+                ", size=" + mSize +
+                ", hits=" + mHitCount +
+                ", misses=" + mMissCount +
+                ", hitRate=" + hitPercent + '%' +
+                ", evictions=" + mEvictionCount +
+                '}';
+    }
+
+    private static final class Entry {
+
+        final Drawable.ConstantState state;
+        final long size;
+
+        Entry(@NonNull final Drawable.ConstantState state, final long size) {
+            this.state = state;
+            this.size = size;
+        }
+    }
+}
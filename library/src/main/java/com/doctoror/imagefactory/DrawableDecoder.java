@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+import android.content.res.Resources;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a format recognized by {@link FormatDetector}. Registered with
+ * {@link FormatDetector#register(byte[], byte[], DrawableDecoder)} to send a format, like
+ * animated WebP or APNG, to a specialized decoder. Implementations must be thread safe.
+ */
+public interface DrawableDecoder {
+
+    /**
+     * Called when the magic bytes match, to let the decoder look further into the header, e.g.
+     * to accept only the animated variant of a format. If false is returned, the next decoder
+     * registered for matching magic bytes is asked.
+     *
+     * @param header the header prefix, at most {@link FormatDetector#HEADER_SIZE} bytes
+     * @param length the number of valid bytes in header
+     * @return true if this decoder handles the image
+     */
+    boolean canDecode(@NonNull byte[] header, int length);
+
+    /**
+     * Decodes the image. The header prefix is already read, the data continues in rest, so
+     * nothing has to be read twice.
+     *
+     * @param res          optional Resources for the Drawable
+     * @param header       the header prefix, at most {@link FormatDetector#HEADER_SIZE} bytes
+     * @param headerLength the number of valid bytes in header
+     * @param rest         the image data following the header. Closed by the caller.
+     * @param options      optional decode options
+     * @return the decoded Drawable
+     * @throws IOException if the image could not be decoded
+     */
+    @NonNull
+    Drawable decode(@Nullable Resources res,
+            @NonNull byte[] header,
+            int headerLength,
+            @NonNull InputStream rest,
+            @Nullable BitmapFactory.Options options) throws IOException;
+}
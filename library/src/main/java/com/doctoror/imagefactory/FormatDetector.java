@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.doctoror.imagefactory;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Registry of image formats keyed on the magic bytes at the beginning of the image data. A
+ * fixed size header prefix is read once, then the decoder is looked up in a table indexed by the
+ * first byte, so only the formats sharing the first byte are compared. Decoders registered later
+ * are asked before the ones registered earlier, so the built-in decoders for GIF, PNG and APNG,
+ * JPEG, WebP and animated WebP can be overridden.
+ */
+public final class FormatDetector {
+
+    /**
+     * Number of bytes read from the beginning of the image data for detection. Large enough
+     * for a PNG header with the APNG animation control chunk following the image header chunk,
+     * and for the WebP extended format flags.
+     */
+    public static final int HEADER_SIZE = 64;
+
+    private static final byte[] GIF_MAGIC = {'G', 'I', 'F', '8'};
+
+    private static final byte[] PNG_MAGIC = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    private static final byte[] JPEG_MAGIC = {(byte) 0xff, (byte) 0xd8, (byte) 0xff};
+
+    private static final byte[] WEBP_MAGIC = {
+            'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P'
+    };
+
+    private static final byte[] WEBP_MASK = {
+            (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0, 0, 0, 0,
+            (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff
+    };
+
+    /**
+     * WebP extended format animation flag
+     */
+    private static final int WEBP_FLAG_ANIMATION = 0x02;
+
+    /**
+     * WebP extended format alpha flag
+     */
+    private static final int WEBP_FLAG_ALPHA = 0x10;
+
+    private static final byte WEBP_LOSSLESS_SIGNATURE = 0x2f;
+
+    /**
+     * Bit of the lossless header byte 24 that tells whether alpha is used
+     */
+    private static final int WEBP_LOSSLESS_ALPHA = 0x10;
+
+    /**
+     * Bit of the PNG color type that tells the pixels have an alpha channel
+     */
+    private static final int PNG_COLOR_TYPE_ALPHA = 0x04;
+
+    /**
+     * Chains of entries by the first magic byte. Replaced as a whole on every change, so lookups
+     * do not need to lock.
+     */
+    private static volatile Entry[] sTable = new Entry[256];
+
+    private static volatile int sCustomDecoderCount;
+
+    static {
+        addEntry(new Entry(GIF_MAGIC, null, new BuiltInDecoder(ImageFormat.GIF)));
+        addEntry(new Entry(PNG_MAGIC, null, new BuiltInDecoder(ImageFormat.PNG)));
+        addEntry(new Entry(JPEG_MAGIC, null, new BuiltInDecoder(ImageFormat.JPEG)));
+        addEntry(new Entry(WEBP_MAGIC, WEBP_MASK, new BuiltInDecoder(ImageFormat.WEBP)));
+    }
+
+    private FormatDetector() {
+        // Private constructor, do not instantiate
+    }
+
+    /**
+     * Registers decoder for the images starting with magic bytes
+     *
+     * @param magic   the bytes at the beginning of the image data
+     * @param decoder the decoder
+     * @see #register(byte[], byte[], DrawableDecoder)
+     */
+    public static void register(@NonNull final byte[] magic,
+            @NonNull final DrawableDecoder decoder) {
+        register(magic, null, decoder);
+    }
+
+    /**
+     * Registers decoder for the images starting with magic bytes. The decoder is asked before
+     * the ones registered earlier, including the built-in decoders.
+     *
+     * @param magic   the bytes at the beginning of the image data, not longer than
+     *                {@link #HEADER_SIZE}
+     * @param mask    optional mask of the same length, bits that are not set in mask are
+     *                ignored. The first byte can not be masked.
+     * @param decoder the decoder
+     * @throws IllegalArgumentException if magic is empty or too long, or if the mask does not
+     *                                  match magic
+     */
+    public static void register(@NonNull final byte[] magic,
+            @Nullable final byte[] mask,
+            @NonNull final DrawableDecoder decoder) {
+        if (magic.length == 0 || magic.length > HEADER_SIZE) {
+            throw new IllegalArgumentException("magic length must be in range 1.." + HEADER_SIZE);
+        }
+        if (mask != null && (mask.length != magic.length || mask[0] != (byte) 0xff)) {
+            throw new IllegalArgumentException(
+                    "mask must be of magic length and must not mask the first byte");
+        }
+        synchronized (FormatDetector.class) {
+            addEntry(new Entry(magic, mask, decoder));
+            sCustomDecoderCount++;
+        }
+    }
+
+    /**
+     * Removes all registrations of the decoder
+     *
+     * @param decoder the decoder to remove
+     * @return true if the decoder was registered
+     */
+    public static boolean unregister(@NonNull final DrawableDecoder decoder) {
+        synchronized (FormatDetector.class) {
+            final Entry[] table = sTable.clone();
+            int removed = 0;
+            for (int i = 0; i < table.length; i++) {
+                Entry head = null;
+                Entry tail = null;
+                for (Entry e = table[i]; e != null; e = e.mNext) {
+                    if (e.mDecoder == decoder) {
+                        removed++;
+                        continue;
+                    }
+                    final Entry copy = new Entry(e.mMagic, e.mMask, e.mDecoder);
+                    if (tail == null) {
+                        head = copy;
+                    } else {
+                        tail.mNext = copy;
+                    }
+                    tail = copy;
+                }
+                table[i] = head;
+            }
+            if (removed == 0) {
+                return false;
+            }
+            if (!(decoder instanceof BuiltInDecoder)) {
+                sCustomDecoderCount -= removed;
+            }
+            sTable = table;
+            return true;
+        }
+    }
+
+    /**
+     * Finds the decoder for the image data
+     *
+     * @param header the beginning of the image data
+     * @param length the number of valid bytes in header
+     * @return the decoder, or null if no registered magic bytes match
+     */
+    @Nullable
+    public static DrawableDecoder find(@NonNull final byte[] header, final int length) {
+        if (length <= 0) {
+            return null;
+        }
+        for (Entry e = sTable[header[0] & 0xff]; e != null; e = e.mNext) {
+            if (e.matches(header, length) && e.mDecoder.canDecode(header, length)) {
+                return e.mDecoder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Detects the format by the built-in magic bytes, ignoring registered decoders
+     *
+     * @param header the beginning of the image data
+     * @param length the number of valid bytes in header
+     * @return the detected format or {@link ImageFormat#UNKNOWN}
+     */
+    @NonNull
+    public static ImageFormat detectFormat(@NonNull final byte[] header, final int length) {
+        if (length > 0) {
+            for (Entry e = sTable[header[0] & 0xff]; e != null; e = e.mNext) {
+                if (e.mDecoder instanceof BuiltInDecoder && e.matches(header, length)) {
+                    return ((BuiltInDecoder) e.mDecoder).getFormat();
+                }
+            }
+        }
+        return ImageFormat.UNKNOWN;
+    }
+
+    /**
+     * Detects APNG. The animation control chunk must be within the header, which is where
+     * encoders put it, right after the image header chunk.
+     *
+     * @param header the beginning of the image data
+     * @param length the number of valid bytes in header
+     * @return true if the header is of an animated PNG
+     */
+    public static boolean isAnimatedPng(@NonNull final byte[] header, final int length) {
+        return findPngChunk(header, length, 'a', 'c', 'T', 'L') != -1;
+    }
+
+    /**
+     * Detects animated WebP by the extended format flags
+     *
+     * @param header the beginning of the image data
+     * @param length the number of valid bytes in header
+     * @return true if the header is of an animated WebP
+     */
+    public static boolean isAnimatedWebP(@NonNull final byte[] header, final int length) {
+        return length > 20 && matches(header, length, WEBP_MAGIC, WEBP_MASK)
+                && header[12] == 'V' && header[13] == 'P' && header[14] == '8'
+                && header[15] == 'X' && (header[20] & WEBP_FLAG_ANIMATION) != 0;
+    }
+
+    /**
+     * Detects images that can not have alpha: JPEG, PNG without an alpha channel and without a
+     * transparency chunk before the image data, and WebP without alpha. The transparency chunk of
+     * a PNG must be within the header to be ruled out.
+     *
+     * @param header the beginning of the image data
+     * @param length the number of valid bytes in header
+     * @return true if the header proves that the image is opaque
+     */
+    public static boolean isOpaque(@NonNull final byte[] header, final int length) {
+        switch (detectFormat(header, length)) {
+            case JPEG:
+                return true;
+
+            case PNG:
+                return isPngOpaque(header, length);
+
+            case WEBP:
+                return isWebPOpaque(header, length);
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if decoders other than the built-in ones are registered
+     */
+    static boolean hasCustomDecoders() {
+        return sCustomDecoderCount != 0;
+    }
+
+    /**
+     * Returns the information that can be read from the header alone, which is the case for
+     * PNG, where the image header chunk is always first
+     *
+     * @return the information or null if the header is not enough
+     */
+    @Nullable
+    static ImageInfo readInfo(@NonNull final byte[] header, final int length) {
+        if (length < 24 || !matches(header, length, PNG_MAGIC, null)
+                || header[12] != 'I' || header[13] != 'H' || header[14] != 'D'
+                || header[15] != 'R') {
+            return null;
+        }
+        final int width = readInt(header, 16);
+        final int height = readInt(header, 20);
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        final int actl = findPngChunk(header, length, 'a', 'c', 'T', 'L');
+        if (actl != -1 && actl + 16 <= length) {
+            final int frames = readInt(header, actl + 8);
+            return new ImageInfo(ImageFormat.PNG, width, height, Math.max(1, frames),
+                    readInt(header, actl + 12), 0);
+        }
+        return new ImageInfo(ImageFormat.PNG, width, height, 1, 1, 0);
+    }
+
+    /**
+     * Walks PNG chunks within the header, up to the first image data chunk
+     *
+     * @return offset of the chunk of the type, or -1 if not found within the header
+     */
+    private static int findPngChunk(@NonNull final byte[] header,
+            final int length,
+            final char t0,
+            final char t1,
+            final char t2,
+            final char t3) {
+        if (!matches(header, length, PNG_MAGIC, null)) {
+            return -1;
+        }
+        int offset = PNG_MAGIC.length;
+        while (offset + 8 <= length) {
+            final byte c0 = header[offset + 4];
+            final byte c1 = header[offset + 5];
+            final byte c2 = header[offset + 6];
+            final byte c3 = header[offset + 7];
+            if (c0 == t0 && c1 == t1 && c2 == t2 && c3 == t3) {
+                return offset;
+            }
+            if (c0 == 'I' && c1 == 'D' && c2 == 'A' && c3 == 'T') {
+                return -1;
+            }
+            final int chunkLength = readInt(header, offset);
+            if (chunkLength < 0 || chunkLength > length) {
+                return -1;
+            }
+            // length, type, data and CRC
+            offset += chunkLength + 12;
+        }
+        return -1;
+    }
+
+    private static boolean isPngOpaque(@NonNull final byte[] header, final int length) {
+        // Color types 4 and 6 have an alpha channel
+        if (length < 26 || header[12] != 'I' || header[13] != 'H' || header[14] != 'D'
+                || header[15] != 'R' || (header[25] & PNG_COLOR_TYPE_ALPHA) != 0) {
+            return false;
+        }
+        int offset = PNG_MAGIC.length;
+        while (offset + 8 <= length) {
+            final byte c0 = header[offset + 4];
+            final byte c1 = header[offset + 5];
+            final byte c2 = header[offset + 6];
+            final byte c3 = header[offset + 7];
+            if (c0 == 't' && c1 == 'R' && c2 == 'N' && c3 == 'S') {
+                return false;
+            }
+            if (c0 == 'I' && c1 == 'D' && c2 == 'A' && c3 == 'T') {
+                return true;
+            }
+            final int chunkLength = readInt(header, offset);
+            if (chunkLength < 0 || chunkLength > length) {
+                return false;
+            }
+            offset += chunkLength + 12;
+        }
+        // A transparency chunk may follow after the header
+        return false;
+    }
+
+    private static boolean isWebPOpaque(@NonNull final byte[] header, final int length) {
+        if (length <= 24 || header[12] != 'V' || header[13] != 'P' || header[14] != '8') {
+            return false;
+        }
+        switch (header[15]) {
+            case ' ':
+                // Simple lossy format has no alpha
+                return true;
+
+            case 'L':
+                // Lossless format, alpha_is_used bit follows the 14-bit width and height
+                return header[20] == WEBP_LOSSLESS_SIGNATURE
+                        && (header[24] & WEBP_LOSSLESS_ALPHA) == 0;
+
+            case 'X':
+                return (header[20] & WEBP_FLAG_ALPHA) == 0;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Reads big endian 32-bit value
+     */
+    private static int readInt(@NonNull final byte[] data, final int offset) {
+        return ((data[offset] & 0xff) << 24)
+                | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    private static boolean matches(@NonNull final byte[] header,
+            final int length,
+            @NonNull final byte[] magic,
+            @Nullable final byte[] mask) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            final int b = mask != null ? header[i] & mask[i] : header[i];
+            if ((byte) b != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts the entry at the head of its chain
+     */
+    private static void addEntry(@NonNull final Entry entry) {
+        final Entry[] table = sTable.clone();
+        final int index = entry.mMagic[0] & 0xff;
+        entry.mNext = table[index];
+        table[index] = entry;
+        sTable = table;
+    }
+
+    private static final class Entry {
+
+        @NonNull
+        final byte[] mMagic;
+
+        @Nullable
+        final byte[] mMask;
+
+        @NonNull
+        final DrawableDecoder mDecoder;
+
+        @Nullable
+        Entry mNext;
+
+        Entry(@NonNull final byte[] magic,
+                @Nullable final byte[] mask,
+                @NonNull final DrawableDecoder decoder) {
+            mMagic = magic.clone();
+            mMask = mask != null ? mask.clone() : null;
+            if (mMask != null) {
+                for (int i = 0; i < mMagic.length; i++) {
+                    mMagic[i] &= mMask[i];
+                }
+            }
+            mDecoder = decoder;
+        }
+
+        boolean matches(@NonNull final byte[] header, final int length) {
+            return FormatDetector.matches(header, length, mMagic, mMask);
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.annotation.TargetApi;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+import android.view.View;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import pl.droidsonroids.gif.GifDrawable;
+
+/**
+ * Single clock that advances the frames of all {@link ClockedGifDrawable}s. It runs once per
+ * display frame, driven by {@link Choreographer} since Jelly Bean or by a Handler before, and
+ * advances every GIF whose frame delay has passed in one pass. Many animated GIFs on screen cause
+ * one wakeup per display frame instead of one per GIF.
+ * <p>
+ * GIFs none of whose Drawables are visible are not advanced. A Drawable is visible if it is set
+ * visible and, since Honeycomb, its callback is a shown View or a visible Drawable. The clock
+ * stops when no GIF is running and visible, and starts again when a Drawable is drawn.
+ * <p>
+ * This class is thread safe.
+ */
+public final class GifClock {
+
+    /**
+     * Tick interval when {@link Choreographer} is not available, in milliseconds
+     */
+    private static final long HANDLER_TICK_INTERVAL = 16;
+
+    /**
+     * Delays shorter than this are played at {@link #DEFAULT_FRAME_DURATION}, as browsers do
+     */
+    private static final int MIN_FRAME_DURATION = 20;
+
+    private static final int DEFAULT_FRAME_DURATION = 100;
+
+    /**
+     * A tick this much earlier than the interval of the FPS cap is not skipped, so that the cap
+     * is not missed by display frame jitter
+     */
+    private static final long TICK_SLOP = 4;
+
+    private static final IdentityHashMap<GifDrawable, Animation> sAnimations
+            = new IdentityHashMap<GifDrawable, Animation>();
+
+    private static volatile int sMaxFps;
+
+    private static boolean sTicking;
+    private static long sLastTickTime;
+
+    /**
+     * Created on the main thread
+     */
+    private static Ticker sTicker;
+
+    private static final Runnable sStart = new Runnable() {
+
+        @Override
+        public void run() {
+            if (sTicker == null) {
+                sTicker = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                        ? new ChoreographerTicker() : new HandlerTicker();
+            }
+            sTicker.schedule();
+        }
+    };
+
+    private GifClock() {
+        // Private constructor, do not instantiate
+    }
+
+    /**
+     * Limits how often GIF frames are advanced. Frames with shorter delays are shown later.
+     *
+     * @param fps the maximum number of frame advances per second, or 0 to advance on every
+     *            display frame
+     * @throws IllegalArgumentException if fps is negative
+     */
+    public static void setMaxFps(final int fps) {
+        if (fps < 0) {
+            throw new IllegalArgumentException("fps < 0");
+        }
+        sMaxFps = fps;
+    }
+
+    /**
+     * @return the maximum number of frame advances per second, 0 if not limited
+     * @see #setMaxFps(int)
+     */
+    public static int getMaxFps() {
+        return sMaxFps;
+    }
+
+    /**
+     * @return the number of GIFs driven by the clock
+     */
+    public static synchronized int getAnimationCount() {
+        return sAnimations.size();
+    }
+
+    static synchronized void register(@NonNull final ClockedGifDrawable drawable,
+            @NonNull final GifDrawable gif) {
+        Animation animation = sAnimations.get(gif);
+        if (animation == null) {
+            animation = new Animation(gif);
+            sAnimations.put(gif, animation);
+        }
+        animation.mClients.add(new WeakReference<ClockedGifDrawable>(drawable));
+        ensureTicking();
+    }
+
+    static synchronized void unregister(@NonNull final ClockedGifDrawable drawable,
+            @NonNull final GifDrawable gif) {
+        final Animation animation = sAnimations.get(gif);
+        if (animation != null) {
+            final Iterator<WeakReference<ClockedGifDrawable>> iterator
+                    = animation.mClients.iterator();
+            while (iterator.hasNext()) {
+                final ClockedGifDrawable client = iterator.next().get();
+                if (client == null || client == drawable) {
+                    iterator.remove();
+                }
+            }
+            if (animation.mClients.isEmpty()) {
+                sAnimations.remove(gif);
+            }
+        }
+    }
+
+    static synchronized void setRunning(@NonNull final GifDrawable gif, final boolean running) {
+        final Animation animation = sAnimations.get(gif);
+        if (animation != null) {
+            animation.mRunning = running;
+            if (running) {
+                animation.mLoop = 0;
+                ensureTicking();
+            }
+        }
+    }
+
+    static synchronized boolean isRunning(@NonNull final GifDrawable gif) {
+        final Animation animation = sAnimations.get(gif);
+        return animation != null && animation.mRunning;
+    }
+
+    /**
+     * Starts ticking on the main thread, if not ticking already
+     */
+    static synchronized void ensureTicking() {
+        if (!sTicking && !sAnimations.isEmpty()) {
+            sTicking = true;
+            DecodeExecutor.postToMainThread(sStart);
+        }
+    }
+
+    private static synchronized void tick() {
+        final long now = SystemClock.uptimeMillis();
+        final int maxFps = sMaxFps;
+        if (maxFps > 0 && now - sLastTickTime + TICK_SLOP < 1000 / maxFps) {
+            sTicker.schedule();
+            return;
+        }
+        sLastTickTime = now;
+
+        boolean active = false;
+        final Iterator<Animation> iterator = sAnimations.values().iterator();
+        while (iterator.hasNext()) {
+            final Animation animation = iterator.next();
+            if (!animation.hasClients()) {
+                iterator.remove();
+            } else if (animation.mRunning && animation.isVisible()) {
+                animation.advance(now);
+                active = true;
+            } else {
+                animation.mPaused = true;
+            }
+        }
+        if (active) {
+            sTicker.schedule();
+        } else {
+            sTicking = false;
+        }
+    }
+
+    private static boolean isShown(@NonNull final Drawable drawable) {
+        if (!drawable.isVisible()) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return true;
+        }
+        return isCallbackShown(drawable);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean isCallbackShown(@NonNull final Drawable drawable) {
+        final Drawable.Callback callback = drawable.getCallback();
+        if (callback instanceof View) {
+            return ((View) callback).isShown();
+        }
+        if (callback instanceof Drawable) {
+            return ((Drawable) callback).isVisible();
+        }
+        return callback != null;
+    }
+
+    private static int getFrameDuration(@NonNull final GifDrawable gif, final int frame) {
+        final int duration = gif.getFrameDuration(frame);
+        return duration < MIN_FRAME_DURATION ? DEFAULT_FRAME_DURATION : duration;
+    }
+
+    /**
+     * Playback state of a GIF shown by one or more Drawables
+     */
+    private static final class Animation {
+
+        @NonNull
+        final GifDrawable mGif;
+
+        final ArrayList<WeakReference<ClockedGifDrawable>> mClients
+                = new ArrayList<WeakReference<ClockedGifDrawable>>(1);
+
+        final int mFrameCount;
+        final int mLoopCount;
+
+        int mFrame;
+        int mLoop;
+        long mNextFrameTime;
+
+        boolean mRunning = true;
+
+        /**
+         * True if not advanced on the last tick. The current frame is shown for its full delay
+         * when resumed.
+         */
+        boolean mPaused = true;
+
+        Animation(@NonNull final GifDrawable gif) {
+            mGif = gif;
+            mFrameCount = gif.getNumberOfFrames();
+            mLoopCount = gif.getLoopCount();
+            mFrame = gif.getCurrentFrameIndex();
+        }
+
+        boolean hasClients() {
+            final Iterator<WeakReference<ClockedGifDrawable>> iterator = mClients.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().get() == null) {
+                    iterator.remove();
+                }
+            }
+            return !mClients.isEmpty() && !mGif.isRecycled();
+        }
+
+        boolean isVisible() {
+            for (final WeakReference<ClockedGifDrawable> reference : mClients) {
+                final ClockedGifDrawable client = reference.get();
+                if (client != null && isShown(client)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void advance(final long now) {
+            if (mFrameCount <= 1) {
+                mRunning = false;
+                return;
+            }
+            if (mPaused) {
+                mPaused = false;
+                mNextFrameTime = now + getFrameDuration(mGif, mFrame);
+                return;
+            }
+            if (now < mNextFrameTime) {
+                return;
+            }
+            int next = mFrame + 1;
+            if (next >= mFrameCount) {
+                mLoop++;
+                if (mLoopCount != 0 && mLoop >= mLoopCount) {
+                    // Stays on the last frame
+                    mRunning = false;
+                    return;
+                }
+                next = 0;
+            }
+            // Renders in the GIF decoder thread and invalidates the Drawables when done
+            mGif.seekToFrame(next);
+            mFrame = next;
+            final int duration = getFrameDuration(mGif, next);
+            mNextFrameTime += duration;
+            if (mNextFrameTime <= now) {
+                // Fell behind, do not catch up
+                mNextFrameTime = now + duration;
+            }
+        }
+    }
+
+    private interface Ticker {
+
+        /**
+         * Schedules {@link #tick()} on the main thread
+         */
+        void schedule();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static final class ChoreographerTicker implements Ticker, Choreographer.FrameCallback {
+
+        @Override
+        public void schedule() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            tick();
+        }
+    }
+
+    private static final class HandlerTicker implements Ticker, Runnable {
+
+        @Override
+        public void schedule() {
+            DecodeExecutor.postToMainThreadDelayed(this, HANDLER_TICK_INTERVAL);
+        }
+
+        @Override
+        public void run() {
+            tick();
+        }
+    }
+}
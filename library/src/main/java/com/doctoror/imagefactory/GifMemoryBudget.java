@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+import pl.droidsonroids.gif.GifDrawable;
+
+/**
+ * Process wide limit of the native memory held by the {@link GifDrawable}s that
+ * {@link ImageFactory} returns. Before an animated GIF is decoded, the size of its buffers is
+ * estimated from the logical screen size in the header. If it does not fit in what is left of
+ * the budget, the {@link Policy} decides what is returned instead.
+ * <p>
+ * A GIF is accounted from the moment it is decoded until it is recycled, released with
+ * {@link ImageFactory#release(Drawable)} or garbage collected.
+ * <p>
+ * Set the budget with {@link ImageFactory#setGifMemoryBudget(GifMemoryBudget)}.
+ * This class is thread safe.
+ */
+public final class GifMemoryBudget {
+
+    /**
+     * What to do with a GIF that does not fit in the budget
+     */
+    public enum Policy {
+
+        /**
+         * Decode with the smallest larger sample size at which the GIF fits. If it does not fit
+         * at any sample size, decode the first frame as {@link #STILL_FRAME} does.
+         */
+        DOWNSAMPLE,
+
+        /**
+         * Decode the first frame as {@link android.graphics.drawable.BitmapDrawable}, which is
+         * not accounted
+         */
+        STILL_FRAME,
+
+        /**
+         * Recycle the least recently drawn GIFs until the new one fits. A recycled GIF draws
+         * nothing, so this suits lists that decode again on bind. If the GIF is larger than the
+         * whole budget, the first frame is decoded as {@link #STILL_FRAME} does.
+         */
+        EVICT_LEAST_RECENTLY_DRAWN
+    }
+
+    /**
+     * Bytes per pixel of the ARGB_8888 frame buffer plus one byte of the native frame raster
+     */
+    private static final int BYTES_PER_PIXEL = 5;
+
+    @NonNull
+    private final Policy mPolicy;
+
+    private final ReferenceQueue<GifDrawable> mQueue = new ReferenceQueue<GifDrawable>();
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+    /**
+     * Drawables decoded differently from what was requested to stay within the budget
+     */
+    private final WeakHashMap<Drawable, Boolean> mLimited = new WeakHashMap<Drawable, Boolean>();
+
+    private long mMaxSize;
+
+    /**
+     * Bytes of tracked GIFs plus bytes reserved for GIFs being decoded
+     */
+    private long mSize;
+
+    private int mDownsampleCount;
+    private int mStillFrameCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize the maximum total size of GIF buffers, in bytes
+     * @param policy  what to do with a GIF that does not fit
+     * @throws IllegalArgumentException if maxSize is not positive
+     */
+    public GifMemoryBudget(final long maxSize, @NonNull final Policy policy) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mPolicy = policy;
+    }
+
+    /**
+     * Returns whether the Drawable was downsampled beyond the requested sample size or decoded
+     * as a still frame to stay within the budget
+     *
+     * @param drawable Drawable returned by {@link ImageFactory}
+     * @return true if the budget changed how the Drawable was decoded
+     */
+    public synchronized boolean isLimited(@Nullable final Drawable drawable) {
+        return drawable != null && mLimited.containsKey(drawable);
+    }
+
+    /**
+     * Recycles all tracked GIFs
+     */
+    public synchronized void evictAll() {
+        trimToSizeLocked(-1);
+    }
+
+    /**
+     * Recycles the least recently drawn GIFs until the total size is at most the given size.
+     * GIFs being decoded are not affected.
+     *
+     * @param maxSize the size to trim to, in bytes
+     */
+    public synchronized void trimToSize(final long maxSize) {
+        trimToSizeLocked(maxSize);
+    }
+
+    /**
+     * Changes the maximum size. Tracked GIFs are not recycled, new GIFs are decoded according
+     * to the policy until enough memory is freed.
+     *
+     * @param maxSize the new maximum size, in bytes
+     * @throws IllegalArgumentException if maxSize is not positive
+     */
+    public synchronized void resize(final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return the policy for GIFs that do not fit
+     */
+    @NonNull
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * @return the total size of the buffers of live GIFs and of GIFs being decoded, in bytes
+     */
+    public synchronized long size() {
+        pruneLocked();
+        return mSize;
+    }
+
+    /**
+     * @return the maximum total size of GIF buffers, in bytes
+     */
+    public synchronized long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return the number of live GIFs
+     */
+    public synchronized int gifCount() {
+        pruneLocked();
+        return mEntries.size();
+    }
+
+    /**
+     * @return the number of GIFs decoded with a larger sample size than requested
+     */
+    public synchronized int downsampleCount() {
+        return mDownsampleCount;
+    }
+
+    /**
+     * @return the number of GIFs decoded as a still frame
+     */
+    public synchronized int stillFrameCount() {
+        return mStillFrameCount;
+    }
+
+    /**
+     * @return the number of GIFs recycled to make room for new ones
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Returns the estimated number of bytes of the buffers of a GIF decoded with the given sample
+     * size
+     *
+     * @return estimated size in bytes, or 0 if the dimensions are unknown
+     */
+    static long estimate(final int width, final int height, final int sampleSize) {
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        final int sample = Math.max(1, sampleSize);
+        return (long) ((width + sample - 1) / sample) * ((height + sample - 1) / sample)
+                * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Reserves room for a GIF of the given logical screen size. The reservation must be passed
+     * to {@link #track(GifDrawable, long, boolean)} when the decode completes or fails.
+     *
+     * @param width      logical screen width, or 0 if unknown
+     * @param height     logical screen height, or 0 if unknown
+     * @param sampleSize the requested sample size
+     * @return the sample size to decode with, or 0 if the first frame should be decoded instead
+     */
+    synchronized int reserve(final int width, final int height, final int sampleSize) {
+        pruneLocked();
+        long size = estimate(width, height, sampleSize);
+        if (mSize + size <= mMaxSize) {
+            mSize += size;
+            return sampleSize;
+        }
+        switch (mPolicy) {
+            case DOWNSAMPLE:
+                int sample = Math.max(1, sampleSize);
+                while (sample < Math.max(width, height)) {
+                    sample <<= 1;
+                    size = estimate(width, height, sample);
+                    if (mSize + size <= mMaxSize) {
+                        mSize += size;
+                        mDownsampleCount++;
+                        return sample;
+                    }
+                }
+                break;
+
+            case EVICT_LEAST_RECENTLY_DRAWN:
+                if (size <= mMaxSize) {
+                    trimToSizeLocked(mMaxSize - size);
+                    if (mSize + size <= mMaxSize) {
+                        mSize += size;
+                        return sampleSize;
+                    }
+                }
+                break;
+
+            case STILL_FRAME:
+            default:
+                break;
+        }
+        mStillFrameCount++;
+        return 0;
+    }
+
+    /**
+     * Replaces the reservation with the actual size of the decoded GIF
+     *
+     * @param gif      the decoded GIF, or null if the decode failed
+     * @param reserved the bytes reserved for it
+     * @param limited  true if the GIF was decoded with a larger sample size than requested
+     */
+    synchronized void track(@Nullable final GifDrawable gif,
+            final long reserved,
+            final boolean limited) {
+        mSize -= reserved;
+        if (gif != null) {
+            final long size = gif.getAllocationByteCount();
+            final Entry entry = new Entry(gif, mQueue, size > 0 ? size : reserved);
+            mEntries.add(entry);
+            mSize += entry.size;
+            if (limited) {
+                mLimited.put(gif, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Marks the still frame decoded instead of a GIF
+     */
+    synchronized void markLimited(@NonNull final Drawable drawable) {
+        mLimited.put(drawable, Boolean.TRUE);
+    }
+
+    /**
+     * Stops accounting the GIF that is about to be recycled
+     */
+    synchronized void remove(@NonNull final GifDrawable gif) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            final Entry entry = mEntries.get(i);
+            if (entry.get() == gif) {
+                mEntries.remove(i);
+                mSize -= entry.size;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes entries of GIFs that were garbage collected or recycled by the owner
+     */
+    private void pruneLocked() {
+        Object reference;
+        while ((reference = mQueue.poll()) != null) {
+            if (mEntries.remove(reference)) {
+                mSize -= ((Entry) reference).size;
+            }
+        }
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            final Entry entry = mEntries.get(i);
+            final GifDrawable gif = entry.get();
+            if (gif == null || gif.isRecycled()) {
+                mEntries.remove(i);
+                mSize -= entry.size;
+            }
+        }
+    }
+
+    private void trimToSizeLocked(final long maxSize) {
+        pruneLocked();
+        updateDrawnLocked();
+        while (mSize > maxSize && !mEntries.isEmpty()) {
+            int eldest = 0;
+            for (int i = 1; i < mEntries.size(); i++) {
+                if (mEntries.get(i).lastDrawn < mEntries.get(eldest).lastDrawn) {
+                    eldest = i;
+                }
+            }
+            final Entry entry = mEntries.remove(eldest);
+            mSize -= entry.size;
+            mEvictionCount++;
+            final GifDrawable gif = entry.get();
+            if (gif != null) {
+                gif.recycle();
+            }
+        }
+    }
+
+    /**
+     * A GifDrawable renders the next frame only after it is drawn, so a GIF whose frame changed
+     * since the last check was drawn since then
+     */
+    private void updateDrawnLocked() {
+        final long now = SystemClock.uptimeMillis();
+        for (final Entry entry : mEntries) {
+            final GifDrawable gif = entry.get();
+            if (gif != null) {
+                final int frame = gif.getCurrentFrameIndex();
+                if (frame != entry.lastFrame) {
+                    entry.lastFrame = frame;
+                    entry.lastDrawn = now;
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GifMemoryBudget{" +
+                "policy=" + mPolicy +
+                ", maxSize=" + mMaxSize +
+                ", size=" + mSize +
+                ", gifs=" + mEntries.size() +
+                ", downsampled=" + mDownsampleCount +
+                ", stillFrames=" + mStillFrameCount +
+                ", evictions=" + mEvictionCount +
+                '}';
+    }
+
+    private static final class Entry extends WeakReference<GifDrawable> {
+
+        final long size;
+
+        int lastFrame;
+        long lastDrawn;
+
+        Entry(@NonNull final GifDrawable gif,
+                @NonNull final ReferenceQueue<GifDrawable> queue,
+                final long size) {
+            super(gif, queue);
+            this.size = size;
+            lastFrame = gif.getCurrentFrameIndex();
+            lastDrawn = SystemClock.uptimeMillis();
+        }
+    }
+}
@@ -16,13 +16,17 @@
 
 package com.doctoror.imagefactory;
 
-import android.content.res.AssetFileDescriptor;
+import android.annotation.TargetApi;
+import android.content.res.AssetManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -30,11 +34,16 @@ import android.support.annotation.RawRes;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import pl.droidsonroids.gif.GifDrawable;
 
@@ -51,6 +60,267 @@ public final class ImageFactory {
 
     private static final String TAG = "ImageFactory";
 
+    /**
+     * Default for {@link #setStreamLookaheadLimit(int)}
+     */
+    public static final int DEFAULT_STREAM_LOOKAHEAD_LIMIT = 128 * 1024;
+
+    /**
+     * Minimum value for {@link #setStreamLookaheadLimit(int)}, enough to hold a GIF header
+     */
+    private static final int MIN_STREAM_LOOKAHEAD_LIMIT = 1024;
+
+    private static volatile int sStreamLookaheadLimit = DEFAULT_STREAM_LOOKAHEAD_LIMIT;
+
+    /**
+     * Default for the byte limit of {@link #setGifScanLimits(long, int)}
+     */
+    public static final long DEFAULT_GIF_SCAN_MAX_BYTES = GifParser.DEFAULT_MAX_SCAN_BYTES;
+
+    /**
+     * Default for the block limit of {@link #setGifScanLimits(long, int)}
+     */
+    public static final int DEFAULT_GIF_SCAN_MAX_BLOCKS = GifParser.DEFAULT_MAX_SCAN_BLOCKS;
+
+    @Nullable
+    private static volatile DrawableCache sDrawableCache;
+
+    @Nullable
+    private static volatile BitmapPool sBitmapPool;
+
+    @Nullable
+    private static volatile ProbeIndex sProbeIndex;
+
+    private static volatile DecodeListener sDecodeListener;
+
+    @Nullable
+    private static volatile GifMemoryBudget sGifMemoryBudget;
+
+    /**
+     * Bitmaps of decodes that were shared by concurrent requests
+     */
+    private static final WeakHashMap<Bitmap, Boolean> sSharedBitmaps
+            = new WeakHashMap<Bitmap, Boolean>();
+
+    /**
+     * Maximum number of frame indexes kept in {@link #sGifIndexes}
+     */
+    private static final int MAX_GIF_INDEXES = 32;
+
+    /**
+     * Frame indexes built by {@link #indexGifOrThrow(ImageSource)} by source cache key, in access
+     * order
+     */
+    private static final LinkedHashMap<Object, GifIndex> sGifIndexes
+            = new LinkedHashMap<Object, GifIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Object, GifIndex> eldest) {
+            return size() > MAX_GIF_INDEXES;
+        }
+    };
+
+    /**
+     * Sets the maximum number of bytes buffered while sniffing an InputStream. If the sniffer
+     * needs more to find out whether a GIF is animated, the GIF is decoded as
+     * {@link GifDrawable}, which handles static GIFs as well.
+     *
+     * @param limit the limit in bytes
+     * @throws IllegalArgumentException if the limit is less than 1024
+     */
+    public static void setStreamLookaheadLimit(final int limit) {
+        if (limit < MIN_STREAM_LOOKAHEAD_LIMIT) {
+            throw new IllegalArgumentException(
+                    "limit must be at least " + MIN_STREAM_LOOKAHEAD_LIMIT);
+        }
+        sStreamLookaheadLimit = limit;
+    }
+
+    /**
+     * @return the maximum number of bytes buffered while sniffing an InputStream
+     * @see #setStreamLookaheadLimit(int)
+     */
+    public static int getStreamLookaheadLimit() {
+        return sStreamLookaheadLimit;
+    }
+
+    /**
+     * Limits the work of walking GIF blocks when sniffing, probing, indexing or counting frames,
+     * including {@link GifClassifier}. Data that needs more fails with
+     * {@link MalformedImageException} instead of keeping a thread busy. The limits apply to
+     * scans started afterwards.
+     *
+     * @param maxBytes  the maximum number of bytes walked
+     * @param maxBlocks the maximum number of blocks and sub-blocks walked
+     * @throws IllegalArgumentException if a limit is not positive
+     */
+    public static void setGifScanLimits(final long maxBytes, final int maxBlocks) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        if (maxBlocks <= 0) {
+            throw new IllegalArgumentException("maxBlocks <= 0");
+        }
+        GifParser.sMaxScanBytes = maxBytes;
+        GifParser.sMaxScanBlocks = maxBlocks;
+    }
+
+    /**
+     * @return the maximum number of bytes walked by a GIF scan
+     * @see #setGifScanLimits(long, int)
+     */
+    public static long getGifScanMaxBytes() {
+        return GifParser.sMaxScanBytes;
+    }
+
+    /**
+     * @return the maximum number of blocks and sub-blocks walked by a GIF scan
+     * @see #setGifScanLimits(long, int)
+     */
+    public static int getGifScanMaxBlocks() {
+        return GifParser.sMaxScanBlocks;
+    }
+
+    /**
+     * Sets the cache consulted by the decode methods. Files are cached by path, modification
+     * time and length, resources by id, assets by name and byte arrays and buffers by content
+     * hash. Streams and file descriptors are never cached. Options that ask for bounds only or
+     * for a mutable or reused Bitmap bypass the cache. When the result comes from cache, the
+     * out fields of the options are not set.
+     * <p>
+     * Animated GIFs are returned as {@link SharedGifDrawable} while a cache is set.
+     *
+     * @param cache the cache to use, or null to disable caching
+     */
+    public static void setDrawableCache(@Nullable final DrawableCache cache) {
+        sDrawableCache = cache;
+    }
+
+    /**
+     * @return the cache consulted by the decode methods, or null if not set
+     * @see #setDrawableCache(DrawableCache)
+     */
+    @Nullable
+    public static DrawableCache getDrawableCache() {
+        return sDrawableCache;
+    }
+
+    /**
+     * Sets the pool of Bitmaps reused for decoding static images. When set, static images are
+     * decoded to mutable Bitmaps, taken from the pool if one fits the dimensions read from the
+     * header. Options that already have {@link BitmapFactory.Options#inBitmap} or ask for bounds
+     * only do not use the pool, and neither do results that go to the {@link DrawableCache}.
+     * Return Bitmaps to the pool with {@link #release(Drawable)}.
+     * Has no effect before API level 11.
+     *
+     * @param pool the pool to use, or null to disable Bitmap reuse
+     */
+    public static void setBitmapPool(@Nullable final BitmapPool pool) {
+        sBitmapPool = pool;
+    }
+
+    /**
+     * @return the pool of Bitmaps reused for decoding, or null if not set
+     * @see #setBitmapPool(BitmapPool)
+     */
+    @Nullable
+    public static BitmapPool getBitmapPool() {
+        return sBitmapPool;
+    }
+
+    /**
+     * Sets the persistent index of probe and sniff results. When set, decoding files, file
+     * descriptors, byte arrays and buffers that were seen before does not parse the header again,
+     * and probing them does not read them at all.
+     *
+     * @param index the index to use, or null to disable indexing
+     */
+    public static void setProbeIndex(@Nullable final ProbeIndex index) {
+        sProbeIndex = index;
+    }
+
+    /**
+     * @return the persistent index of probe and sniff results, or null if not set
+     * @see #setProbeIndex(ProbeIndex)
+     */
+    @Nullable
+    public static ProbeIndex getProbeIndex() {
+        return sProbeIndex;
+    }
+
+    /**
+     * Sets the listener which receives a {@link DecodeEvent} with timings, byte counts and the
+     * decode path for every decode. When no listener is set, nothing is measured.
+     *
+     * @param listener the listener, or null to stop measuring
+     * @see DecodeStats
+     */
+    public static void setDecodeListener(@Nullable final DecodeListener listener) {
+        sDecodeListener = listener;
+    }
+
+    /**
+     * @return the listener which receives an event for every decode, or null if not set
+     * @see #setDecodeListener(DecodeListener)
+     */
+    @Nullable
+    public static DecodeListener getDecodeListener() {
+        return sDecodeListener;
+    }
+
+    /**
+     * Sets the budget of native memory for animated GIFs. Every decoded {@link GifDrawable} is
+     * accounted, and a GIF that does not fit is decoded according to the
+     * {@link GifMemoryBudget.Policy}. Results the budget decoded differently are not put to the
+     * {@link DrawableCache}.
+     *
+     * @param budget the budget, or null to decode GIFs regardless of their size
+     */
+    public static void setGifMemoryBudget(@Nullable final GifMemoryBudget budget) {
+        sGifMemoryBudget = budget;
+    }
+
+    /**
+     * @return the budget of native memory for animated GIFs, or null if not set
+     * @see #setGifMemoryBudget(GifMemoryBudget)
+     */
+    @Nullable
+    public static GifMemoryBudget getGifMemoryBudget() {
+        return sGifMemoryBudget;
+    }
+
+    /**
+     * Releases a Drawable that is no longer displayed. The Bitmap of a {@link BitmapDrawable} is
+     * returned to the {@link BitmapPool}, if set and the Bitmap is mutable. A
+     * {@link GifDrawable} is recycled. A {@link ClockedGifDrawable} stops being driven by the
+     * {@link GifClock} and the GIF it wraps is released. A {@link SharedGifDrawable} and Bitmaps
+     * shared by concurrent decodes of the same source are left as is.
+     * The Drawable must not be used after it was released.
+     *
+     * @param drawable the Drawable to release
+     * @return true if the memory was returned to the pool or freed
+     */
+    public static boolean release(@Nullable final Drawable drawable) {
+        if (drawable instanceof ClockedGifDrawable) {
+            final ClockedGifDrawable clocked = (ClockedGifDrawable) drawable;
+            clocked.unregister();
+            return release(clocked.getWrappedDrawable());
+        }
+        if (drawable instanceof BitmapDrawable) {
+            final BitmapPool pool = sBitmapPool;
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            return pool != null && bitmap != null && !isShared(bitmap) && pool.put(bitmap);
+        }
+        if (drawable instanceof GifDrawable) {
+            final GifMemoryBudget budget = sGifMemoryBudget;
+            if (budget != null) {
+                budget.remove((GifDrawable) drawable);
+            }
+            ((GifDrawable) drawable).recycle();
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Decodes image from byte array.
      * Returns {@link GifDrawable} if the image is an animated GIF.
@@ -115,17 +385,76 @@ public final class ImageFactory {
         if (data == null) {
             throw new NullPointerException("data byte array must not be null");
         }
-        final boolean animated = isAnimatedGif(
-                new BufferedInputStream(new ByteArrayInputStream(data)));
-        if (animated) {
-            return new GifDrawable(data);
-        } else {
-            final Bitmap decoded = BitmapFactory.decodeByteArray(data, 0, data.length, options);
-            if (decoded == null) {
-                throw new IOException("BitmapFactory returned null");
-            }
-            return new BitmapDrawable(res, decoded);
+        return decode(res, ImageSource.fromByteArray(data, 0, data.length), null, options);
+    }
+
+    /**
+     * Decodes image from ByteBuffer content between position and limit.
+     * Returns {@link GifDrawable} if the image is an animated GIF.
+     * Returns {@link BitmapDrawable} if the image is s valid static image {@link BitmapFactory}
+     * can decode.
+     * Returns null on error.
+     *
+     * @param res    Resources to use if creating a BitmapDrawable
+     * @param buffer ByteBuffer containing compressed image data
+     * @return decoded {@link Drawable} or null on error
+     * @throws NullPointerException if the buffer is null
+     */
+    @Nullable
+    public static Drawable decodeByteBuffer(@Nullable final Resources res,
+            final ByteBuffer buffer) {
+        return decodeByteBuffer(res, buffer, null);
+    }
+
+    /**
+     * Decodes image from ByteBuffer content between position and limit.
+     * Returns {@link GifDrawable} if the image is an animated GIF.
+     * Returns {@link BitmapDrawable} if the image is s valid static image {@link BitmapFactory}
+     * can decode.
+     * Returns null on error.
+     *
+     * @param res     Resources to use if creating a BitmapDrawable
+     * @param buffer  ByteBuffer containing compressed image data
+     * @param options optional options if an image will be decoded to a Bitmap
+     * @return decoded {@link Drawable} or null on error
+     * @throws NullPointerException if the buffer is null
+     */
+    @Nullable
+    public static Drawable decodeByteBuffer(@Nullable final Resources res,
+            final ByteBuffer buffer,
+            @Nullable final BitmapFactory.Options options) {
+        try {
+            return decodeByteBufferOrThrow(res, buffer, options);
+        } catch (IOException e) {
+            Log.w(TAG, "decodeByteBuffer() " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes image from ByteBuffer content between position and limit. The buffer position is
+     * not modified.
+     * Returns {@link GifDrawable} if the image is an animated GIF. A direct buffer is passed to
+     * {@link GifDrawable} without copying.
+     * Returns {@link BitmapDrawable} if the image is s valid static image {@link BitmapFactory}
+     * can decode. Since {@link BitmapFactory} can only decode arrays, the content of a direct or
+     * read-only buffer is copied in this case.
+     *
+     * @param res     Resources to use if creating a BitmapDrawable
+     * @param buffer  ByteBuffer containing compressed image data
+     * @param options optional options if an image will be decoded to a Bitmap
+     * @return decoded {@link Drawable}
+     * @throws IOException          on error
+     * @throws NullPointerException if the buffer is null
+     */
+    @NonNull
+    public static Drawable decodeByteBufferOrThrow(@Nullable final Resources res,
+            final ByteBuffer buffer,
+            @Nullable final BitmapFactory.Options options) throws IOException {
+        if (buffer == null) {
+            throw new NullPointerException("buffer must not be null");
         }
+        return decode(res, ImageSource.fromByteBuffer(buffer), null, options);
     }
 
     /**
@@ -194,26 +523,102 @@ public final class ImageFactory {
         if (is == null) {
             throw new NullPointerException("InputStream must not be null");
         }
+        return decode(res, ImageSource.fromStream(is), outPadding, options);
+    }
 
-        // android-gif-drawable gives libc crash or not decoding properly if it's not a BufferedInputStream.
-        final BufferedInputStream bis;
-        if (is instanceof BufferedInputStream) {
-            bis = (BufferedInputStream) is;
-        } else {
-            bis = new BufferedInputStream(is);
+    /**
+     * Decodes image from InputStream like
+     * {@link #decodeStreamOrThrow(Resources, InputStream, Rect, BitmapFactory.Options)}, unless
+     * the signal is cancelled. Returns null on error.
+     *
+     * @param res        Resources to use if creating a BitmapDrawable
+     * @param is         The input stream that holds the raw data to be decoded into a drawable
+     * @param outPadding optional outPadding if an image will be decoded to a Bitmap
+     * @param options    optional options if an image will be decoded to a Bitmap
+     * @param signal     optional signal to cancel the decode
+     * @return decoded {@link Drawable} or null on error
+     * @throws OperationCanceledException if the signal was cancelled
+     * @throws NullPointerException       if the InputStream is null
+     * @see #decodeStreamOrThrow(Resources, InputStream, Rect, BitmapFactory.Options,
+     * CancellationSignal)
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Nullable
+    public static Drawable decodeStream(@Nullable final Resources res,
+            final InputStream is,
+            @Nullable final Rect outPadding,
+            @Nullable final BitmapFactory.Options options,
+            @Nullable final CancellationSignal signal) {
+        try {
+            return decodeStreamOrThrow(res, is, outPadding, options, signal);
+        } catch (IOException e) {
+            Log.w(TAG, "decodeStream: " + e);
+            return null;
         }
-        bis.mark(Integer.MAX_VALUE);
-        final boolean animated = isAnimatedGif(bis);
-        bis.reset();
-        if (animated) {
-            return new GifDrawable(bis);
-        } else {
-            final Bitmap decoded = BitmapFactory.decodeStream(is, outPadding, options);
-            if (decoded == null) {
-                throw new IOException("BitmapFactory returned null");
+    }
+
+    /**
+     * Decodes image from InputStream like
+     * {@link #decodeStreamOrThrow(Resources, InputStream, Rect, BitmapFactory.Options)}, unless
+     * the signal is cancelled. The signal is checked before decoding and between sniffing and
+     * decoding, and the stream throws on the next read once it is cancelled. A static image being
+     * decoded is stopped with {@link BitmapFactory.Options#requestCancelDecode()}. A Drawable
+     * decoded before the cancellation was noticed is released, so an animated GIF frees its
+     * native memory right away.
+     * <p>
+     * The {@link CancellationSignal.OnCancelListener} of the signal is replaced while decoding.
+     *
+     * @param res        Resources to use if creating a BitmapDrawable
+     * @param is         The input stream that holds the raw data to be decoded into a drawable
+     * @param outPadding optional outPadding if an image will be decoded to a Bitmap
+     * @param options    optional options if an image will be decoded to a Bitmap
+     * @param signal     optional signal to cancel the decode
+     * @return decoded {@link Drawable}
+     * @throws OperationCanceledException if the signal was cancelled
+     * @throws IOException                on error
+     * @throws NullPointerException       if the InputStream is null
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @NonNull
+    public static Drawable decodeStreamOrThrow(@Nullable final Resources res,
+            final InputStream is,
+            @Nullable final Rect outPadding,
+            @Nullable final BitmapFactory.Options options,
+            @Nullable final CancellationSignal signal) throws IOException {
+        if (signal == null) {
+            return decodeStreamOrThrow(res, is, outPadding, options);
+        }
+        if (is == null) {
+            throw new NullPointerException("InputStream must not be null");
+        }
+        signal.throwIfCanceled();
+        final BitmapFactory.Options decodeOptions = options != null
+                ? options : new BitmapFactory.Options();
+        final CancellableInputStream stream = new CancellableInputStream(is, signal);
+        signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+
+            @Override
+            public void onCancel() {
+                decodeOptions.requestCancelDecode();
             }
-            return new BitmapDrawable(res, decoded);
+        });
+        final Drawable drawable;
+        try {
+            drawable = decode(res, ImageSource.fromStream(stream), outPadding, decodeOptions);
+        } catch (IOException e) {
+            signal.throwIfCanceled();
+            throw e;
+        } finally {
+            // Waits for a running listener, so the flag is not set again afterwards
+            signal.setOnCancelListener(null);
+            stream.detach();
+            decodeOptions.mCancel = false;
+        }
+        if (signal.isCanceled()) {
+            release(drawable);
+            throw new OperationCanceledException();
         }
+        return drawable;
     }
 
     /**
@@ -262,6 +667,8 @@ public final class ImageFactory {
 
     /**
      * Decodes image from file path.
+     * The header is sniffed with positional reads, then the file path is passed to the native
+     * decoder which reads the file itself.
      * Returns {@link GifDrawable} if the image is an animated GIF.
      * Returns {@link BitmapDrawable} if the image is s valid static image {@link BitmapFactory}
      * can decode.
@@ -284,7 +691,7 @@ public final class ImageFactory {
         if (filePath.length() == 0) {
             throw new IllegalArgumentException("filePath must not be empty");
         }
-        return decodeStreamOrThrow(res, new FileInputStream(filePath), null, options);
+        return decode(res, ImageSource.fromFile(filePath), null, options);
     }
 
     /**
@@ -333,7 +740,9 @@ public final class ImageFactory {
     }
 
     /**
-     * Decodes image from FileDescriptor.
+     * Decodes image from FileDescriptor, starting at its current offset.
+     * The header is sniffed with positional reads which do not change the descriptor offset, then
+     * the descriptor is passed to the native decoder. The descriptor is not closed.
      * Returns {@link GifDrawable} if the image is an animated GIF.
      * Returns {@link BitmapDrawable} if the image is s valid static image {@link BitmapFactory}
      * can decode.
@@ -354,7 +763,7 @@ public final class ImageFactory {
         if (fd == null) {
             throw new NullPointerException("FileDescriptor must not be null");
         }
-        return decodeStreamOrThrow(res, new FileInputStream(fd), outPadding, options);
+        return decode(res, ImageSource.fromFileDescriptor(fd), outPadding, options);
     }
 
     /**
@@ -402,6 +811,7 @@ public final class ImageFactory {
 
     /**
      * Decodes image from resource.
+     * Uncompressed resources are read directly from the APK using the resource file descriptor.
      * Returns {@link GifDrawable} if the image is an animated GIF.
      * Returns {@link BitmapDrawable} if the image is s valid static image {@link BitmapFactory}
      * can decode.
@@ -421,125 +831,1298 @@ public final class ImageFactory {
         if (res == null) {
             throw new NullPointerException("Resources must not be null");
         }
-
-        final AssetFileDescriptor descriptor = res.openRawResourceFd(id);
-        try {
-            return decodeStreamOrThrow(res, descriptor.createInputStream(), null, options);
-        } finally {
-            descriptor.close();
-        }
+        return decode(res, ImageSource.fromResource(res, id), null, options);
     }
 
     /**
-     * Detects animated GIF.
+     * Decodes image from asset.
+     * Returns {@link GifDrawable} if the image is an animated GIF.
+     * Returns {@link BitmapDrawable} if the image is s valid static image {@link BitmapFactory}
+     * can decode.
+     * Returns null on error.
      *
-     * @param is InputStream pointing to data to analyze
-     * @return true, if the reader's content is an animated gif. False if not a gif or not animated
+     * @param res      Resources to use if creating a BitmapDrawable
+     * @param assets   AssetManager to open the asset from
+     * @param fileName The name of the asset to decode
+     * @return decoded {@link Drawable} or null on error
+     * @throws NullPointerException if AssetManager or file name is null
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    public static boolean isAnimatedGif(@NonNull final BufferedInputStream is)
-            throws IOException {
-        final byte h1 = (byte) is.read();
-        final byte h2 = (byte) is.read();
-        final byte h3 = (byte) is.read();
+    @Nullable
+    public static Drawable decodeAsset(@Nullable final Resources res,
+            final AssetManager assets,
+            final String fileName) {
+        return decodeAsset(res, assets, fileName, null);
+    }
 
-        //False inspection. Why?
-        //noinspection ConstantConditions
-        if (h1 != 'G' || h2 != 'I' || h3 != 'F') {
-            return false;
+    /**
+     * Decodes image from asset.
+     * Returns {@link GifDrawable} if the image is an animated GIF.
+     * Returns {@link BitmapDrawable} if the image is s valid static image {@link BitmapFactory}
+     * can decode.
+     * Returns null on error.
+     *
+     * @param res      Resources to use if creating a BitmapDrawable
+     * @param assets   AssetManager to open the asset from
+     * @param fileName The name of the asset to decode
+     * @param options  optional options if an image will be decoded to a Bitmap
+     * @return decoded {@link Drawable} or null on error
+     * @throws NullPointerException if AssetManager or file name is null
+     */
+    @Nullable
+    public static Drawable decodeAsset(@Nullable final Resources res,
+            final AssetManager assets,
+            final String fileName,
+            @Nullable final BitmapFactory.Options options) {
+        try {
+            return decodeAssetOrThrow(res, assets, fileName, options);
+        } catch (IOException e) {
+            Log.w(TAG, "decodeAsset(): " + e);
+            return null;
         }
+    }
 
-        final byte v1 = (byte) is.read();
-        final byte v2 = (byte) is.read();
-        final byte v3 = (byte) is.read();
-
-        if (v1 != '8' || (v2 != '7' && v2 != '9') || v3 != 'a') {
-            return false;
+    /**
+     * Decodes image from asset.
+     * Uncompressed assets are read directly from the APK using the asset file descriptor.
+     * Returns {@link GifDrawable} if the image is an animated GIF.
+     * Returns {@link BitmapDrawable} if the image is s valid static image {@link BitmapFactory}
+     * can decode.
+     *
+     * @param res      Resources to use if creating a BitmapDrawable
+     * @param assets   AssetManager to open the asset from
+     * @param fileName The name of the asset to decode
+     * @param options  optional options if an image will be decoded to a Bitmap
+     * @return decoded {@link Drawable}
+     * @throws IOException          on error
+     * @throws NullPointerException if AssetManager or file name is null
+     */
+    @NonNull
+    public static Drawable decodeAssetOrThrow(@Nullable final Resources res,
+            final AssetManager assets,
+            final String fileName,
+            @Nullable final BitmapFactory.Options options) throws IOException {
+        if (assets == null) {
+            throw new NullPointerException("AssetManager must not be null");
         }
-
-        is.skip(2); // logical screen width
-        is.skip(2); // logical screen height
-
-        // read as unsigned int 8
-        final short flags = (short) (is.read() & 0xFF);
-
-        // First three bits = (BPP - 1)
-        final int colorTableSize = 1 << ((flags & 7) + 1);
-
-        // 89a
-//            if (v2 == '9') {
-//                boolean isColorTableSorted = (flags & 8) != 0;
-//            }
-
-        //final int bitsPerPixel = ((flags & 0x70) >> 4) + 1;
-        final boolean hasGlobalColorTable = (flags & 0xf) != 0;
-
-        is.skip(1); // background color index
-        is.skip(1); // aspect ratio byte
-
-        if (hasGlobalColorTable) {
-            is.skip(colorTableSize * 3);
+        if (fileName == null) {
+            throw new NullPointerException("fileName must not be null");
         }
+        return decode(res, ImageSource.fromAsset(assets, fileName), null, options);
+    }
 
-        while (true) {
-            int code = is.read() & 0xff;
-            switch (code) {
-                case 0x2c:
-                    // an image block
-                    return false;
+    /**
+     * Reads image information from byte array headers without decoding the image.
+     * Returns null on error.
+     *
+     * @param data byte array of compressed image data
+     * @return image information or null on error
+     * @throws NullPointerException if the data byte array is null
+     */
+    @Nullable
+    public static ImageInfo probe(final byte[] data) {
+        try {
+            return probeOrThrow(data);
+        } catch (IOException e) {
+            Log.w(TAG, "probe(): " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads image information from byte array headers without decoding the image.
+     *
+     * @param data byte array of compressed image data
+     * @return image information
+     * @throws IOException          on error or if the image format is not supported
+     * @throws NullPointerException if the data byte array is null
+     */
+    @NonNull
+    public static ImageInfo probeOrThrow(final byte[] data) throws IOException {
+        if (data == null) {
+            throw new NullPointerException("data byte array must not be null");
+        }
+        return probe(ImageSource.fromByteArray(data, 0, data.length));
+    }
+
+    /**
+     * Reads image information from ByteBuffer content headers without decoding the image.
+     * Returns null on error.
+     *
+     * @param buffer ByteBuffer containing compressed image data. The position is not modified
+     * @return image information or null on error
+     * @throws NullPointerException if the buffer is null
+     */
+    @Nullable
+    public static ImageInfo probe(final ByteBuffer buffer) {
+        try {
+            return probeOrThrow(buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "probe(): " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads image information from ByteBuffer content headers without decoding the image.
+     *
+     * @param buffer ByteBuffer containing compressed image data. The position is not modified
+     * @return image information
+     * @throws IOException          on error or if the image format is not supported
+     * @throws NullPointerException if the buffer is null
+     */
+    @NonNull
+    public static ImageInfo probeOrThrow(final ByteBuffer buffer) throws IOException {
+        if (buffer == null) {
+            throw new NullPointerException("buffer must not be null");
+        }
+        return probe(ImageSource.fromByteBuffer(buffer));
+    }
+
+    /**
+     * Reads image information from InputStream headers without decoding the image.
+     * Returns null on error.
+     *
+     * @param is The input stream that holds the raw data. The headers are consumed, for GIF
+     *           everything up to the trailer is consumed
+     * @return image information or null on error
+     * @throws NullPointerException if the InputStream is null
+     */
+    @Nullable
+    public static ImageInfo probe(final InputStream is) {
+        try {
+            return probeOrThrow(is);
+        } catch (IOException e) {
+            Log.w(TAG, "probe(): " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads image information from InputStream headers without decoding the image.
+     *
+     * @param is The input stream that holds the raw data. The headers are consumed, for GIF
+     *           everything up to the trailer is consumed
+     * @return image information
+     * @throws IOException          on error or if the image format is not supported
+     * @throws NullPointerException if the InputStream is null
+     */
+    @NonNull
+    public static ImageInfo probeOrThrow(final InputStream is) throws IOException {
+        if (is == null) {
+            throw new NullPointerException("InputStream must not be null");
+        }
+        return probe(ImageSource.fromStream(is));
+    }
+
+    /**
+     * Reads image information from file headers without decoding the image.
+     * Returns null on error.
+     *
+     * @param filePath complete path for the file to be probed
+     * @return image information or null on error
+     * @throws NullPointerException     if the file path is null
+     * @throws IllegalArgumentException if the file path is empty
+     */
+    @Nullable
+    public static ImageInfo probe(final String filePath) {
+        try {
+            return probeOrThrow(filePath);
+        } catch (IOException e) {
+            Log.w(TAG, "probe(): " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads image information from file headers without decoding the image.
+     *
+     * @param filePath complete path for the file to be probed
+     * @return image information
+     * @throws IOException          on error or if the image format is not supported
+     * @throws NullPointerException     if the file path is null
+     * @throws IllegalArgumentException if the file path is empty
+     */
+    @NonNull
+    public static ImageInfo probeOrThrow(final String filePath) throws IOException {
+        if (filePath == null) {
+            throw new NullPointerException("filePath must not be null");
+        }
+        if (filePath.length() == 0) {
+            throw new IllegalArgumentException("filePath must not be empty");
+        }
+        return probe(ImageSource.fromFile(filePath));
+    }
+
+    /**
+     * Reads image information from FileDescriptor headers without decoding the image.
+     * Returns null on error.
+     *
+     * @param fd The file descriptor containing the data, starting at its current offset. The
+     *           offset is not modified
+     * @return image information or null on error
+     * @throws NullPointerException if FileDescriptor is null
+     */
+    @Nullable
+    public static ImageInfo probe(final FileDescriptor fd) {
+        try {
+            return probeOrThrow(fd);
+        } catch (IOException e) {
+            Log.w(TAG, "probe(): " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads image information from FileDescriptor headers without decoding the image.
+     *
+     * @param fd The file descriptor containing the data, starting at its current offset. The
+     *           offset is not modified
+     * @return image information
+     * @throws IOException          on error or if the image format is not supported
+     * @throws NullPointerException if FileDescriptor is null
+     */
+    @NonNull
+    public static ImageInfo probeOrThrow(final FileDescriptor fd) throws IOException {
+        if (fd == null) {
+            throw new NullPointerException("FileDescriptor must not be null");
+        }
+        return probe(ImageSource.fromFileDescriptor(fd));
+    }
+
+    /**
+     * Reads image information from resource headers without decoding the image.
+     * Returns null on error.
+     *
+     * @param res The resources object containing the image data
+     * @param id  The resource id of the image data
+     * @return image information or null on error
+     * @throws NullPointerException        if Resources is null
+     * @throws Resources.NotFoundException if resource under the given id does not exist
+     */
+    @Nullable
+    public static ImageInfo probe(final Resources res, @DrawableRes @RawRes final int id) {
+        try {
+            return probeOrThrow(res, id);
+        } catch (IOException e) {
+            Log.w(TAG, "probe(): " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads image information from resource headers without decoding the image.
+     *
+     * @param res The resources object containing the image data
+     * @param id  The resource id of the image data
+     * @return image information
+     * @throws IOException          on error or if the image format is not supported
+     * @throws NullPointerException        if Resources is null
+     * @throws Resources.NotFoundException if resource under the given id does not exist
+     */
+    @NonNull
+    public static ImageInfo probeOrThrow(final Resources res,
+            @DrawableRes @RawRes final int id) throws IOException {
+        if (res == null) {
+            throw new NullPointerException("Resources must not be null");
+        }
+        return probe(ImageSource.fromResource(res, id));
+    }
+
+    /**
+     * Reads image information from asset headers without decoding the image.
+     * Returns null on error.
+     *
+     * @param assets   AssetManager to open the asset from
+     * @param fileName The name of the asset to probe
+     * @return image information or null on error
+     * @throws NullPointerException if AssetManager or file name is null
+     */
+    @Nullable
+    public static ImageInfo probe(final AssetManager assets, final String fileName) {
+        try {
+            return probeOrThrow(assets, fileName);
+        } catch (IOException e) {
+            Log.w(TAG, "probe(): " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads image information from asset headers without decoding the image.
+     *
+     * @param assets   AssetManager to open the asset from
+     * @param fileName The name of the asset to probe
+     * @return image information
+     * @throws IOException          on error or if the image format is not supported
+     * @throws NullPointerException if AssetManager or file name is null
+     */
+    @NonNull
+    public static ImageInfo probeOrThrow(final AssetManager assets,
+            final String fileName) throws IOException {
+        if (assets == null) {
+            throw new NullPointerException("AssetManager must not be null");
+        }
+        if (fileName == null) {
+            throw new NullPointerException("fileName must not be null");
+        }
+        return probe(ImageSource.fromAsset(assets, fileName));
+    }
+
+    /**
+     * Builds the frame index of a GIF by walking all blocks without decoding the image data.
+     *
+     * @param source the image source
+     * @return the frame index or null on error or if the image is not a GIF
+     * @see #indexGifOrThrow(ImageSource)
+     */
+    @Nullable
+    public static GifIndex indexGif(@NonNull final ImageSource source) {
+        try {
+            return indexGifOrThrow(source);
+        } catch (IOException e) {
+            Log.w(TAG, "indexGif(): " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Builds the frame index of a GIF by walking all blocks without decoding the image data.
+     * Indexes of the sources with stable identity are kept in memory, then indexing the same
+     * source again does not read it, and decoding a {@link DecodeMode#STILL_FRAME} reads the
+     * frame without parsing.
+     *
+     * @param source the image source
+     * @return the frame index or null if the image is not a GIF
+     * @throws IOException on error
+     */
+    @Nullable
+    public static GifIndex indexGifOrThrow(@NonNull final ImageSource source)
+            throws IOException {
+        final Object key = source.getCacheKey();
+        GifIndex gifIndex = key != null ? getGifIndex(key) : null;
+        if (gifIndex != null) {
+            return gifIndex;
+        }
+        final ImageInput input = source.open();
+        try {
+            gifIndex = input.newGifParser().readIndex();
+        } finally {
+            input.close();
+        }
+        if (gifIndex != null && key != null) {
+            synchronized (sGifIndexes) {
+                sGifIndexes.put(key, gifIndex);
+            }
+        }
+        return gifIndex;
+    }
+
+    @Nullable
+    private static GifIndex getGifIndex(@NonNull final Object key) {
+        synchronized (sGifIndexes) {
+            return sGifIndexes.get(key);
+        }
+    }
+
+    /**
+     * Decodes the image on a background thread with {@link DecodePriority#NORMAL} priority and
+     * delivers the result on the main thread.
+     *
+     * @param res      Resources to use if creating a BitmapDrawable
+     * @param source   the image source
+     * @param options  optional options if an image will be decoded to a Bitmap. Must not be
+     *                 modified until the result is delivered.
+     * @param callback receives the result on the main thread
+     * @return the request handle
+     * @throws NullPointerException if source or callback is null
+     */
+    @NonNull
+    public static DecodeRequest decodeAsync(@Nullable final Resources res,
+            @NonNull final ImageSource source,
+            @Nullable final BitmapFactory.Options options,
+            @NonNull final DecodeCallback callback) {
+        return decodeAsync(res, source, options, DecodePriority.NORMAL, callback);
+    }
+
+    /**
+     * Decodes the image on a background thread and delivers the result on the main thread.
+     * Queued requests start in priority order, at most {@link #getDecodeThreadCount()} at once.
+     *
+     * @param res      Resources to use if creating a BitmapDrawable
+     * @param source   the image source
+     * @param options  optional options if an image will be decoded to a Bitmap. Must not be
+     *                 modified until the result is delivered.
+     * @param priority the priority of the request
+     * @param callback receives the result on the main thread
+     * @return the request handle
+     * @throws NullPointerException if source, priority or callback is null
+     */
+    @NonNull
+    public static DecodeRequest decodeAsync(@Nullable final Resources res,
+            @NonNull final ImageSource source,
+            @Nullable final BitmapFactory.Options options,
+            @NonNull final DecodePriority priority,
+            @NonNull final DecodeCallback callback) {
+        if (source == null) {
+            throw new NullPointerException("source must not be null");
+        }
+        if (priority == null) {
+            throw new NullPointerException("priority must not be null");
+        }
+        if (callback == null) {
+            throw new NullPointerException("callback must not be null");
+        }
+        final DecodeRequest request = new DecodeRequest(res, source, options, priority,
+                callback);
+        request.enqueue();
+        return request;
+    }
+
+    /**
+     * Decodes all sources, allowing up to a quarter of the maximum heap size of estimated
+     * decoded bytes in flight.
+     *
+     * @see #decodeAll(Resources, Collection, BitmapFactory.Options, long)
+     */
+    @NonNull
+    public static List<DecodeResult> decodeAll(@Nullable final Resources res,
+            @NonNull final Collection<ImageSource> sources,
+            @Nullable final BitmapFactory.Options options) {
+        return decodeAll(res, sources, options, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Decodes all sources and blocks until done. Headers of all sources are read first, then
+     * static and small images are decoded before animated and large ones. Reading data on the
+     * I/O threads overlaps with decoding on the {@link #getDecodeThreadCount()} decode threads.
+     * Must not be called on the main thread or from a {@link DecodeCallback}.
+     *
+     * @param res              Resources to use if creating a BitmapDrawable
+     * @param sources          the sources to decode
+     * @param options          optional options if an image will be decoded to a Bitmap. Each
+     *                         item is decoded with a copy, so the output fields are not set.
+     * @param maxBytesInFlight the maximum estimated size of images being read or decoded at the
+     *                         same time, in bytes. An image larger than this is decoded alone.
+     * @return results in the order of sources, each holding the Drawable or the error
+     * @throws NullPointerException if sources is null or contains null
+     */
+    @NonNull
+    public static List<DecodeResult> decodeAll(@Nullable final Resources res,
+            @NonNull final Collection<ImageSource> sources,
+            @Nullable final BitmapFactory.Options options,
+            final long maxBytesInFlight) {
+        if (sources == null) {
+            throw new NullPointerException("sources must not be null");
+        }
+        return new BatchDecoder(res, sources, options, maxBytesInFlight).decodeAll();
+    }
+
+    /**
+     * Sets the number of threads used by the decodeAsync methods. Defaults to the number of
+     * CPU cores.
+     *
+     * @param threadCount the number of threads
+     * @throws IllegalArgumentException if threadCount is less than 1
+     */
+    public static void setDecodeThreadCount(final int threadCount) {
+        DecodeExecutor.setThreadCount(threadCount);
+    }
+
+    /**
+     * @return the number of threads used by the decodeAsync methods
+     * @see #setDecodeThreadCount(int)
+     */
+    public static int getDecodeThreadCount() {
+        return DecodeExecutor.getThreadCount();
+    }
+
+    /**
+     * Returns a Drawable that reads only the image size now and decodes the image when it is
+     * first drawn or becomes visible. After it has been invisible for
+     * {@link LazyDrawable#getReleaseDelay()} the decoded image is released, and decoded again
+     * or taken from the {@link DrawableCache} when it becomes visible again.
+     * The size is read on the calling thread. GIF frames are not counted, and with a
+     * {@link ProbeIndex} set a source seen before is not read at all.
+     *
+     * @param res     Resources to use if creating a BitmapDrawable
+     * @param source  the image source. Must be readable more than once, so not a stream.
+     * @param options optional options, copied
+     * @return the lazy Drawable, or null if the size could not be read
+     */
+    @Nullable
+    public static LazyDrawable lazy(@Nullable final Resources res,
+            @NonNull final ImageSource source,
+            @Nullable final BitmapFactory.Options options) {
+        try {
+            return lazyOrThrow(res, source, options);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read image size", e);
+            return null;
+        }
+    }
 
-                case 0x21:
-                    // extension
-                    code = is.read() & 0xff;
-                    switch (code) {
-                        case 0xf9:
-                            return true;
+    /**
+     * Returns a Drawable that reads only the image size now and decodes the image when it is
+     * first drawn or becomes visible
+     *
+     * @param res     Resources to use if creating a BitmapDrawable
+     * @param source  the image source. Must be readable more than once, so not a stream.
+     * @param options optional options, copied
+     * @return the lazy Drawable
+     * @throws IOException if the size could not be read
+     * @see #lazy(Resources, ImageSource, BitmapFactory.Options)
+     */
+    @NonNull
+    public static LazyDrawable lazyOrThrow(@Nullable final Resources res,
+            @NonNull final ImageSource source,
+            @Nullable final BitmapFactory.Options options) throws IOException {
+        final BitmapFactory.Options bounds = readBounds(source);
+        return new LazyDrawable(res, source, DecodeOptions.copyOf(options),
+                bounds.outWidth, bounds.outHeight);
+    }
+
+    /**
+     * Reads the image size from the {@link ProbeIndex}, or from the header without counting GIF
+     * frames
+     */
+    @NonNull
+    private static BitmapFactory.Options readBounds(@NonNull final ImageSource source)
+            throws IOException {
+        final BitmapFactory.Options bounds = newBoundsOptions();
+        final ProbeIndex index = sProbeIndex;
+        final String indexKey = index != null ? source.getIndexKey() : null;
+        final ImageInfo known = indexKey != null ? index.get(indexKey, false) : null;
+        if (known != null) {
+            bounds.outWidth = known.getWidth();
+            bounds.outHeight = known.getHeight();
+            return bounds;
+        }
+        final ImageInput input = source.open();
+        try {
+            final byte[] header = headerBuffer(input);
+            final int headerLength = input.readHeader(header);
+            final ImageInfo headerInfo = FormatDetector.readInfo(header, headerLength);
+            if (headerInfo != null) {
+                bounds.outWidth = headerInfo.getWidth();
+                bounds.outHeight = headerInfo.getHeight();
+                return bounds;
+            }
+            input.rewind();
+            final GifParser parser = input.newGifParser();
+            if (FormatDetector.detectFormat(header, headerLength) == ImageFormat.GIF
+                    && parser.readHeader()) {
+                bounds.outWidth = parser.getWidth();
+                bounds.outHeight = parser.getHeight();
+            } else {
+                input.rewind();
+                input.stopRecording();
+                input.decodeBitmap(null, bounds);
+            }
+        } finally {
+            input.close();
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Could not read image size");
+        }
+        return bounds;
+    }
 
-                        case 0xff: // application extension
-                            return true;
+    @NonNull
+    static ImageInfo probe(@NonNull final ImageSource source) throws IOException {
+        final ProbeIndex index = sProbeIndex;
+        final String indexKey = index != null ? source.getIndexKey() : null;
+        if (indexKey != null) {
+            final ImageInfo known = index.get(indexKey, true);
+            if (known != null) {
+                return known;
+            }
+        }
+        final ImageInfo info;
+        final ImageInput input = source.open();
+        try {
+            info = probe(input);
+        } finally {
+            input.close();
+        }
+        if (indexKey != null && info.getFormat() != ImageFormat.UNKNOWN) {
+            index.put(indexKey, info, true);
+        }
+        return info;
+    }
+
+    /**
+     * Reads PNG information from the header, walks all GIF blocks without decoding image data,
+     * or reads bounds with {@link BitmapFactory} for other formats
+     */
+    @NonNull
+    private static ImageInfo probe(@NonNull final ImageInput input) throws IOException {
+        final byte[] header = headerBuffer(input);
+        final int headerLength = input.readHeader(header);
+        final ImageInfo headerInfo = FormatDetector.readInfo(header, headerLength);
+        if (headerInfo != null) {
+            return headerInfo;
+        }
+        input.rewind();
+        final GifParser parser = input.newGifParser();
+        if (FormatDetector.detectFormat(header, headerLength) == ImageFormat.GIF
+                && parser.readHeader()) {
+            // Nothing has to be replayed for a GIF
+            input.stopRecording();
+            parser.readFrames(Integer.MAX_VALUE);
+            return new ImageInfo(ImageFormat.GIF,
+                    parser.getWidth(),
+                    parser.getHeight(),
+                    parser.getFrameCount(),
+                    parser.getLoopCount(),
+                    parser.getDuration());
+        }
+        input.rewind();
+        input.stopRecording();
+        final BitmapFactory.Options options = newBoundsOptions();
+        input.decodeBitmap(null, options);
+        return boundsInfo(options);
+    }
+
+    @NonNull
+    static Drawable decode(@Nullable final Resources res,
+            @NonNull final ImageSource source,
+            @Nullable final Rect outPadding,
+            @Nullable final BitmapFactory.Options options) throws IOException {
+        final PendingDecode.Waiter waiter = new PendingDecode.Waiter(res, options);
+        final Drawable drawable = decode(res, source, outPadding, options, waiter);
+        return withSharedClock(drawable != null ? drawable : waiter.await(), options);
+    }
+
+    /**
+     * Wraps an animated GIF in {@link ClockedGifDrawable} if the options ask for the shared
+     * clock. Applied to the result each caller gets, so cached and shared GIFs stay unwrapped.
+     * The clock is part of the {@link CacheKey}, so a shared GIF stopped here is shared only by
+     * requests that asked for the clock as well.
+     */
+    @NonNull
+    static Drawable withSharedClock(@NonNull final Drawable drawable,
+            @Nullable final BitmapFactory.Options options) {
+        if (!(options instanceof DecodeOptions) || !((DecodeOptions) options).inSharedClock) {
+            return drawable;
+        }
+        if (drawable instanceof GifDrawable) {
+            return new ClockedGifDrawable(drawable, (GifDrawable) drawable);
+        }
+        if (drawable instanceof SharedGifDrawable) {
+            return new ClockedGifDrawable(drawable,
+                    ((SharedGifDrawable) drawable).getGifDrawable());
+        }
+        return drawable;
+    }
+
+    /**
+     * Returns the Drawable from cache, or decodes it. If the same decode is already in progress,
+     * the listener is subscribed to it instead.
+     *
+     * @return the Drawable, or null if the listener was subscribed to a decode in progress
+     */
+    @Nullable
+    static Drawable decode(@Nullable final Resources res,
+            @NonNull final ImageSource source,
+            @Nullable final Rect outPadding,
+            @Nullable final BitmapFactory.Options options,
+            @NonNull final PendingDecode.Listener listener) throws IOException {
+        final DecodeListener decodeListener = sDecodeListener;
+        final DecodeEvent event = decodeListener != null
+                ? new DecodeEvent(source.getSourceType()) : null;
 
-                        case 0xfe:// comment extension
-                            skip(is);
-                            break;
+        // The content key is computed only for the cache, hashing an array is not free
+        final DrawableCache installed = sDrawableCache;
+        final CacheKey key = CacheKey.create(source, outPadding, options, installed != null);
+        final DrawableCache cache = key != null ? installed : null;
+        if (cache != null) {
+            final Drawable cached = cache.get(key, res);
+            if (cached != null) {
+                if (event != null) {
+                    event.cacheHit();
+                    decodeListener.onDecodeFinished(event);
+                }
+                return cached;
+            }
+        }
+
+        final PendingDecode pending;
+        if (key != null) {
+            pending = PendingDecode.start(key, listener);
+            if (pending == null) {
+                return null;
+            }
+        } else {
+            pending = null;
+        }
+
+        Drawable drawable;
+        try {
+            final ProbeIndex index = sProbeIndex;
+            final String indexKey = index != null ? source.getIndexKey() : null;
+            final ImageInfo known = indexKey != null ? index.get(indexKey, false) : null;
+            final Object sourceKey = options instanceof DecodeOptions
+                    && ((DecodeOptions) options).isStillFrame() ? source.getCacheKey() : null;
+            final GifIndex gifIndex = sourceKey != null ? getGifIndex(sourceKey) : null;
+            final ImageInput input = source.open();
+            if (event != null) {
+                event.opened();
+            }
+            try {
+                // Cached Bitmaps are shared, they must never be reused
+                drawable = decode(res, input, outPadding, options,
+                        cache == null ? sBitmapPool : null, known, index, indexKey, gifIndex,
+                        event);
+            } finally {
+                input.close();
+            }
+            if (event != null) {
+                event.finished(drawable);
+            }
+            final GifMemoryBudget budget = sGifMemoryBudget;
+            if (cache != null && (budget == null || !budget.isLimited(drawable))) {
+                drawable = cache.put(key, drawable, res);
+            }
+        } catch (IOException e) {
+            failPending(pending, e);
+            notifyFailed(decodeListener, event, e);
+            throw e;
+        } catch (RuntimeException e) {
+            failPending(pending, e);
+            notifyFailed(decodeListener, event, e);
+            throw e;
+        } catch (Error e) {
+            failPending(pending, e);
+            notifyFailed(decodeListener, event, e);
+            throw e;
+        }
+        if (event != null) {
+            decodeListener.onDecodeFinished(event);
+        }
+        return pending != null ? pending.complete(drawable, res, options) : drawable;
+    }
+
+    private static void notifyFailed(@Nullable final DecodeListener listener,
+            @Nullable final DecodeEvent event,
+            @NonNull final Throwable error) {
+        if (listener != null && event != null) {
+            event.failed(error);
+            listener.onDecodeFinished(event);
+        }
+    }
+
+    private static void failPending(@Nullable final PendingDecode pending,
+            @NonNull final Throwable error) {
+        if (pending != null) {
+            pending.fail(error);
+        }
+    }
+
+    /**
+     * Marks the Bitmap as displayed by more than one Drawable, so {@link #release(Drawable)}
+     * never returns it to the {@link BitmapPool}
+     */
+    static void markShared(@Nullable final Bitmap bitmap) {
+        if (bitmap != null) {
+            synchronized (sSharedBitmaps) {
+                sSharedBitmaps.put(bitmap, Boolean.TRUE);
+            }
+        }
+    }
+
+    private static boolean isShared(@NonNull final Bitmap bitmap) {
+        synchronized (sSharedBitmaps) {
+            return sSharedBitmaps.containsKey(bitmap);
+        }
+    }
+
+    /**
+     * Sniffs the input, computes the sample size if the options have target size, then decodes
+     * either {@link GifDrawable} or {@link BitmapDrawable}. If the sniff result is known from the
+     * {@link ProbeIndex}, the header is not parsed. Otherwise the sniff result is written to the
+     * index, if given, once the decode succeeds.
+     */
+    @NonNull
+    private static Drawable decode(@Nullable final Resources res,
+            @NonNull final ImageInput input,
+            @Nullable final Rect outPadding,
+            @Nullable final BitmapFactory.Options options,
+            @Nullable final BitmapPool pool,
+            @Nullable final ImageInfo known,
+            @Nullable final ProbeIndex index,
+            @Nullable final String indexKey,
+            @Nullable final GifIndex gifIndex,
+            @Nullable final DecodeEvent event) throws IOException {
+        final boolean record = known == null && index != null && indexKey != null;
+        final DecodeOptions autoConfig = options instanceof DecodeOptions
+                && ((DecodeOptions) options).isAutoConfig() ? (DecodeOptions) options : null;
+        if (autoConfig != null) {
+            autoConfig.outAutoConfig = null;
+        }
+
+        ImageFormat detected = ImageFormat.UNKNOWN;
+        ImageInfo headerInfo = null;
+        boolean opaque = false;
+        if (known == null || autoConfig != null || FormatDetector.hasCustomDecoders()) {
+            final byte[] header = headerBuffer(input);
+            final int headerLength = input.readHeader(header);
+            final DrawableDecoder decoder = FormatDetector.find(header, headerLength);
+            if (event != null) {
+                event.setSniffBytes(headerLength);
+            }
+            if (decoder != null && !(decoder instanceof BuiltInDecoder)) {
+                if (event != null) {
+                    event.sniffed(DecodeEvent.Path.CUSTOM_DECODER,
+                            FormatDetector.detectFormat(header, headerLength), false);
+                }
+                return decodeWith(decoder, res, input, header, headerLength, options);
+            }
+            input.rewind();
+            if (decoder != null) {
+                detected = ((BuiltInDecoder) decoder).getFormat();
+                headerInfo = FormatDetector.readInfo(header, headerLength);
+                opaque = autoConfig != null && FormatDetector.isOpaque(header, headerLength);
+            }
+        }
+
+        final boolean animated;
+        int width = 0;
+        int height = 0;
+        ImageFormat format = ImageFormat.UNKNOWN;
+        ImageInfo sniffed = null;
+        if (known != null) {
+            // Only GIF is animated by this decoder, APNG is decoded as a still image
+            animated = known.isAnimated() && known.getFormat() == ImageFormat.GIF;
+            width = known.getWidth();
+            height = known.getHeight();
+            format = known.getFormat();
+        } else if (detected == ImageFormat.GIF) {
+            final GifParser parser = input.newGifParser();
+            animated = sniffAnimated(input, parser);
+            if (event != null) {
+                event.setSniffBytes(parser.getPosition());
+            }
+            if (parser.isGif()) {
+                width = parser.getWidth();
+                height = parser.getHeight();
+                format = ImageFormat.GIF;
+                // The only frame was read fully
+                opaque = autoConfig != null && !animated && parser.getFrameCount() == 1
+                        && parser.isOpaque();
+                // Animated because of the lookahead limit is not recorded, it may be static
+                if (record && (!animated || parser.getFrameCount() > 1)) {
+                    sniffed = new ImageInfo(format, width, height, parser.getFrameCount(),
+                            parser.getLoopCount(), parser.getDuration());
+                }
+            }
+        } else {
+            animated = false;
+            format = detected;
+            if (headerInfo != null) {
+                width = headerInfo.getWidth();
+                height = headerInfo.getHeight();
+            }
+        }
+
+        input.throwIfCancelled();
+
+        final DecodeOptions target = options instanceof DecodeOptions
+                && ((DecodeOptions) options).hasTargetSize() ? (DecodeOptions) options : null;
+        final int frameIndex = options instanceof DecodeOptions
+                && ((DecodeOptions) options).isStillFrame()
+                ? Math.max(0, ((DecodeOptions) options).inFrameIndex) : -1;
+        if (frameIndex > 0) {
+            if (!animated) {
+                throw new IOException("No frame at index " + frameIndex);
+            }
+            int sampleSize = 1;
+            if (target != null) {
+                sampleSize = target.computeSampleSize(width, height);
+                target.inSampleSize = sampleSize;
+            }
+            if (event != null) {
+                event.sniffed(DecodeEvent.Path.STILL_FRAME, format, true);
+            }
+            final Bitmap frame = decodeFrame(input, frameIndex, sampleSize, gifIndex);
+            if (sniffed != null) {
+                index.put(indexKey, sniffed, false);
+            }
+            return new BitmapDrawable(res, frame);
+        }
+        // The first frame of a GIF is what BitmapFactory decodes
+        final GifMemoryBudget budget = sGifMemoryBudget;
+        boolean limited = false;
+        if (animated && frameIndex != 0) {
+            int sampleSize = 1;
+            if (target != null) {
+                sampleSize = target.computeSampleSize(width, height);
+                target.inSampleSize = sampleSize;
+            }
+            final int budgetSampleSize = budget != null
+                    ? budget.reserve(width, height, sampleSize) : sampleSize;
+            if (budgetSampleSize != 0) {
+                if (target != null) {
+                    target.inSampleSize = budgetSampleSize;
+                }
+                if (event != null) {
+                    event.sniffed(DecodeEvent.Path.GIF, format, true);
+                }
+                input.rewind();
+                input.stopRecording();
+                final GifDrawable gif = budget != null
+                        ? decodeGif(input, budget, width, height, sampleSize, budgetSampleSize)
+                        : input.decodeGif(sampleSize);
+                if (sniffed != null) {
+                    index.put(indexKey, sniffed, false);
+                }
+                return gif;
+            }
+            // Over budget, decode the first frame
+            limited = true;
+        }
 
-                        case 0x01:// plain text extension
-                            skip(is);
-                            break;
+        final boolean reuse = pool != null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && (options == null || (!options.inJustDecodeBounds && options.inBitmap == null));
 
-                        default: // uninteresting extension
-                            skip(is);
-                            break;
-                    }
-                    break;
+        if ((target != null || reuse) && (width <= 0 || height <= 0)) {
+            input.rewind();
+            final BitmapFactory.Options bounds = newBoundsOptions();
+            input.decodeBitmap(null, bounds);
+            width = bounds.outWidth;
+            height = bounds.outHeight;
+            format = ImageFormat.fromMimeType(bounds.outMimeType);
+        }
+        if (record && format != ImageFormat.GIF && format != ImageFormat.UNKNOWN
+                && width > 0 && height > 0) {
+            // Decoded as a still image, so only the first frame is known
+            sniffed = headerInfo != null ? headerInfo
+                    : new ImageInfo(format, width, height, 1, 1, 0);
+        }
+        if (target != null) {
+            target.inSampleSize = target.computeSampleSize(width, height);
+        }
 
-                case 0x3b: // terminator
-                default:
-                    return false;
+        final boolean reusing = reuse && width > 0 && height > 0;
+        if (event != null) {
+            event.sniffed(reusing ? DecodeEvent.Path.BITMAP_REUSED
+                    : DecodeEvent.Path.BITMAP, format, animated);
+        }
+        input.rewind();
+        input.stopRecording();
+        final Bitmap.Config preferred = options != null ? options.inPreferredConfig : null;
+        if (autoConfig != null && !animated) {
+            autoConfig.outAutoConfig = opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            autoConfig.inPreferredConfig = autoConfig.outAutoConfig;
+        }
+        final Bitmap decoded;
+        try {
+            decoded = reusing
+                    ? decodeReusing(input, outPadding, options, pool, width, height,
+                    format.getMimeType())
+                    : input.decodeBitmap(outPadding, options);
+        } finally {
+            if (autoConfig != null) {
+                autoConfig.inPreferredConfig = preferred;
             }
         }
+        if (decoded == null) {
+            throw new IOException("BitmapFactory returned null");
+        }
+        if (sniffed != null) {
+            index.put(indexKey, sniffed, false);
+        }
+        final BitmapDrawable drawable = new BitmapDrawable(res, decoded);
+        if (limited) {
+            budget.markLimited(drawable);
+        }
+        return drawable;
     }
 
     /**
-     * Skips variable length blocks up to and including next zero length block.
+     * Decodes a GIF for which the budget reserved room and replaces the reservation with the
+     * actual size, or releases it if the decode fails
      */
+    @NonNull
+    private static GifDrawable decodeGif(@NonNull final ImageInput input,
+            @NonNull final GifMemoryBudget budget,
+            final int width,
+            final int height,
+            final int requestedSampleSize,
+            final int sampleSize) throws IOException {
+        GifDrawable gif = null;
+        try {
+            gif = input.decodeGif(sampleSize);
+        } finally {
+            budget.track(gif, GifMemoryBudget.estimate(width, height, sampleSize),
+                    sampleSize != requestedSampleSize);
+        }
+        return gif;
+    }
 
-    private static void skip(@NonNull final BufferedInputStream reader) throws IOException {
-        int blockSize;
-        do {
-            blockSize = reader.read() & 0xff;
-            if (blockSize > 0) {
-                try {
-                    int n = 0;
-                    int count;
-                    while (n < blockSize) {
-                        count = blockSize - n;
-                        n += reader.skip(count);
-                    }
-                } catch (Exception e) {
-                    Log.w(TAG, "Error Reading Block", e);
-                    throw new IOException("Format error " + e);
+    /**
+     * Returns the buffer to read the header to. An array that the image data starts at is used
+     * as is, so byte arrays and heap buffers are matched in place.
+     */
+    @NonNull
+    private static byte[] headerBuffer(@NonNull final ImageInput input) {
+        final byte[] array = input.getHeaderArray();
+        return array != null ? array : new byte[FormatDetector.HEADER_SIZE];
+    }
+
+    /**
+     * Decodes with a registered decoder. The header is passed as is and the rest of the data is
+     * read after it, so nothing is read twice. A header matched in the array of the input is
+     * copied first, so the decoder gets a buffer of its own.
+     */
+    @NonNull
+    private static Drawable decodeWith(@NonNull final DrawableDecoder decoder,
+            @Nullable final Resources res,
+            @NonNull final ImageInput input,
+            @NonNull final byte[] header,
+            final int headerLength,
+            @Nullable final BitmapFactory.Options options) throws IOException {
+        final byte[] own;
+        if (header == input.getHeaderArray()) {
+            own = new byte[FormatDetector.HEADER_SIZE];
+            System.arraycopy(header, 0, own, 0, headerLength);
+        } else {
+            own = header;
+        }
+        input.stopRecording();
+        final InputStream rest = input.newStream();
+        try {
+            long skipped = 0;
+            while (skipped < headerLength) {
+                final long n = rest.skip(headerLength - skipped);
+                if (n <= 0) {
+                    throw new EOFException();
                 }
+                skipped += n;
             }
-        } while ((blockSize > 0));
+            return decoder.decode(res, own, headerLength, rest, options);
+        } finally {
+            rest.close();
+        }
     }
+
+    /**
+     * Decodes a single frame of an animated GIF. Only the data up to the end of the frame is
+     * read and passed to the GIF decoder. The end of the frame is taken from the index, if
+     * given.
+     */
+    @NonNull
+    private static Bitmap decodeFrame(@NonNull final ImageInput input,
+            final int frameIndex,
+            final int sampleSize,
+            @Nullable final GifIndex gifIndex) throws IOException {
+        final byte[] prefix;
+        if (gifIndex == null) {
+            prefix = input.readFramePrefix(frameIndex);
+        } else if (frameIndex < gifIndex.getFrameCount()) {
+            prefix = input.readFramePrefix(gifIndex, frameIndex);
+        } else {
+            prefix = null;
+        }
+        if (prefix == null) {
+            throw new IOException("No frame at index " + frameIndex);
+        }
+        final GifDrawable gif = ImageInput.newGifBuilder(sampleSize).from(prefix).build();
+        try {
+            if (gif.getNumberOfFrames() <= frameIndex) {
+                throw new IOException("No frame at index " + frameIndex);
+            }
+            return gif.seekToFrameAndGet(frameIndex);
+        } finally {
+            gif.recycle();
+        }
+    }
+
+    /**
+     * Decodes a mutable Bitmap into a Bitmap from the pool, if there is one that fits. Before
+     * KitKat only JPEG and PNG without subsampling can be decoded into an existing Bitmap.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Nullable
+    private static Bitmap decodeReusing(@NonNull final ImageInput input,
+            @Nullable final Rect outPadding,
+            @Nullable final BitmapFactory.Options options,
+            @NonNull final BitmapPool pool,
+            final int width,
+            final int height,
+            @Nullable final String mimeType) throws IOException {
+        final BitmapFactory.Options decodeOptions = options != null
+                ? options : new BitmapFactory.Options();
+        if (decodeOptions.inScaled && decodeOptions.inDensity != 0
+                && decodeOptions.inTargetDensity != 0
+                && decodeOptions.inDensity != decodeOptions.inTargetDensity) {
+            // Density scaling makes the decoded size unknown
+            return input.decodeBitmap(outPadding, options);
+        }
+
+        // Decoders round the sample size down to a power of two
+        final int sampleSize = Integer.highestOneBit(Math.max(1, decodeOptions.inSampleSize));
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && (sampleSize != 1
+                || !(ImageFormat.JPEG.getMimeType().equals(mimeType)
+                || ImageFormat.PNG.getMimeType().equals(mimeType)))) {
+            return input.decodeBitmap(outPadding, options);
+        }
+
+        final Bitmap reusable = pool.get((width + sampleSize - 1) / sampleSize,
+                (height + sampleSize - 1) / sampleSize, decodeOptions.inPreferredConfig);
+        final boolean mutable = decodeOptions.inMutable;
+        decodeOptions.inMutable = true;
+        decodeOptions.inBitmap = reusable;
+        try {
+            return input.decodeBitmap(outPadding, decodeOptions);
+        } catch (IllegalArgumentException e) {
+            if (reusable == null) {
+                throw e;
+            }
+            // The image did not fit, decode into a new Bitmap
+            Log.w(TAG, "Could not reuse Bitmap", e);
+            pool.put(reusable);
+            decodeOptions.inBitmap = null;
+            input.rewind();
+            return input.decodeBitmap(outPadding, decodeOptions);
+        } finally {
+            decodeOptions.inBitmap = null;
+            decodeOptions.inMutable = mutable;
+        }
+    }
+
+    /**
+     * @return true if the image should be decoded as {@link GifDrawable}
+     */
+    private static boolean sniffAnimated(@NonNull final ImageInput input,
+            @NonNull final GifParser parser) throws IOException {
+        try {
+            if (parser.isAnimated()) {
+                return true;
+            }
+        } catch (MalformedImageException e) {
+            if (!e.isTruncated()) {
+                throw e;
+            }
+            // Truncated or over the lookahead limit. The header is a GIF, so GifDrawable is safe
+            return parser.isGif();
+        }
+        // The sniffer could not reach the second frame, GifDrawable handles static GIF too
+        return parser.isGif() && input.isLookaheadLimitReached();
+    }
+
+    @NonNull
+    private static BitmapFactory.Options newBoundsOptions() {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        return options;
+    }
+
+    @NonNull
+    private static ImageInfo boundsInfo(@NonNull final BitmapFactory.Options options)
+            throws IOException {
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("BitmapFactory could not decode bounds");
+        }
+        return new ImageInfo(ImageFormat.fromMimeType(options.outMimeType),
+                options.outWidth, options.outHeight, 1, 1, 0);
+    }
+
+    /**
+     * Detects animated GIF. A GIF is animated if it has more than one frame.
+     *
+     * @param is InputStream pointing to data to analyze
+     * @return true, if the reader's content is an animated gif. False if not a gif or not animated
+     * @throws MalformedImageException if the GIF ends inside a block or exceeds the scan limits
+     * @throws IOException             on read error
+     */
+    public static boolean isAnimatedGif(@NonNull final BufferedInputStream is)
+            throws IOException {
+        return new GifParser.StreamParser(is).isAnimated();
+    }
+
+    /**
+     * Detects animated GIF. The data is read by index, no intermediate buffers are allocated.
+     *
+     * @param data   byte array of compressed image data
+     * @param offset offset into data for where the image data begins
+     * @param length the number of bytes, beginning at offset, to analyze
+     * @return true, if the data is an animated gif. False if not a gif or not animated
+     * @throws MalformedImageException        if the GIF ends inside a block or exceeds the scan
+     *                                        limits
+     * @throws IOException                    on read error
+     * @throws ArrayIndexOutOfBoundsException if offset and length are out of data bounds
+     */
+    public static boolean isAnimatedGif(@NonNull final byte[] data,
+            final int offset,
+            final int length) throws IOException {
+        checkBounds(data, offset, length);
+        return new GifParser.ArrayParser(data, offset, length).isAnimated();
+    }
+
+    /**
+     * Detects animated GIF. The data between buffer position and limit is read by absolute index,
+     * so the buffer position is not modified and no intermediate buffers are allocated.
+     *
+     * @param buffer ByteBuffer containing compressed image data
+     * @return true, if the data is an animated gif. False if not a gif or not animated
+     * @throws MalformedImageException if the GIF ends inside a block or exceeds the scan limits
+     * @throws IOException             on read error
+     */
+    public static boolean isAnimatedGif(@NonNull final ByteBuffer buffer) throws IOException {
+        return new GifParser.BufferParser(buffer).isAnimated();
+    }
+
+    /**
+     * Counts GIF frames. The stream is read up to the end of the GIF data.
+     *
+     * @param is InputStream pointing to data to analyze
+     * @return number of frames, or 0 if the content is not a gif
+     * @throws MalformedImageException if the GIF ends inside a block or exceeds the scan limits
+     * @throws IOException             on read error
+     */
+    public static int getGifFrameCount(@NonNull final BufferedInputStream is)
+            throws IOException {
+        return new GifParser.StreamParser(is).countFrames(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Counts GIF frames. The data is read by index, no intermediate buffers are allocated.
+     *
+     * @param data   byte array of compressed image data
+     * @param offset offset into data for where the image data begins
+     * @param length the number of bytes, beginning at offset, to analyze
+     * @return number of frames, or 0 if the data is not a gif
+     * @throws MalformedImageException        if the GIF ends inside a block or exceeds the scan
+     *                                        limits
+     * @throws IOException                    on read error
+     * @throws ArrayIndexOutOfBoundsException if offset and length are out of data bounds
+     */
+    public static int getGifFrameCount(@NonNull final byte[] data,
+            final int offset,
+            final int length) throws IOException {
+        checkBounds(data, offset, length);
+        return new GifParser.ArrayParser(data, offset, length).countFrames(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Counts GIF frames. The buffer position is not modified.
+     *
+     * @param buffer ByteBuffer containing compressed image data
+     * @return number of frames, or 0 if the data is not a gif
+     * @throws MalformedImageException if the GIF ends inside a block or exceeds the scan limits
+     * @throws IOException             on read error
+     */
+    public static int getGifFrameCount(@NonNull final ByteBuffer buffer) throws IOException {
+        return new GifParser.BufferParser(buffer).countFrames(Integer.MAX_VALUE);
+    }
+
+    private static void checkBounds(@NonNull final byte[] data,
+            final int offset,
+            final int length) {
+        if ((offset | length) < 0 || data.length - offset < length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+    }
+
 }
@@ -0,0 +1,836 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import pl.droidsonroids.gif.GifDrawable;
+import pl.droidsonroids.gif.GifDrawableBuilder;
+
+/**
+ * Opened {@link ImageSource}, used for a single decode. Knows how to sniff the data and how to
+ * hand it to the native decoders with the least copying.
+ */
+abstract class ImageInput implements Closeable {
+
+    private static final byte GIF_TRAILER = 0x3b;
+
+    /**
+     * @return new parser reading from the beginning of the image data
+     */
+    @NonNull
+    abstract GifParser newGifParser() throws IOException;
+
+    /**
+     * Decodes the image data with {@link BitmapFactory}
+     *
+     * @param outPadding optional outPadding, not supported by all inputs
+     * @param options    optional options
+     * @return decoded Bitmap, or null if {@link BitmapFactory} returned null
+     */
+    @Nullable
+    abstract Bitmap decodeBitmap(@Nullable Rect outPadding,
+            @Nullable BitmapFactory.Options options) throws IOException;
+
+    /**
+     * Decodes the image data as {@link GifDrawable}
+     *
+     * @param sampleSize the subsampling factor
+     */
+    @NonNull
+    abstract GifDrawable decodeGif(int sampleSize) throws IOException;
+
+    /**
+     * Returns stream reading the image data from the beginning. Closing the stream does not
+     * close this input.
+     */
+    @NonNull
+    abstract InputStream newStream() throws IOException;
+
+    /**
+     * Returns the array the image data starts at index 0 of, so that {@link FormatDetector} can
+     * match the header in place
+     *
+     * @return the backing array, or null if the header has to be copied to a buffer
+     */
+    @Nullable
+    byte[] getHeaderArray() {
+        return null;
+    }
+
+    /**
+     * Reads the beginning of the image data for {@link FormatDetector}. If header is the array
+     * returned by {@link #getHeaderArray()}, nothing is copied.
+     *
+     * @param header buffer for the header
+     * @return the number of bytes read, less than the buffer length if the data is shorter
+     */
+    int readHeader(@NonNull final byte[] header) throws IOException {
+        final InputStream is = newStream();
+        int length = 0;
+        int read;
+        while (length < header.length
+                && (read = is.read(header, length, header.length - length)) != -1) {
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Reads the first length bytes of the image data
+     *
+     * @throws EOFException if the data is shorter
+     */
+    abstract void readPrefix(@NonNull byte[] buffer, int length) throws IOException;
+
+    /**
+     * Reads the image data up to the end of the frame at index and appends the GIF trailer, so
+     * that the frame can be decoded without reading the rest of the input
+     *
+     * @param index the frame index
+     * @return GIF data ending with the frame, or null if the data has no frame at index
+     */
+    @Nullable
+    byte[] readFramePrefix(final int index) throws IOException {
+        final GifParser parser = newGifParser();
+        if (!parser.readHeader() || !parser.skipToFrameEnd(index)) {
+            return null;
+        }
+        return readPrefixWithTrailer((int) parser.getPosition());
+    }
+
+    /**
+     * Reads the image data up to the end of the frame located by the index and appends the GIF
+     * trailer. Nothing is parsed.
+     *
+     * @param index the frame index of this image
+     * @param frame the frame to read up to
+     * @return GIF data ending with the frame
+     */
+    @NonNull
+    byte[] readFramePrefix(@NonNull final GifIndex index, final int frame) throws IOException {
+        return readPrefixWithTrailer((int) index.getFrameEnd(frame));
+    }
+
+    @NonNull
+    private byte[] readPrefixWithTrailer(final int length) throws IOException {
+        final byte[] prefix = new byte[length + 1];
+        readPrefix(prefix, length);
+        prefix[length] = GIF_TRAILER;
+        return prefix;
+    }
+
+    /**
+     * Moves back to the beginning of the image data for another pass. Only streams need this.
+     */
+    void rewind() throws IOException {
+        // Positional inputs read from the beginning on every pass
+    }
+
+    /**
+     * Called before the final pass. Streams stop buffering the data for further passes.
+     */
+    void stopRecording() {
+        // Positional inputs do not buffer
+    }
+
+    /**
+     * @return true if the sniffer stopped because the lookahead buffer limit was reached
+     */
+    boolean isLookaheadLimitReached() {
+        return false;
+    }
+
+    /**
+     * Called between sniffing and decoding. Throws if the decode was cancelled, since the
+     * sniffed bytes may be replayed from a buffer without reading a cancellable stream.
+     */
+    void throwIfCancelled() throws IOException {
+        // Only streams can be cancelled
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Nothing to close by default
+    }
+
+    /**
+     * Reads length bytes at position with positional reads, so the channel position is not
+     * modified
+     */
+    static void readFully(@NonNull final FileChannel channel,
+            final long position,
+            @NonNull final byte[] buffer,
+            final int length) throws IOException {
+        final ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Reads length bytes from the stream
+     */
+    static void readFully(@NonNull final InputStream is,
+            @NonNull final byte[] buffer,
+            final int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int read = is.read(buffer, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    @NonNull
+    static GifDrawableBuilder newGifBuilder(final int sampleSize) {
+        final GifDrawableBuilder builder = new GifDrawableBuilder();
+        if (sampleSize > 1) {
+            builder.sampleSize(sampleSize);
+        }
+        return builder;
+    }
+
+    /**
+     * Byte array range
+     */
+    static final class ArrayInput extends ImageInput {
+
+        private final byte[] mData;
+        private final int mOffset;
+        private final int mLength;
+
+        ArrayInput(@NonNull final byte[] data, final int offset, final int length) {
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @NonNull
+        @Override
+        GifParser newGifParser() {
+            return new GifParser.ArrayParser(mData, mOffset, mLength);
+        }
+
+        @NonNull
+        @Override
+        InputStream newStream() {
+            return new ByteArrayInputStream(mData, mOffset, mLength);
+        }
+
+        @Nullable
+        @Override
+        byte[] getHeaderArray() {
+            return mOffset == 0 ? mData : null;
+        }
+
+        @Override
+        int readHeader(@NonNull final byte[] header) {
+            if (header == mData) {
+                return Math.min(mLength, FormatDetector.HEADER_SIZE);
+            }
+            final int length = Math.min(mLength, header.length);
+            System.arraycopy(mData, mOffset, header, 0, length);
+            return length;
+        }
+
+        @Nullable
+        @Override
+        Bitmap decodeBitmap(@Nullable final Rect outPadding,
+                @Nullable final BitmapFactory.Options options) {
+            return BitmapFactory.decodeByteArray(mData, mOffset, mLength, options);
+        }
+
+        @NonNull
+        @Override
+        GifDrawable decodeGif(final int sampleSize) throws IOException {
+            final byte[] data;
+            if (mOffset == 0 && mLength == mData.length) {
+                data = mData;
+            } else {
+                data = new byte[mLength];
+                System.arraycopy(mData, mOffset, data, 0, mLength);
+            }
+            return newGifBuilder(sampleSize).from(data).build();
+        }
+
+        @Override
+        void readPrefix(@NonNull final byte[] buffer, final int length) throws IOException {
+            if (length > mLength) {
+                throw new EOFException();
+            }
+            System.arraycopy(mData, mOffset, buffer, 0, length);
+        }
+    }
+
+    /**
+     * ByteBuffer content between position and limit. The buffer position is not modified.
+     */
+    static final class BufferInput extends ImageInput {
+
+        private final ByteBuffer mBuffer;
+
+        BufferInput(@NonNull final ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @NonNull
+        @Override
+        GifParser newGifParser() {
+            return new GifParser.BufferParser(mBuffer);
+        }
+
+        @NonNull
+        @Override
+        InputStream newStream() {
+            return new BufferInputStream(mBuffer.duplicate());
+        }
+
+        @Nullable
+        @Override
+        byte[] getHeaderArray() {
+            return mBuffer.hasArray() && mBuffer.arrayOffset() + mBuffer.position() == 0
+                    ? mBuffer.array() : null;
+        }
+
+        /**
+         * Uses absolute reads, so the buffer is neither duplicated nor moved
+         */
+        @Override
+        int readHeader(@NonNull final byte[] header) {
+            if (mBuffer.hasArray() && header == mBuffer.array()) {
+                return Math.min(mBuffer.remaining(), FormatDetector.HEADER_SIZE);
+            }
+            final int position = mBuffer.position();
+            final int length = Math.min(mBuffer.remaining(), header.length);
+            for (int i = 0; i < length; i++) {
+                header[i] = mBuffer.get(position + i);
+            }
+            return length;
+        }
+
+        /**
+         * Since {@link BitmapFactory} can only decode arrays, the content of a direct or
+         * read-only buffer is copied.
+         */
+        @Nullable
+        @Override
+        Bitmap decodeBitmap(@Nullable final Rect outPadding,
+                @Nullable final BitmapFactory.Options options) {
+            if (mBuffer.hasArray()) {
+                return BitmapFactory.decodeByteArray(mBuffer.array(),
+                        mBuffer.arrayOffset() + mBuffer.position(), mBuffer.remaining(), options);
+            }
+            final byte[] data = toByteArray(mBuffer);
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        /**
+         * A direct buffer is passed to {@link GifDrawable} without copying.
+         */
+        @NonNull
+        @Override
+        GifDrawable decodeGif(final int sampleSize) throws IOException {
+            if (mBuffer.isDirect()) {
+                // GifDrawable reads the whole buffer capacity, so slice to position and limit
+                return newGifBuilder(sampleSize).from(mBuffer.position() == 0
+                        && mBuffer.limit() == mBuffer.capacity() ? mBuffer : mBuffer.slice())
+                        .build();
+            }
+            return newGifBuilder(sampleSize).from(toByteArray(mBuffer)).build();
+        }
+
+        @Override
+        void readPrefix(@NonNull final byte[] buffer, final int length) throws IOException {
+            if (length > mBuffer.remaining()) {
+                throw new EOFException();
+            }
+            mBuffer.duplicate().get(buffer, 0, length);
+        }
+
+        /**
+         * Returns byte array holding exactly the buffer content between position and limit.
+         * The backing array is returned as is if it matches, otherwise the content is copied.
+         */
+        @NonNull
+        static byte[] toByteArray(@NonNull final ByteBuffer buffer) {
+            final int length = buffer.remaining();
+            if (buffer.hasArray()) {
+                final byte[] array = buffer.array();
+                final int offset = buffer.arrayOffset() + buffer.position();
+                if (offset == 0 && length == array.length) {
+                    return array;
+                }
+                final byte[] copy = new byte[length];
+                System.arraycopy(array, offset, copy, 0, length);
+                return copy;
+            }
+            final byte[] copy = new byte[length];
+            buffer.duplicate().get(copy);
+            return copy;
+        }
+    }
+
+    /**
+     * InputStream read through {@link LookaheadInputStream}, so that the bytes consumed while
+     * sniffing can be replayed for the decoder.
+     */
+    static final class StreamInput extends ImageInput {
+
+        private final InputStream mStream;
+        private final LookaheadInputStream mLookahead;
+        private final boolean mCloseStream;
+
+        /**
+         * @param stream         the stream to read
+         * @param lookaheadLimit maximum number of bytes buffered for replay
+         * @param closeStream    whether to close the stream on {@link #close()}
+         */
+        StreamInput(@NonNull final InputStream stream,
+                final int lookaheadLimit,
+                final boolean closeStream) {
+            mStream = stream;
+            mLookahead = new LookaheadInputStream(stream, lookaheadLimit);
+            mCloseStream = closeStream;
+        }
+
+        @NonNull
+        @Override
+        GifParser newGifParser() {
+            return new GifParser.StreamParser(mLookahead);
+        }
+
+        /**
+         * Rewinds and returns the lookahead stream, which can be read and skipped from the
+         * beginning as long as the recorded bytes were not consumed past the lookahead buffer
+         */
+        @NonNull
+        @Override
+        InputStream newStream() throws IOException {
+            mLookahead.rewind();
+            return new FilterInputStream(mLookahead) {
+                @Override
+                public void close() {
+                    // The stream is closed by ImageInput
+                }
+            };
+        }
+
+        @Nullable
+        @Override
+        Bitmap decodeBitmap(@Nullable final Rect outPadding,
+                @Nullable final BitmapFactory.Options options) {
+            return BitmapFactory.decodeStream(mLookahead, outPadding, options);
+        }
+
+        @NonNull
+        @Override
+        GifDrawable decodeGif(final int sampleSize) throws IOException {
+            // android-gif-drawable gives libc crash or not decoding properly if it's not a BufferedInputStream.
+            return newGifBuilder(sampleSize).from(new BufferedInputStream(mLookahead)).build();
+        }
+
+        /**
+         * Works only while the prefix is in the lookahead buffer
+         */
+        @Override
+        void readPrefix(@NonNull final byte[] buffer, final int length) throws IOException {
+            mLookahead.rewind();
+            readFully(mLookahead, buffer, length);
+        }
+
+        /**
+         * Copies the data while parsing it, since it can be read only once past the lookahead
+         * buffer
+         */
+        @Nullable
+        @Override
+        byte[] readFramePrefix(final int index) throws IOException {
+            rewind();
+            stopRecording();
+            final ByteArrayOutputStream copy = new ByteArrayOutputStream(8192);
+            final GifParser parser = new GifParser.StreamParser(
+                    new CopyingInputStream(mLookahead, copy));
+            if (!parser.readHeader() || !parser.skipToFrameEnd(index)) {
+                return null;
+            }
+            copy.write(GIF_TRAILER);
+            return copy.toByteArray();
+        }
+
+        @Override
+        void rewind() throws IOException {
+            mLookahead.rewind();
+        }
+
+        @Override
+        void stopRecording() {
+            mLookahead.stopRecording();
+        }
+
+        @Override
+        boolean isLookaheadLimitReached() {
+            return mLookahead.isLimitReached();
+        }
+
+        @Override
+        void throwIfCancelled() throws IOException {
+            if (mStream instanceof CancellableInputStream) {
+                ((CancellableInputStream) mStream).throwIfCancelled();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mCloseStream) {
+                mStream.close();
+            }
+        }
+    }
+
+    /**
+     * File path. The header is sniffed with positional reads, then the native decoders read the
+     * file themselves.
+     */
+    static final class FileInput extends ImageInput {
+
+        private final String mFilePath;
+        private final FileInputStream mStream;
+
+        FileInput(@NonNull final String filePath) throws IOException {
+            mFilePath = filePath;
+            mStream = new FileInputStream(filePath);
+        }
+
+        @NonNull
+        @Override
+        GifParser newGifParser() throws IOException {
+            return new GifParser.ChannelParser(mStream.getChannel(), 0, -1);
+        }
+
+        @NonNull
+        @Override
+        InputStream newStream() throws IOException {
+            return new ChannelInputStream(mStream.getChannel(), 0, -1);
+        }
+
+        /**
+         * Decodes from the already opened descriptor, which is still at offset 0 since the
+         * sniffer does positional reads
+         */
+        @Nullable
+        @Override
+        Bitmap decodeBitmap(@Nullable final Rect outPadding,
+                @Nullable final BitmapFactory.Options options) throws IOException {
+            return BitmapFactory.decodeFileDescriptor(mStream.getFD(), outPadding, options);
+        }
+
+        @NonNull
+        @Override
+        GifDrawable decodeGif(final int sampleSize) throws IOException {
+            return newGifBuilder(sampleSize).from(mFilePath).build();
+        }
+
+        @Override
+        void readPrefix(@NonNull final byte[] buffer, final int length) throws IOException {
+            readFully(mStream.getChannel(), 0, buffer, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mStream.close();
+        }
+    }
+
+    /**
+     * FileDescriptor, starting at its current offset. The descriptor is not closed.
+     */
+    static final class FileDescriptorInput extends ImageInput {
+
+        private final FileDescriptor mFd;
+        private final FileChannel mChannel;
+        private final long mPosition;
+
+        FileDescriptorInput(@NonNull final FileDescriptor fd) throws IOException {
+            mFd = fd;
+            // Not closed, closing the stream would close the descriptor owned by the caller
+            mChannel = new FileInputStream(fd).getChannel();
+            mPosition = mChannel.position();
+        }
+
+        @NonNull
+        @Override
+        GifParser newGifParser() throws IOException {
+            return new GifParser.ChannelParser(mChannel, mPosition, -1);
+        }
+
+        @NonNull
+        @Override
+        InputStream newStream() throws IOException {
+            return new ChannelInputStream(mChannel, mPosition, -1);
+        }
+
+        @Nullable
+        @Override
+        Bitmap decodeBitmap(@Nullable final Rect outPadding,
+                @Nullable final BitmapFactory.Options options) {
+            return BitmapFactory.decodeFileDescriptor(mFd, outPadding, options);
+        }
+
+        @NonNull
+        @Override
+        GifDrawable decodeGif(final int sampleSize) throws IOException {
+            if (mPosition == 0) {
+                return newGifBuilder(sampleSize).from(mFd).build();
+            }
+            // GifDrawable reads descriptor from the beginning of the file
+            return newGifBuilder(sampleSize)
+                    .from(new BufferedInputStream(new FileInputStream(mFd))).build();
+        }
+
+        @Override
+        void readPrefix(@NonNull final byte[] buffer, final int length) throws IOException {
+            readFully(mChannel, mPosition, buffer, length);
+        }
+    }
+
+    /**
+     * Region of a file described by AssetFileDescriptor start offset and length, used for
+     * uncompressed resources and assets which are read directly from the APK.
+     */
+    static final class AssetFileDescriptorInput extends ImageInput {
+
+        private final AssetFileDescriptor mDescriptor;
+        private final FileChannel mChannel;
+
+        AssetFileDescriptorInput(@NonNull final AssetFileDescriptor descriptor) {
+            mDescriptor = descriptor;
+            // Not closed, the descriptor is owned by AssetFileDescriptor
+            mChannel = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+        }
+
+        @NonNull
+        @Override
+        GifParser newGifParser() throws IOException {
+            return new GifParser.ChannelParser(mChannel, mDescriptor.getStartOffset(),
+                    mDescriptor.getLength());
+        }
+
+        @NonNull
+        @Override
+        InputStream newStream() throws IOException {
+            return new ChannelInputStream(mChannel, mDescriptor.getStartOffset(),
+                    mDescriptor.getLength());
+        }
+
+        @Nullable
+        @Override
+        Bitmap decodeBitmap(@Nullable final Rect outPadding,
+                @Nullable final BitmapFactory.Options options) throws IOException {
+            mChannel.position(mDescriptor.getStartOffset());
+            return BitmapFactory.decodeFileDescriptor(mDescriptor.getFileDescriptor(),
+                    outPadding, options);
+        }
+
+        @NonNull
+        @Override
+        GifDrawable decodeGif(final int sampleSize) throws IOException {
+            return newGifBuilder(sampleSize).from(mDescriptor).build();
+        }
+
+        @Override
+        void readPrefix(@NonNull final byte[] buffer, final int length) throws IOException {
+            readFully(mChannel, mDescriptor.getStartOffset(), buffer, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mDescriptor.close();
+        }
+    }
+
+    /**
+     * Copies everything read or skipped to the output
+     */
+    private static final class CopyingInputStream extends FilterInputStream {
+
+        private final ByteArrayOutputStream mCopy;
+
+        CopyingInputStream(@NonNull final InputStream in,
+                @NonNull final ByteArrayOutputStream copy) {
+            super(in);
+            mCopy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                mCopy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] b, final int off, final int len)
+                throws IOException {
+            final int read = in.read(b, off, len);
+            if (read > 0) {
+                mCopy.write(b, off, read);
+            }
+            return read;
+        }
+
+        /**
+         * Skipped bytes are read so that they are copied
+         */
+        @Override
+        public long skip(final long n) throws IOException {
+            final byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            final int read = read(buffer, 0, buffer.length);
+            return read > 0 ? read : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Reads ByteBuffer content between position and limit
+     */
+    private static final class BufferInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+
+        BufferInputStream(@NonNull final ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int count = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
+    /**
+     * Reads a region of a file with positional reads, so the channel position and the
+     * underlying file descriptor offset are not modified. Skipped bytes are not read.
+     */
+    private static final class ChannelInputStream extends InputStream {
+
+        private final FileChannel mChannel;
+        private final long mLimit;
+        private long mPosition;
+
+        /**
+         * @param channel the channel to read
+         * @param offset  absolute position where the image data begins
+         * @param length  the number of bytes to read, or -1 to read up to the end of file
+         */
+        ChannelInputStream(@NonNull final FileChannel channel,
+                final long offset,
+                final long length) throws IOException {
+            mChannel = channel;
+            mPosition = offset;
+            mLimit = length < 0 ? channel.size() : offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(@NonNull final byte[] b, final int off, final int len)
+                throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            final int count = (int) Math.min(len, mLimit - mPosition);
+            if (count <= 0) {
+                return -1;
+            }
+            final int read = mChannel.read(ByteBuffer.wrap(b, off, count), mPosition);
+            if (read > 0) {
+                mPosition += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final long count = Math.max(0, Math.min(n, mLimit - mPosition));
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mLimit - mPosition);
+        }
+    }
+}
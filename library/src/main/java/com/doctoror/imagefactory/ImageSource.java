@@ -0,0 +1,648 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.annotation.TargetApi;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.os.Build;
+import android.support.annotation.DrawableRes;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RawRes;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Describes where the image data comes from, for requests that are not run immediately, like
+ * {@link ImageFactory#decodeAsync(Resources, ImageSource, android.graphics.BitmapFactory.Options,
+ * DecodeCallback)}. Each decode opens a new {@link ImageInput}.
+ * <p>
+ * Sources are created by the static factory methods and can not be subclassed.
+ */
+public abstract class ImageSource {
+
+    ImageSource() {
+        // Subclassed only in this package
+    }
+
+    /**
+     * Opens the source for a single decode. The returned input must be closed.
+     */
+    @NonNull
+    abstract ImageInput open() throws IOException;
+
+    /**
+     * @return the kind of this source, reported to the {@link DecodeListener}
+     */
+    @NonNull
+    abstract DecodeEvent.SourceType getSourceType();
+
+    /**
+     * Returns a key that identifies the content of this source, used for caching decoded
+     * Drawables. The default implementation returns null, which means the content has no stable
+     * identity and is never cached.
+     */
+    @Nullable
+    Object getCacheKey() {
+        return null;
+    }
+
+    /**
+     * Returns a key that identifies this source without reading or hashing its content, used
+     * for joining decodes of the same source in progress. The default implementation returns
+     * {@link #getCacheKey()}, override it if computing that is not cheap.
+     */
+    @Nullable
+    Object getIdentityKey() {
+        return getCacheKey();
+    }
+
+    /**
+     * Returns a key that identifies the content of this source across processes, used for the
+     * {@link ProbeIndex}. The default implementation returns null, which means the source is not
+     * indexed.
+     */
+    @Nullable
+    String getIndexKey() {
+        return null;
+    }
+
+    /**
+     * Reads the whole content into memory, so that decoding does not wait for I/O. The loaded
+     * source keeps the keys of this source. Sources that are already in memory return themselves.
+     */
+    @NonNull
+    ImageSource load() throws IOException {
+        return this;
+    }
+
+    @NonNull
+    final ImageSource load(@NonNull final InputStream is) throws IOException {
+        // Keys are taken before reading, which moves a file descriptor offset
+        final Object cacheKey = getCacheKey();
+        final String indexKey = getIndexKey();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                Math.max(is.available(), 8192));
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        final byte[] data = out.toByteArray();
+        return new ByteArraySource(data, 0, data.length, cacheKey, indexKey);
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the content
+     */
+    static long hash(@NonNull final byte[] data, final int offset, final int length) {
+        long hash = 0xcbf29ce484222325L;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            hash ^= data[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the content between position and limit, read by absolute index
+     */
+    static long hash(@NonNull final ByteBuffer buffer) {
+        long hash = 0xcbf29ce484222325L;
+        final int end = buffer.limit();
+        for (int i = buffer.position(); i < end; i++) {
+            hash ^= buffer.get(i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @param data byte array of compressed image data, must not be modified until decoded
+     * @return source for the whole array
+     */
+    @NonNull
+    public static ImageSource fromByteArray(@NonNull final byte[] data) {
+        return new ByteArraySource(data, 0, data.length);
+    }
+
+    /**
+     * @param data   byte array of compressed image data, must not be modified until decoded
+     * @param offset offset into data for where the image data begins
+     * @param length the number of bytes, beginning at offset
+     * @return source for the array range
+     * @throws ArrayIndexOutOfBoundsException if offset or length are out of bounds
+     */
+    @NonNull
+    public static ImageSource fromByteArray(@NonNull final byte[] data,
+            final int offset,
+            final int length) {
+        if ((offset | length) < 0 || data.length - offset < length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        return new ByteArraySource(data, offset, length);
+    }
+
+    /**
+     * @param buffer buffer holding compressed image data between its position and limit, must
+     *               not be modified until decoded
+     * @return source for the buffer content
+     */
+    @NonNull
+    public static ImageSource fromByteBuffer(@NonNull final ByteBuffer buffer) {
+        return new ByteBufferSource(buffer);
+    }
+
+    /**
+     * @param is the stream to read, it is not closed. Can be decoded only once.
+     * @return source for the stream
+     */
+    @NonNull
+    public static ImageSource fromStream(@NonNull final InputStream is) {
+        return new StreamSource(is);
+    }
+
+    /**
+     * @param filePath complete path name for the file
+     * @return source for the file
+     */
+    @NonNull
+    public static ImageSource fromFile(@NonNull final String filePath) {
+        return new FileSource(filePath);
+    }
+
+    /**
+     * @param fd the descriptor, read from its current offset. It is not closed.
+     * @return source for the descriptor
+     */
+    @NonNull
+    public static ImageSource fromFileDescriptor(@NonNull final FileDescriptor fd) {
+        return new FileDescriptorSource(fd);
+    }
+
+    /**
+     * @param res the Resources object containing the image data
+     * @param id  the resource id of the image data
+     * @return source for the resource
+     */
+    @NonNull
+    public static ImageSource fromResource(@NonNull final Resources res,
+            @DrawableRes @RawRes final int id) {
+        return new ResourceSource(res, id);
+    }
+
+    /**
+     * @param assets   the AssetManager to open the asset with
+     * @param fileName name of the asset
+     * @return source for the asset
+     */
+    @NonNull
+    public static ImageSource fromAsset(@NonNull final AssetManager assets,
+            @NonNull final String fileName) {
+        return new AssetSource(assets, fileName);
+    }
+
+    static final class ByteArraySource extends ImageSource {
+
+        private final byte[] mData;
+        private final int mOffset;
+        private final int mLength;
+
+        /**
+         * Computed once since the content must not change until decoded
+         */
+        private String mContentKey;
+
+        @Nullable
+        private final Object mCacheKey;
+
+        @Nullable
+        private final String mIndexKey;
+
+        ByteArraySource(@NonNull final byte[] data, final int offset, final int length) {
+            this(data, offset, length, null, null);
+        }
+
+        /**
+         * @param cacheKey the cache key of the source the data was loaded from, or null to key
+         *                 by content
+         * @param indexKey the index key of the source the data was loaded from, or null to key
+         *                 by content
+         */
+        ByteArraySource(@NonNull final byte[] data,
+                final int offset,
+                final int length,
+                @Nullable final Object cacheKey,
+                @Nullable final String indexKey) {
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+            mCacheKey = cacheKey;
+            mIndexKey = indexKey;
+        }
+
+        @NonNull
+        @Override
+        ImageInput open() {
+            return new ImageInput.ArrayInput(mData, mOffset, mLength);
+        }
+
+        @NonNull
+        @Override
+        DecodeEvent.SourceType getSourceType() {
+            return DecodeEvent.SourceType.BYTE_ARRAY;
+        }
+
+        @Override
+        Object getCacheKey() {
+            return mCacheKey != null ? mCacheKey : getContentKey();
+        }
+
+        @Override
+        Object getIdentityKey() {
+            return mCacheKey != null ? mCacheKey : new RangeKey(mData, mOffset, mLength);
+        }
+
+        @Override
+        String getIndexKey() {
+            return mIndexKey != null ? mIndexKey : getContentKey();
+        }
+
+        @NonNull
+        private String getContentKey() {
+            if (mContentKey == null) {
+                mContentKey = "bytes:" + Long.toHexString(hash(mData, mOffset, mLength)) + ':'
+                        + mLength;
+            }
+            return mContentKey;
+        }
+    }
+
+    static final class ByteBufferSource extends ImageSource {
+
+        private final ByteBuffer mBuffer;
+
+        /**
+         * Computed once since the content must not change until decoded
+         */
+        private String mKey;
+
+        ByteBufferSource(@NonNull final ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @NonNull
+        @Override
+        ImageInput open() {
+            return new ImageInput.BufferInput(mBuffer);
+        }
+
+        @NonNull
+        @Override
+        DecodeEvent.SourceType getSourceType() {
+            return DecodeEvent.SourceType.BYTE_BUFFER;
+        }
+
+        @Override
+        String getCacheKey() {
+            if (mKey == null) {
+                mKey = "bytes:" + Long.toHexString(hash(mBuffer)) + ':' + mBuffer.remaining();
+            }
+            return mKey;
+        }
+
+        @Override
+        Object getIdentityKey() {
+            return new RangeKey(mBuffer, mBuffer.position(), mBuffer.remaining());
+        }
+
+        @Override
+        String getIndexKey() {
+            return getCacheKey();
+        }
+    }
+
+    /**
+     * Identifies a range of an array or buffer by reference, so the content is never read
+     */
+    private static final class RangeKey {
+
+        @NonNull
+        private final Object mData;
+
+        private final int mOffset;
+        private final int mLength;
+
+        RangeKey(@NonNull final Object data, final int offset, final int length) {
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final RangeKey rangeKey = (RangeKey) o;
+            return mData == rangeKey.mData
+                    && mOffset == rangeKey.mOffset
+                    && mLength == rangeKey.mLength;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(mData);
+            result = 31 * result + mOffset;
+            result = 31 * result + mLength;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "RangeKey{" +
+                    "data=" + mData.getClass().getSimpleName() + '@'
+                    + Integer.toHexString(System.identityHashCode(mData)) +
+                    ", offset=" + mOffset +
+                    ", length=" + mLength +
+                    '}';
+        }
+    }
+
+    /**
+     * Can be opened once since the stream is consumed. The stream is not closed.
+     */
+    static final class StreamSource extends ImageSource {
+
+        private final InputStream mStream;
+
+        StreamSource(@NonNull final InputStream stream) {
+            mStream = stream;
+        }
+
+        @NonNull
+        @Override
+        ImageInput open() {
+            return new ImageInput.StreamInput(mStream, ImageFactory.getStreamLookaheadLimit(),
+                    false);
+        }
+
+        @NonNull
+        @Override
+        DecodeEvent.SourceType getSourceType() {
+            return DecodeEvent.SourceType.STREAM;
+        }
+
+        @NonNull
+        @Override
+        ImageSource load() throws IOException {
+            return load(mStream);
+        }
+    }
+
+    static final class FileSource extends ImageSource {
+
+        private final String mFilePath;
+
+        FileSource(@NonNull final String filePath) {
+            mFilePath = filePath;
+        }
+
+        @NonNull
+        @Override
+        ImageInput open() throws IOException {
+            return new ImageInput.FileInput(mFilePath);
+        }
+
+        @NonNull
+        @Override
+        DecodeEvent.SourceType getSourceType() {
+            return DecodeEvent.SourceType.FILE;
+        }
+
+        @NonNull
+        @Override
+        ImageSource load() throws IOException {
+            final InputStream is = new FileInputStream(mFilePath);
+            try {
+                return load(is);
+            } finally {
+                is.close();
+            }
+        }
+
+        /**
+         * The modification time and length are part of the key so that a changed file is not
+         * served from cache
+         */
+        @Override
+        String getCacheKey() {
+            final File file = new File(mFilePath);
+            return "file:" + mFilePath + ':' + file.lastModified() + ':' + file.length();
+        }
+
+        /**
+         * The path alone, so that joining a decode in progress does not stat the file
+         */
+        @Override
+        String getIdentityKey() {
+            return "file:" + mFilePath;
+        }
+
+        @Override
+        String getIndexKey() {
+            return getCacheKey();
+        }
+    }
+
+    /**
+     * The descriptor is not closed
+     */
+    static final class FileDescriptorSource extends ImageSource {
+
+        private final FileDescriptor mFd;
+
+        FileDescriptorSource(@NonNull final FileDescriptor fd) {
+            mFd = fd;
+        }
+
+        @NonNull
+        @Override
+        ImageInput open() throws IOException {
+            return new ImageInput.FileDescriptorInput(mFd);
+        }
+
+        @NonNull
+        @Override
+        DecodeEvent.SourceType getSourceType() {
+            return DecodeEvent.SourceType.FILE_DESCRIPTOR;
+        }
+
+        /**
+         * Reads from the current offset to the end. The stream is not closed, closing it would
+         * close the descriptor owned by the caller.
+         */
+        @NonNull
+        @Override
+        ImageSource load() throws IOException {
+            return load(new FileInputStream(mFd));
+        }
+
+        /**
+         * The descriptor is identified by the file it refers to and its offset. Requires API
+         * level 21.
+         */
+        @Override
+        String getIndexKey() {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    ? FileStat.getKey(mFd) : null;
+        }
+    }
+
+    /**
+     * Separate class so that the API level 21 classes are not loaded on earlier versions
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static final class FileStat {
+
+        @Nullable
+        static String getKey(@NonNull final FileDescriptor fd) {
+            try {
+                final StructStat stat = Os.fstat(fd);
+                return "fd:" + stat.st_dev + ':' + stat.st_ino + ':' + stat.st_size + ':'
+                        + stat.st_mtime + ':' + Os.lseek(fd, 0, OsConstants.SEEK_CUR);
+            } catch (ErrnoException e) {
+                return null;
+            }
+        }
+    }
+
+    static final class ResourceSource extends ImageSource {
+
+        private final Resources mResources;
+        private final int mId;
+
+        ResourceSource(@NonNull final Resources res, final int id) {
+            mResources = res;
+            mId = id;
+        }
+
+        @NonNull
+        @Override
+        ImageInput open() {
+            final AssetFileDescriptor descriptor;
+            try {
+                descriptor = mResources.openRawResourceFd(mId);
+            } catch (Resources.NotFoundException e) {
+                // Compressed resources can not be opened as file descriptor
+                return new ImageInput.StreamInput(mResources.openRawResource(mId),
+                        ImageFactory.getStreamLookaheadLimit(), true);
+            }
+            return new ImageInput.AssetFileDescriptorInput(descriptor);
+        }
+
+        @NonNull
+        @Override
+        DecodeEvent.SourceType getSourceType() {
+            return DecodeEvent.SourceType.RESOURCE;
+        }
+
+        @NonNull
+        @Override
+        ImageSource load() throws IOException {
+            final InputStream is = mResources.openRawResource(mId);
+            try {
+                return load(is);
+            } finally {
+                is.close();
+            }
+        }
+
+        /**
+         * The density is part of the key since the resource may resolve to a different file
+         */
+        @Override
+        Object getCacheKey() {
+            return "res:" + mId + ':' + mResources.getDisplayMetrics().densityDpi;
+        }
+    }
+
+    static final class AssetSource extends ImageSource {
+
+        private final AssetManager mAssets;
+        private final String mFileName;
+
+        AssetSource(@NonNull final AssetManager assets, @NonNull final String fileName) {
+            mAssets = assets;
+            mFileName = fileName;
+        }
+
+        @NonNull
+        @Override
+        ImageInput open() throws IOException {
+            final AssetFileDescriptor descriptor;
+            try {
+                descriptor = mAssets.openFd(mFileName);
+            } catch (FileNotFoundException e) {
+                // Compressed assets can not be opened as file descriptor
+                return new ImageInput.StreamInput(
+                        mAssets.open(mFileName, AssetManager.ACCESS_RANDOM),
+                        ImageFactory.getStreamLookaheadLimit(), true);
+            }
+            return new ImageInput.AssetFileDescriptorInput(descriptor);
+        }
+
+        @NonNull
+        @Override
+        DecodeEvent.SourceType getSourceType() {
+            return DecodeEvent.SourceType.ASSET;
+        }
+
+        @NonNull
+        @Override
+        ImageSource load() throws IOException {
+            final InputStream is = mAssets.open(mFileName, AssetManager.ACCESS_STREAMING);
+            try {
+                return load(is);
+            } finally {
+                is.close();
+            }
+        }
+
+        @Override
+        Object getCacheKey() {
+            return "asset:" + mFileName;
+        }
+    }
+}
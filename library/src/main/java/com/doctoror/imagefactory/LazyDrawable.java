@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Drawable that knows the image size from the header and holds the decoded image only while it
+ * is needed. Decoding starts on the first {@link #draw(Canvas)} or when the Drawable becomes
+ * visible. After it has been invisible for {@link #getReleaseDelay()} milliseconds, the decoded
+ * image is released with {@link ImageFactory#release(Drawable)}. It is decoded again, or taken
+ * from the {@link DrawableCache}, when it is drawn or becomes visible again.
+ * <p>
+ * The intrinsic size is the image size in pixels and does not change when the image is decoded
+ * or released, so layouts do not jump. The decoded image is drawn scaled to the bounds. Nothing
+ * is drawn while decoding.
+ * <p>
+ * Created by {@link ImageFactory#lazy(Resources, ImageSource,
+ * android.graphics.BitmapFactory.Options)}. Must be used on the main thread.
+ */
+public final class LazyDrawable extends Drawable implements Drawable.Callback, Animatable {
+
+    private static final String TAG = "LazyDrawable";
+
+    /**
+     * Default for {@link #setReleaseDelay(long)}, in milliseconds
+     */
+    public static final long DEFAULT_RELEASE_DELAY = 1000;
+
+    @Nullable
+    private final Resources mResources;
+
+    @NonNull
+    private final ImageSource mSource;
+
+    @NonNull
+    private final DecodeOptions mOptions;
+
+    private final int mWidth;
+    private final int mHeight;
+
+    private long mReleaseDelay = DEFAULT_RELEASE_DELAY;
+
+    private int mAlpha = 255;
+
+    @Nullable
+    private ColorFilter mColorFilter;
+
+    @Nullable
+    private Drawable mDecoded;
+
+    @Nullable
+    private DecodeRequest mRequest;
+
+    /**
+     * True if the last decode failed. Not retried until the Drawable becomes visible again.
+     */
+    private boolean mFailed;
+
+    private final Runnable mReleaseRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            if (!isVisible()) {
+                release();
+            }
+        }
+    };
+
+    private final DecodeCallback mDecodeCallback = new DecodeCallback() {
+
+        @Override
+        public void onDecoded(@NonNull final Drawable drawable) {
+            mRequest = null;
+            setDecoded(drawable);
+        }
+
+        @Override
+        public void onDecodeFailed(@NonNull final Exception e) {
+            mRequest = null;
+            mFailed = true;
+            Log.w(TAG, "Failed to decode", e);
+        }
+    };
+
+    LazyDrawable(@Nullable final Resources res,
+            @NonNull final ImageSource source,
+            @NonNull final DecodeOptions options,
+            final int width,
+            final int height) {
+        mResources = res;
+        mSource = source;
+        mOptions = options;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Sets the time the Drawable must be invisible before the decoded image is released
+     *
+     * @param delayMillis the delay in milliseconds, 0 to release as soon as it becomes invisible
+     * @throws IllegalArgumentException if the delay is negative
+     */
+    public void setReleaseDelay(final long delayMillis) {
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("delayMillis < 0");
+        }
+        mReleaseDelay = delayMillis;
+    }
+
+    /**
+     * @return the time in milliseconds the Drawable must be invisible before the decoded image is
+     * released
+     * @see #setReleaseDelay(long)
+     */
+    public long getReleaseDelay() {
+        return mReleaseDelay;
+    }
+
+    /**
+     * @return the image source
+     */
+    @NonNull
+    public ImageSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * Returns the decoded image. It is drawn by this Drawable and must not be released.
+     *
+     * @return the decoded image, or null if it is not decoded yet or was released
+     */
+    @Nullable
+    public Drawable getDecodedDrawable() {
+        return mDecoded;
+    }
+
+    /**
+     * Starts decoding if the image is not decoded or being decoded
+     */
+    public void load() {
+        if (mDecoded == null && mRequest == null && !mFailed) {
+            mRequest = ImageFactory.decodeAsync(mResources, mSource, mOptions,
+                    DecodePriority.HIGH, mDecodeCallback);
+        }
+    }
+
+    /**
+     * Cancels decoding and releases the decoded image. It is decoded again when drawn.
+     */
+    public void release() {
+        DecodeExecutor.removeFromMainThread(mReleaseRunnable);
+        if (mRequest != null) {
+            mRequest.cancel();
+            mRequest = null;
+        }
+        final Drawable decoded = mDecoded;
+        if (decoded != null) {
+            mDecoded = null;
+            decoded.setCallback(null);
+            ImageFactory.release(decoded);
+        }
+        mFailed = false;
+    }
+
+    @Override
+    public void draw(@NonNull final Canvas canvas) {
+        if (mDecoded != null) {
+            mDecoded.draw(canvas);
+        } else {
+            load();
+        }
+    }
+
+    @Override
+    public boolean setVisible(final boolean visible, final boolean restart) {
+        final boolean changed = super.setVisible(visible, restart);
+        if (mDecoded != null) {
+            mDecoded.setVisible(visible, restart);
+        }
+        if (changed) {
+            DecodeExecutor.removeFromMainThread(mReleaseRunnable);
+            if (visible) {
+                mFailed = false;
+                load();
+            } else {
+                scheduleRelease();
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    protected void onBoundsChange(final Rect bounds) {
+        if (mDecoded != null) {
+            mDecoded.setBounds(bounds);
+        }
+    }
+
+    @Override
+    public void setAlpha(final int alpha) {
+        if (mAlpha != alpha) {
+            mAlpha = alpha;
+            if (mDecoded != null) {
+                mDecoded.setAlpha(alpha);
+            }
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public int getAlpha() {
+        return mAlpha;
+    }
+
+    @Override
+    public void setColorFilter(@Nullable final ColorFilter colorFilter) {
+        mColorFilter = colorFilter;
+        if (mDecoded != null) {
+            mDecoded.setColorFilter(colorFilter);
+        }
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return mDecoded != null ? mDecoded.getOpacity() : PixelFormat.TRANSPARENT;
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void start() {
+        if (mDecoded instanceof Animatable) {
+            ((Animatable) mDecoded).start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mDecoded instanceof Animatable) {
+            ((Animatable) mDecoded).stop();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return mDecoded instanceof Animatable && ((Animatable) mDecoded).isRunning();
+    }
+
+    @Override
+    public void invalidateDrawable(@NonNull final Drawable who) {
+        if (who == mDecoded) {
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public void scheduleDrawable(@NonNull final Drawable who,
+            @NonNull final Runnable what,
+            final long when) {
+        if (who == mDecoded) {
+            scheduleSelf(what, when);
+        }
+    }
+
+    @Override
+    public void unscheduleDrawable(@NonNull final Drawable who, @NonNull final Runnable what) {
+        unscheduleSelf(what);
+    }
+
+    private void setDecoded(@NonNull final Drawable decoded) {
+        mDecoded = decoded;
+        decoded.setBounds(getBounds());
+        decoded.setAlpha(mAlpha);
+        if (mColorFilter != null) {
+            decoded.setColorFilter(mColorFilter);
+        }
+        decoded.setCallback(this);
+        decoded.setVisible(isVisible(), true);
+        invalidateSelf();
+        if (!isVisible()) {
+            scheduleRelease();
+        }
+    }
+
+    private void scheduleRelease() {
+        if (mReleaseDelay == 0) {
+            release();
+        } else {
+            DecodeExecutor.postToMainThreadDelayed(mReleaseRunnable, mReleaseDelay);
+        }
+    }
+}
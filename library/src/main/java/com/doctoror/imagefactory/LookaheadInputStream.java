@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.support.annotation.NonNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Records the bytes consumed from the wrapped stream, up to a limit, so that they can be replayed
+ * after {@link #rewind()}. Unlike {@link java.io.BufferedInputStream#mark(int)}, only the bytes
+ * that were actually read are kept. When the limit is reached, the stream reports end of data
+ * instead of reading further, so everything consumed can still be replayed. After
+ * {@link #stopRecording()} the recorded bytes are replayed and then the wrapped stream is read
+ * directly.
+ */
+final class LookaheadInputStream extends FilterInputStream {
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    private final int mLimit;
+
+    private byte[] mBuffer;
+    private int mCount;
+    private int mPosition;
+
+    private boolean mRecording = true;
+    private boolean mLimitReached;
+
+    /**
+     * True when bytes that were not recorded have been consumed, so rewinding is not possible
+     */
+    private boolean mDetached;
+
+    LookaheadInputStream(@NonNull final InputStream in, final int limit) {
+        super(in);
+        mLimit = limit;
+        mBuffer = new byte[Math.min(INITIAL_CAPACITY, limit)];
+    }
+
+    /**
+     * @return true if reading stopped because the lookahead limit was reached
+     */
+    boolean isLimitReached() {
+        return mLimitReached;
+    }
+
+    /**
+     * Moves to the beginning of the recorded bytes.
+     *
+     * @throws IOException if bytes were consumed after recording stopped
+     */
+    void rewind() throws IOException {
+        if (mDetached) {
+            throw new IOException("Can not rewind past the lookahead buffer");
+        }
+        mPosition = 0;
+    }
+
+    /**
+     * Stops recording. The remaining recorded bytes are returned by subsequent reads before the
+     * rest of the wrapped stream.
+     */
+    void stopRecording() {
+        mRecording = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPosition < mCount) {
+            return mBuffer[mPosition++] & 0xff;
+        }
+        if (mRecording) {
+            if (!ensureCapacity(1)) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b != -1) {
+                mBuffer[mCount++] = (byte) b;
+                mPosition++;
+            }
+            return b;
+        }
+        final int b = in.read();
+        if (b != -1) {
+            mDetached = true;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(@NonNull final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (mPosition < mCount) {
+            final int toCopy = Math.min(len, mCount - mPosition);
+            System.arraycopy(mBuffer, mPosition, b, off, toCopy);
+            mPosition += toCopy;
+            return toCopy;
+        }
+        if (mRecording) {
+            if (!ensureCapacity(1)) {
+                return -1;
+            }
+            final int toRead = Math.min(len, mLimit - mCount);
+            ensureCapacity(toRead);
+            final int read = in.read(b, off, toRead);
+            if (read > 0) {
+                System.arraycopy(b, off, mBuffer, mCount, read);
+                mCount += read;
+                mPosition = mCount;
+            }
+            return read;
+        }
+        final int read = in.read(b, off, len);
+        if (read > 0) {
+            mDetached = true;
+        }
+        return read;
+    }
+
+    /**
+     * While recording, the skipped bytes are read into the lookahead buffer since they may have
+     * to be replayed.
+     */
+    @Override
+    public long skip(final long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (mPosition < mCount) {
+            final int skipped = (int) Math.min(n, mCount - mPosition);
+            mPosition += skipped;
+            return skipped;
+        }
+        if (mRecording) {
+            if (!ensureCapacity(1)) {
+                return 0;
+            }
+            final int toRead = (int) Math.min(n, mLimit - mCount);
+            ensureCapacity(toRead);
+            final int read = in.read(mBuffer, mCount, toRead);
+            if (read <= 0) {
+                return 0;
+            }
+            mCount += read;
+            mPosition = mCount;
+            return read;
+        }
+        final long skipped = in.skip(n);
+        if (skipped > 0) {
+            mDetached = true;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        final int available = mRecording
+                ? Math.min(in.available(), mLimit - mCount)
+                : in.available();
+        return mCount - mPosition + available;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(final int readlimit) {
+        // not supported
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Grows the buffer to hold count more bytes, not exceeding the limit
+     *
+     * @return false if the limit is reached
+     */
+    private boolean ensureCapacity(final int count) {
+        if (mCount + count > mLimit) {
+            mLimitReached = true;
+            return false;
+        }
+        if (mCount + count > mBuffer.length) {
+            final int capacity = Math.min(mLimit,
+                    Math.max(mCount + count, mBuffer.length << 1));
+            final byte[] buffer = new byte[capacity];
+            System.arraycopy(mBuffer, 0, buffer, 0, mCount);
+            mBuffer = buffer;
+        }
+        return true;
+    }
+}
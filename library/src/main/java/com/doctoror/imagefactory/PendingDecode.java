@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.content.res.Resources;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+import pl.droidsonroids.gif.GifDrawable;
+
+/**
+ * A decode in progress. Requests for the same {@link CacheKey} made while it runs subscribe to
+ * it instead of reading and decoding the same content again. Each subscriber gets its own
+ * Drawable created from the shared {@link Drawable.ConstantState}.
+ */
+final class PendingDecode {
+
+    /**
+     * Receives the result of a decode this request subscribed to. Called on the decoding thread.
+     */
+    interface Listener {
+
+        /**
+         * @param state   the decoded state, or null if decoding failed
+         * @param options the options the decode was made with, to copy the out fields from
+         * @param error   the cause if decoding failed
+         */
+        void onDecodeComplete(@Nullable Drawable.ConstantState state,
+                @Nullable BitmapFactory.Options options,
+                @Nullable Throwable error);
+    }
+
+    private static final HashMap<CacheKey, PendingDecode> sPending
+            = new HashMap<CacheKey, PendingDecode>();
+
+    @NonNull
+    private final CacheKey mKey;
+
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>(2);
+
+    private PendingDecode(@NonNull final CacheKey key) {
+        mKey = key;
+    }
+
+    /**
+     * Starts a decode for the key, or subscribes the listener to the decode in progress
+     *
+     * @param key      the key of the decode
+     * @param listener the listener to subscribe if the decode is already in progress
+     * @return the new pending decode the caller must complete or fail, or null if the listener
+     * was subscribed
+     */
+    @Nullable
+    static PendingDecode start(@NonNull final CacheKey key, @NonNull final Listener listener) {
+        synchronized (sPending) {
+            final PendingDecode pending = sPending.get(key);
+            if (pending != null) {
+                pending.mListeners.add(listener);
+                return null;
+            }
+            final PendingDecode created = new PendingDecode(key);
+            sPending.put(key, created);
+            return created;
+        }
+    }
+
+    /**
+     * Unsubscribes the listener from the decode in progress it is subscribed to, if any
+     */
+    static void unsubscribe(@NonNull final Listener listener) {
+        synchronized (sPending) {
+            for (final PendingDecode pending : sPending.values()) {
+                if (pending.mListeners.remove(listener)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies what the decode wrote to its options to the options of a subscriber. The keys are
+     * equal, so the requests differ only in the out fields.
+     */
+    static void copyOutFields(@Nullable final BitmapFactory.Options from,
+            @Nullable final BitmapFactory.Options to) {
+        if (from == null || to == null || from == to) {
+            return;
+        }
+        to.outWidth = from.outWidth;
+        to.outHeight = from.outHeight;
+        to.outMimeType = from.outMimeType;
+        if (from instanceof DecodeOptions && to instanceof DecodeOptions) {
+            final DecodeOptions toOptions = (DecodeOptions) to;
+            toOptions.outAutoConfig = ((DecodeOptions) from).outAutoConfig;
+            if (toOptions.hasTargetSize()) {
+                // The computed sample size is an output then
+                toOptions.inSampleSize = from.inSampleSize;
+            }
+        }
+    }
+
+    /**
+     * Delivers the decoded Drawable to subscribers and returns the Drawable the decoding caller
+     * should use. Without subscribers it is the passed Drawable. Otherwise a {@link GifDrawable}
+     * is shared through {@link SharedGifDrawable} and a Bitmap is marked as shared so that it
+     * never goes to the {@link BitmapPool}.
+     */
+    @NonNull
+    Drawable complete(@NonNull final Drawable drawable,
+            @Nullable final Resources res,
+            @Nullable final BitmapFactory.Options options) {
+        final Listener[] listeners = finish();
+        if (listeners.length == 0) {
+            return drawable;
+        }
+
+        final Drawable.ConstantState state;
+        final Drawable result;
+        if (drawable instanceof GifDrawable) {
+            state = new SharedGifDrawable.SharedGifState((GifDrawable) drawable);
+            result = state.newDrawable(res);
+        } else {
+            state = drawable.getConstantState();
+            // mutate() detaches the returned Drawable from the shared state
+            result = drawable.mutate();
+            if (drawable instanceof BitmapDrawable) {
+                ImageFactory.markShared(((BitmapDrawable) drawable).getBitmap());
+            }
+        }
+
+        final Throwable error = state == null
+                ? new IOException("Can not share " + drawable.getClass().getName()) : null;
+        for (final Listener listener : listeners) {
+            listener.onDecodeComplete(state, options, error);
+        }
+        return result;
+    }
+
+    /**
+     * Delivers the failure to subscribers
+     */
+    void fail(@NonNull final Throwable error) {
+        for (final Listener listener : finish()) {
+            listener.onDecodeComplete(null, null, error);
+        }
+    }
+
+    @NonNull
+    private Listener[] finish() {
+        synchronized (sPending) {
+            sPending.remove(mKey);
+            return mListeners.toArray(new Listener[mListeners.size()]);
+        }
+    }
+
+    /**
+     * Blocks the subscribed thread until the decode completes
+     */
+    static final class Waiter implements Listener {
+
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+
+        @Nullable
+        private final Resources mResources;
+
+        @Nullable
+        private final BitmapFactory.Options mOptions;
+
+        private Drawable mResult;
+        private Throwable mError;
+
+        Waiter(@Nullable final Resources res, @Nullable final BitmapFactory.Options options) {
+            mResources = res;
+            mOptions = options;
+        }
+
+        @Override
+        public void onDecodeComplete(@Nullable final Drawable.ConstantState state,
+                @Nullable final BitmapFactory.Options options,
+                @Nullable final Throwable error) {
+            if (state != null) {
+                copyOutFields(options, mOptions);
+                mResult = state.newDrawable(mResources).mutate();
+            } else {
+                mError = error;
+            }
+            mLatch.countDown();
+        }
+
+        @NonNull
+        Drawable await() throws IOException {
+            try {
+                mLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for shared decode");
+            }
+            if (mResult == null) {
+                final IOException e = new IOException("Shared decode failed");
+                e.initCause(mError);
+                throw e;
+            }
+            return mResult;
+        }
+    }
+}
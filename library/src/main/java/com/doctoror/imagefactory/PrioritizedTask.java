@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Task queued in {@link DecodeExecutor}, ordered by priority, then by the order of creation
+ */
+abstract class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    @NonNull
+    private final DecodePriority mPriority;
+
+    private final long mSequence = sSequence.getAndIncrement();
+
+    PrioritizedTask(@NonNull final DecodePriority priority) {
+        mPriority = priority;
+    }
+
+    @NonNull
+    final DecodePriority getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    public final int compareTo(@NonNull final PrioritizedTask another) {
+        final int byPriority = mPriority.compareTo(another.mPriority);
+        if (byPriority != 0) {
+            return byPriority;
+        }
+        return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+    }
+}
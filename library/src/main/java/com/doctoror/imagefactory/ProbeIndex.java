@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index of sniff and probe results, so that images seen in a previous process are
+ * decoded without parsing their headers again. Files are keyed by path, size and modification
+ * time, file descriptors by device, inode, size, modification time and offset (API level 21 and
+ * above), byte arrays and buffers by content hash. Resources and assets are not indexed since
+ * they change with app updates.
+ * <p>
+ * The index is a fixed-size hash table in a memory-mapped file, so its size on disk is bounded by
+ * the capacity and lookups do not read the file. A full probe sequence overwrites the least
+ * recently written slot. Each record has a checksum, a corrupt record reads as empty and is overwritten later.
+ * Writes are kept in memory and applied in batches, call {@link #flush()} to apply them
+ * immediately. The file is opened on first use.
+ * <p>
+ * Set the index with {@link ImageFactory#setProbeIndex(ProbeIndex)}.
+ * This class is thread safe.
+ */
+public final class ProbeIndex {
+
+    private static final String TAG = "ProbeIndex";
+
+    /**
+     * Default capacity, about 200 KB on disk
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int MAGIC = 0x49465049; // "IFPI"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 48;
+    private static final int CHECKSUM_OFFSET = 40;
+
+    /**
+     * Offset of the write counter in the header and of the write sequence in a record. The
+     * sequence only orders eviction and is not covered by the checksum.
+     */
+    private static final int COUNTER_OFFSET = 12;
+    private static final int SEQUENCE_OFFSET = 44;
+
+    /**
+     * Number of consecutive slots searched for a key
+     */
+    private static final int MAX_PROBES = 8;
+
+    /**
+     * Number of pending writes applied at once
+     */
+    private static final int BATCH_SIZE = 16;
+
+    private static final int FLAG_ANIMATED = 1;
+    private static final int FLAG_COMPLETE = 1 << 1;
+
+    private static final ImageFormat[] FORMATS = ImageFormat.values();
+
+    @NonNull
+    private final File mFile;
+
+    private final int mCapacity;
+
+    private final HashMap<String, Record> mPending = new HashMap<String, Record>();
+
+    private final byte[] mScratch = new byte[RECORD_SIZE];
+    private final CRC32 mCrc = new CRC32();
+
+    private MappedByteBuffer mBuffer;
+    private boolean mOpenFailed;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Creates index with {@link #DEFAULT_CAPACITY}
+     *
+     * @param file the index file, created if it does not exist
+     */
+    public ProbeIndex(@NonNull final File file) {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param file     the index file, created if it does not exist
+     * @param capacity the maximum number of entries, rounded up to a power of two
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public ProbeIndex(@NonNull final File file, final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        mFile = file;
+        mCapacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    /**
+     * Applies pending writes and forces them to storage
+     */
+    public synchronized void flush() {
+        if (!mPending.isEmpty() && open()) {
+            for (final Map.Entry<String, Record> entry : mPending.entrySet()) {
+                write(entry.getKey(), entry.getValue());
+            }
+            mBuffer.force();
+        }
+        mPending.clear();
+    }
+
+    /**
+     * Removes all entries
+     */
+    public synchronized void clear() {
+        mPending.clear();
+        if (open()) {
+            format(mBuffer, mCapacity);
+            mBuffer.force();
+        }
+    }
+
+    /**
+     * @return the number of lookups that found an entry
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of lookups that found no entry
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Looks up the entry for the key
+     *
+     * @param key          the key
+     * @param completeOnly true to ignore entries written by decoding, which know whether the
+     *                     image is animated but not all frames
+     * @return the indexed info or null if not found
+     */
+    @Nullable
+    synchronized ImageInfo get(@NonNull final String key, final boolean completeOnly) {
+        Record record = mPending.get(key);
+        if (record == null && open()) {
+            record = read(key);
+        }
+        if (record == null || (completeOnly && !record.complete)) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return record.info;
+    }
+
+    /**
+     * Queues the entry for writing. A complete entry is not replaced by an incomplete one.
+     *
+     * @param key      the key
+     * @param info     the info to store
+     * @param complete true if the info has all frames counted
+     */
+    synchronized void put(@NonNull final String key,
+            @NonNull final ImageInfo info,
+            final boolean complete) {
+        if (!complete) {
+            final Record pending = mPending.get(key);
+            if (pending != null && pending.complete) {
+                return;
+            }
+        }
+        mPending.put(key, new Record(info, complete));
+        if (mPending.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Maps the file, creating or reformatting it if the header does not match
+     *
+     * @return false if the file can not be used
+     */
+    private boolean open() {
+        if (mBuffer != null) {
+            return true;
+        }
+        if (mOpenFailed) {
+            return false;
+        }
+        final long size = HEADER_SIZE + (long) mCapacity * RECORD_SIZE;
+        try {
+            final RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                final boolean valid = file.length() == size;
+                if (!valid) {
+                    file.setLength(size);
+                }
+                final FileChannel channel = file.getChannel();
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                        0, size);
+                if (!valid || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                        || buffer.getInt(8) != mCapacity) {
+                    format(buffer, mCapacity);
+                    buffer.force();
+                }
+                mBuffer = buffer;
+            } finally {
+                // The mapping stays valid after the file is closed
+                file.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Can not open " + mFile, e);
+            mOpenFailed = true;
+            return false;
+        }
+    }
+
+    private static void format(@NonNull final ByteBuffer buffer, final int capacity) {
+        final int limit = buffer.limit();
+        for (int i = 0; i + 8 <= limit; i += 8) {
+            buffer.putLong(i, 0L);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, capacity);
+    }
+
+    @Nullable
+    private Record read(@NonNull final String key) {
+        final long hash = hash(key, 0xcbf29ce484222325L);
+        final long check = hash(key, 0x84222325cbf29ce4L);
+        final int mask = mCapacity - 1;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int offset = recordOffset((int) (hash + i) & mask);
+            if (mBuffer.getLong(offset) == hash && mBuffer.getLong(offset + 8) == check) {
+                return isValid(offset) ? readRecord(offset) : null;
+            }
+        }
+        return null;
+    }
+
+    private void write(@NonNull final String key, @NonNull final Record record) {
+        final long hash = hash(key, 0xcbf29ce484222325L);
+        final long check = hash(key, 0x84222325cbf29ce4L);
+        final int mask = mCapacity - 1;
+        int target = -1;
+        int oldest = -1;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int offset = recordOffset((int) (hash + i) & mask);
+            if (mBuffer.getLong(offset) == hash && mBuffer.getLong(offset + 8) == check) {
+                if (!record.complete && isValid(offset) && readRecord(offset).complete) {
+                    return;
+                }
+                target = offset;
+                break;
+            }
+            if (target == -1 && (mBuffer.getInt(offset + 16) == 0 || !isValid(offset))) {
+                // Empty or corrupt slot
+                target = offset;
+            }
+            // Compared by difference, so that the order holds when the counter wraps
+            if (oldest == -1 || mBuffer.getInt(offset + SEQUENCE_OFFSET)
+                    - mBuffer.getInt(oldest + SEQUENCE_OFFSET) < 0) {
+                oldest = offset;
+            }
+        }
+        if (target == -1) {
+            // The probe sequence is full, evict the least recently written slot
+            target = oldest;
+        }
+        final int sequence = mBuffer.getInt(COUNTER_OFFSET) + 1;
+        mBuffer.putInt(COUNTER_OFFSET, sequence);
+
+        final ImageInfo info = record.info;
+        int flags = 0;
+        if (info.isAnimated()) {
+            flags |= FLAG_ANIMATED;
+        }
+        if (record.complete) {
+            flags |= FLAG_COMPLETE;
+        }
+        mBuffer.putLong(target, hash);
+        mBuffer.putLong(target + 8, check);
+        mBuffer.putInt(target + 16, ((info.getFormat().ordinal() + 1) << 8) | flags);
+        mBuffer.putInt(target + 20, info.getWidth());
+        mBuffer.putInt(target + 24, info.getHeight());
+        mBuffer.putInt(target + 28, info.getFrameCount());
+        mBuffer.putInt(target + 32, info.getLoopCount());
+        mBuffer.putInt(target + 36, info.getDuration());
+        mBuffer.putInt(target + CHECKSUM_OFFSET, checksum(target));
+        mBuffer.putInt(target + SEQUENCE_OFFSET, sequence);
+    }
+
+    @NonNull
+    private Record readRecord(final int offset) {
+        final int meta = mBuffer.getInt(offset + 16);
+        final ImageInfo info = new ImageInfo(FORMATS[(meta >>> 8) - 1],
+                mBuffer.getInt(offset + 20),
+                mBuffer.getInt(offset + 24),
+                mBuffer.getInt(offset + 28),
+                mBuffer.getInt(offset + 32),
+                mBuffer.getInt(offset + 36));
+        return new Record(info, (meta & FLAG_COMPLETE) != 0);
+    }
+
+    /**
+     * @return true if the record checksum matches and the values are in range
+     */
+    private boolean isValid(final int offset) {
+        if (mBuffer.getInt(offset + CHECKSUM_OFFSET) != checksum(offset)) {
+            return false;
+        }
+        final int format = mBuffer.getInt(offset + 16) >>> 8;
+        return format >= 1 && format <= FORMATS.length
+                && mBuffer.getInt(offset + 20) >= 0
+                && mBuffer.getInt(offset + 24) >= 0
+                && mBuffer.getInt(offset + 28) >= 0;
+    }
+
+    private int checksum(final int offset) {
+        for (int i = 0; i < CHECKSUM_OFFSET; i++) {
+            mScratch[i] = mBuffer.get(offset + i);
+        }
+        mCrc.reset();
+        mCrc.update(mScratch, 0, CHECKSUM_OFFSET);
+        return (int) mCrc.getValue();
+    }
+
+    private static int recordOffset(final int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the key chars with the given offset basis
+     */
+    private static long hash(@NonNull final String key, final long basis) {
+        long hash = basis;
+        final int length = key.length();
+        for (int i = 0; i < length; i++) {
+            final char c = key.charAt(i);
+            hash ^= c & 0xff;
+            hash *= 0x100000001b3L;
+            hash ^= c >>> 8;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static final class Record {
+
+        final ImageInfo info;
+        final boolean complete;
+
+        Record(@NonNull final ImageInfo info, final boolean complete) {
+            this.info = info;
+            this.complete = complete;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+/**
+ * Defines how the image is fitted into the target size of {@link DecodeOptions}
+ */
+public enum ScalePolicy {
+
+    /**
+     * The whole image fits into the target size, like
+     * {@link android.widget.ImageView.ScaleType#FIT_CENTER}. The decoded image is not smaller
+     * than needed to fit.
+     */
+    FIT,
+
+    /**
+     * The image fills the target size and is cropped, like
+     * {@link android.widget.ImageView.ScaleType#CENTER_CROP}. The decoded image is not smaller
+     * than needed to fill.
+     */
+    FILL;
+
+    /**
+     * Computes the largest power of two sample size which keeps the decoded image not smaller
+     * than needed for the target size.
+     *
+     * @param width        source image width
+     * @param height       source image height
+     * @param targetWidth  target width, or 0 to match target height only
+     * @param targetHeight target height, or 0 to match target width only
+     * @return the sample size, 1 if no subsampling should be done
+     */
+    public int computeSampleSize(final int width,
+            final int height,
+            final int targetWidth,
+            final int targetHeight) {
+        if (width <= 0 || height <= 0 || (targetWidth <= 0 && targetHeight <= 0)) {
+            return 1;
+        }
+        final float widthRatio = (float) width / targetWidth;
+        final float heightRatio = (float) height / targetHeight;
+        final float ratio;
+        if (targetWidth <= 0) {
+            ratio = heightRatio;
+        } else if (targetHeight <= 0) {
+            ratio = widthRatio;
+        } else if (this == FIT) {
+            ratio = Math.max(widthRatio, heightRatio);
+        } else {
+            ratio = Math.min(widthRatio, heightRatio);
+        }
+        int sampleSize = 1;
+        while (sampleSize * 2 <= ratio) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 Yaroslav Mytkalyk
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.doctoror.imagefactory;
+
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import pl.droidsonroids.gif.GifDrawable;
+
+/**
+ * Draws a {@link GifDrawable} that is shared by all Drawables created from the same
+ * {@link ConstantState}, so the frame buffers of an animated GIF are allocated once no matter how
+ * many views show it. Each instance has its own bounds, alpha, color filter and callback. Every
+ * new frame invalidates all instances.
+ * <p>
+ * Returned by {@link DrawableCache} and by {@link ImageFactory} when a cache is set.
+ */
+public final class SharedGifDrawable extends Drawable implements Animatable {
+
+    @NonNull
+    private final SharedGifState mState;
+
+    private int mAlpha = 255;
+
+    @Nullable
+    private ColorFilter mColorFilter;
+
+    SharedGifDrawable(@NonNull final SharedGifState state) {
+        mState = state;
+        state.addClient(this);
+    }
+
+    /**
+     * Returns the shared {@link GifDrawable}. It may be used for reading GIF properties, but it
+     * is also drawn by other instances, so it should not be drawn or modified directly.
+     *
+     * @return the shared GifDrawable
+     */
+    @NonNull
+    public GifDrawable getGifDrawable() {
+        return mState.mGif;
+    }
+
+    @Override
+    public void draw(@NonNull final Canvas canvas) {
+        mState.draw(canvas, getBounds(), mAlpha, mColorFilter);
+    }
+
+    @Override
+    public void setAlpha(final int alpha) {
+        if (mAlpha != alpha) {
+            mAlpha = alpha;
+            invalidateSelf();
+        }
+    }
+
+    @Override
+    public int getAlpha() {
+        return mAlpha;
+    }
+
+    @Override
+    public void setColorFilter(@Nullable final ColorFilter colorFilter) {
+        mColorFilter = colorFilter;
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return mAlpha < 255 ? PixelFormat.TRANSLUCENT : mState.mGif.getOpacity();
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mState.mGif.getIntrinsicWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mState.mGif.getIntrinsicHeight();
+    }
+
+    /**
+     * The shared GifDrawable stays visible while at least one instance is visible
+     */
+    @Override
+    public boolean setVisible(final boolean visible, final boolean restart) {
+        final boolean changed = super.setVisible(visible, restart);
+        if (changed) {
+            mState.updateVisibility();
+        }
+        return changed;
+    }
+
+    @Override
+    public void start() {
+        mState.mGif.start();
+    }
+
+    @Override
+    public void stop() {
+        mState.mGif.stop();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return mState.mGif.isRunning();
+    }
+
+    @NonNull
+    @Override
+    public ConstantState getConstantState() {
+        return mState;
+    }
+
+    /**
+     * Owns the GifDrawable and forwards its invalidation to all instances
+     */
+    static final class SharedGifState extends ConstantState implements Callback {
+
+        @NonNull
+        final GifDrawable mGif;
+
+        private final WeakHashMap<SharedGifDrawable, Boolean> mClients
+                = new WeakHashMap<SharedGifDrawable, Boolean>();
+
+        /**
+         * True while the GifDrawable is configured for and drawn by one of the instances.
+         * Invalidation caused by changing the GifDrawable bounds or alpha is ignored.
+         */
+        private boolean mDrawing;
+
+        SharedGifState(@NonNull final GifDrawable gif) {
+            mGif = gif;
+            gif.setCallback(this);
+        }
+
+        @NonNull
+        @Override
+        public Drawable newDrawable() {
+            return new SharedGifDrawable(this);
+        }
+
+        @NonNull
+        @Override
+        public Drawable newDrawable(@Nullable final Resources res) {
+            return new SharedGifDrawable(this);
+        }
+
+        @Override
+        public int getChangingConfigurations() {
+            return 0;
+        }
+
+        void addClient(@NonNull final SharedGifDrawable client) {
+            synchronized (mClients) {
+                mClients.put(client, Boolean.TRUE);
+            }
+        }
+
+        void draw(@NonNull final Canvas canvas,
+                @NonNull final Rect bounds,
+                final int alpha,
+                @Nullable final ColorFilter colorFilter) {
+            mDrawing = true;
+            try {
+                mGif.setBounds(bounds);
+                mGif.setAlpha(alpha);
+                mGif.setColorFilter(colorFilter);
+                mGif.draw(canvas);
+            } finally {
+                mDrawing = false;
+            }
+        }
+
+        void updateVisibility() {
+            boolean visible = false;
+            for (final SharedGifDrawable client : clients()) {
+                if (client.isVisible()) {
+                    visible = true;
+                    break;
+                }
+            }
+            mGif.setVisible(visible, false);
+        }
+
+        @Override
+        public void invalidateDrawable(@NonNull final Drawable who) {
+            if (!mDrawing) {
+                for (final SharedGifDrawable client : clients()) {
+                    client.invalidateSelf();
+                }
+            }
+        }
+
+        /**
+         * Scheduling is delegated to the first visible instance, so a callback runs once
+         */
+        @Override
+        public void scheduleDrawable(@NonNull final Drawable who,
+                @NonNull final Runnable what,
+                final long when) {
+            for (final SharedGifDrawable client : clients()) {
+                if (client.isVisible()) {
+                    client.scheduleSelf(what, when);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void unscheduleDrawable(@NonNull final Drawable who,
+                @NonNull final Runnable what) {
+            for (final SharedGifDrawable client : clients()) {
+                client.unscheduleSelf(what);
+            }
+        }
+
+        /**
+         * @return snapshot of the instances, so callbacks can add instances while iterating
+         */
+        @NonNull
+        private List<SharedGifDrawable> clients() {
+            synchronized (mClients) {
+                return new ArrayList<SharedGifDrawable>(mClients.keySet());
+            }
+        }
+    }
+}
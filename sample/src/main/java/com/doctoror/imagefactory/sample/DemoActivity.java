@@ -16,10 +16,13 @@
 
 package com.doctoror.imagefactory.sample;
 
+import com.doctoror.imagefactory.DecodeOptions;
 import com.doctoror.imagefactory.ImageFactory;
+import com.doctoror.imagefactory.ImageSource;
+import com.doctoror.imagefactory.LazyDrawable;
+import com.doctoror.imagefactory.ScalePolicy;
 
 import android.content.Context;
-import android.content.res.AssetManager;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -30,79 +33,102 @@ import android.view.ViewGroup;
 import android.widget.GridView;
 import android.widget.ImageView;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
-
 public final class DemoActivity extends ActionBarActivity {
 
+    private static final String[] NAMES = new String[]{
+            "Rotating_earth_(large).gif",
+            "Static_earth.gif",
+            "LoopOnce.gif",
+            "small.gif",
+            "smallest.gif",
+            "ru9gag.gif",
+            "ru9gag1.gif",
+            "ru9gag3.gif",
+            "ru9gag4.gif"
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_demo);
 
+        // Square cells of a two-column grid, cropped to fill
+        final int cellSize = getResources().getDisplayMetrics().widthPixels / 2;
+
         final GridView grid = (GridView) findViewById(R.id.activity_demo_grid);
-        grid.setAdapter(new DemoAdapter(this, generateImageInfo()));
+        grid.setAdapter(new DemoAdapter(this, NAMES, cellSize));
     }
 
-    @NonNull
-    private List<Drawable> generateImageInfo() {
-        final String[] names = new String[]{
-                "Rotating_earth_(large).gif",
-                "Static_earth.gif",
-                "LoopOnce.gif",
-                "small.gif",
-                "smallest.gif",
-                "ru9gag.gif",
-                "ru9gag1.gif",
-                "ru9gag3.gif",
-                "ru9gag4.gif"
-        };
-        final List<Drawable> list = new ArrayList<>(names.length);
-        for (final String name : names) {
-            InputStream is = null;
-            try {
-                is = getAssets().open(name, AssetManager.ACCESS_RANDOM);
-                final Drawable item = ImageFactory.decodeStream(getResources(), is);
-                if (item != null) {
-                    list.add(item);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                if (is != null) {
-                    try {
-                        is.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }
-        return list;
-    }
+    private static final class DemoAdapter extends BaseAdapter2<String> {
+
+        @NonNull
+        private final DecodeOptions mOptions;
 
-    private static final class DemoAdapter extends BaseAdapter2<Drawable> {
+        /**
+         * Lazy Drawables hold only the image size while their cells are off-screen, so all of
+         * them can be kept
+         */
+        @NonNull
+        private final LazyDrawable[] mDrawables;
 
         private DemoAdapter(@NonNull final Context context,
-                @Nullable final List<Drawable> items) {
+                @NonNull final String[] items,
+                final int cellSize) {
             super(context, items);
+            mOptions = new DecodeOptions(cellSize, cellSize, ScalePolicy.FILL);
+            // All animated cells are advanced in one pass per display frame
+            mOptions.inSharedClock = true;
+            mDrawables = new LazyDrawable[items.length];
         }
 
         @Override
         public View getView(final int position, View convertView, final ViewGroup parent) {
-            final ImageView imageView;
+            final ViewHolder holder;
             if (convertView == null) {
                 convertView = getLayoutInflater().inflate(R.layout.grid_item_demo, parent, false);
-                imageView = (ImageView) convertView.findViewById(R.id.image);
-                convertView.setTag(imageView);
+                holder = new ViewHolder((ImageView) convertView.findViewById(R.id.image));
+                convertView.setTag(holder);
             } else {
-                imageView = (ImageView) convertView.getTag();
+                holder = (ViewHolder) convertView.getTag();
             }
 
-            imageView.setImageDrawable(getItem(position));
+            holder.bind(getDrawable(position));
             return convertView;
         }
+
+        @Nullable
+        private LazyDrawable getDrawable(final int position) {
+            LazyDrawable drawable = mDrawables[position];
+            if (drawable == null) {
+                // Reads only the header, the image is decoded when the cell is drawn
+                drawable = ImageFactory.lazy(getContext().getResources(),
+                        ImageSource.fromAsset(getContext().getAssets(), getItem(position)),
+                        mOptions);
+                mDrawables[position] = drawable;
+            }
+            return drawable;
+        }
+    }
+
+    private static final class ViewHolder {
+
+        @NonNull
+        private final ImageView mImageView;
+
+        ViewHolder(@NonNull final ImageView imageView) {
+            mImageView = imageView;
+        }
+
+        void bind(@Nullable final LazyDrawable drawable) {
+            final Drawable previous = mImageView.getDrawable();
+            if (previous != null && previous != drawable) {
+                // The cell is reused, so the previous image went off-screen
+                previous.setVisible(false, false);
+            }
+            mImageView.setImageDrawable(drawable);
+            if (drawable != null) {
+                drawable.setVisible(true, false);
+            }
+        }
     }
 }